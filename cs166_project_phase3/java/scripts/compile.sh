@@ -3,9 +3,17 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/PizzaStore.java
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
 java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER
 
+#To send read-only screens to a replica (e.g. a second local postgres on $REPLICA_PORT):
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER "jdbc:postgresql://localhost:$REPLICA_PORT/"$USER"_project_phase_3_DB" 5
+
+#To apply the schema migrations to an existing database (safe to repeat):
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PizzaStore --migrate $DIR/../../sql/migrations $USER"_project_phase_3_DB" $PGPORT $USER
+
+#To stress test order placement against a local database (from a scratch directory, it keeps its own order journal):
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar StressTest $USER"_project_phase_3_DB" $PGPORT $USER 8 2000
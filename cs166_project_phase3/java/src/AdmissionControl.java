@@ -0,0 +1,123 @@
+/*
+ * Admission control
+ * =================
+ *
+ * Bounds how many statements of each kind run against the database at once.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every statement run through the PizzaStore execute methods first takes a
+ * permit of its operation class:
+ *
+ *    READ         SELECTs of the customer screens
+ *    ORDER_WRITE  writes to FoodOrder and ItemsInOrder
+ *    ADMIN        other writes, and everything run from a manager screen
+ *
+ * A statement that can't get a permit within its class's queue budget
+ * fails right away with a "busy" SQLException (SQLState 53000) instead of
+ * adding to the pile-up, and every statement gets its class's query
+ * timeout.  The classes have separate permits, so a burst of reads can't
+ * starve order writes and a slow admin listing can't hold up either.
+ */
+public class AdmissionControl {
+
+   public static final int READ = 0;
+   public static final int ORDER_WRITE = 1;
+   public static final int ADMIN = 2;
+
+   // SQLState class 53: insufficient resources
+   public static final String BUSY_STATE = "53000";
+
+   private static final String[] NAMES = { "read", "order write", "admin" };
+   private static final int[] PERMITS = { 8, 4, 2 };
+   private static final long[] QUEUE_BUDGET_MILLIS = { 2000, 5000, 10000 };
+   private static final int[] TIMEOUT_SECONDS = { 10, 15, 30 };
+
+   /**
+    * The longest statement timeout of any class, also set as the session's
+    * statement_timeout since older drivers ignore setQueryTimeout.
+    */
+   public static final int MAX_TIMEOUT_SECONDS = 30;
+
+   private final Semaphore[] _permits = new Semaphore[PERMITS.length];
+
+   // class forced for the statements of the current thread, or -1
+   private final ThreadLocal<Integer> _forced = new ThreadLocal<Integer>();
+
+   public AdmissionControl() {
+      for (int i = 0; i < PERMITS.length; i++)
+         this._permits[i] = new Semaphore(PERMITS[i], true);
+   }//end AdmissionControl
+
+   /**
+    * Runs the statements of the current thread as one operation class until
+    * cleared, e.g. for a manager screen.
+    *
+    * @param opClass the class, or -1 to classify each statement again
+    */
+   public void setOperationClass(int opClass) {
+      if (opClass < 0)
+         this._forced.remove();
+      else
+         this._forced.set(opClass);
+   }//end setOperationClass
+
+   /**
+    * @param sql the statement about to run
+    * @return its operation class
+    */
+   public int classify(String sql) {
+      Integer forced = this._forced.get();
+      if (forced != null)
+         return forced;
+      String s = sql.trim().toLowerCase();
+      if (s.startsWith("select") || s.startsWith("with"))
+         return READ;
+      if (s.contains("foodorder") || s.contains("itemsinorder"))
+         return ORDER_WRITE;
+      return ADMIN;
+   }//end classify
+
+   /**
+    * Waits for a permit of the class, at most its queue budget.
+    *
+    * @param opClass the operation class
+    * @throws java.sql.SQLException "busy" when no permit was free in time
+    */
+   public void acquire(int opClass) throws SQLException {
+      boolean acquired;
+      try {
+         acquired = this._permits[opClass].tryAcquire(QUEUE_BUDGET_MILLIS[opClass], TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         acquired = false;
+      }
+      if (!acquired) {
+         throw new SQLException("The store is busy right now (" + NAMES[opClass]
+                                + " requests are queued), please try again", BUSY_STATE);
+      }
+   }//end acquire
+
+   /**
+    * Gives back a permit taken by acquire.
+    */
+   public void release(int opClass) {
+      this._permits[opClass].release();
+   }//end release
+
+   /**
+    * Applies the class's query timeout to a statement.
+    */
+   public void configure(Statement stmt, int opClass) throws SQLException {
+      stmt.setQueryTimeout(TIMEOUT_SECONDS[opClass]);
+   }//end configure
+
+}//end AdmissionControl
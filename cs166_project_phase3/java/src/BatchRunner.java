@@ -0,0 +1,314 @@
+/*
+ * Batch mode
+ * ==========
+ *
+ * Runs a script of menu operations without a terminal, e.g. for ops tasks
+ * and load tests.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A script has one command per line; blank lines and lines starting with
+ * # are skipped:
+ *
+ *    <login> <menu option> [| <answer> | <answer> ...]
+ *
+ * The login is the user the option runs as (no password, batch mode is an
+ * operator tool); "-" runs an option of the logged-out menu (1 create
+ * user).  The answers are fed, in order, to the prompts of the option,
+ * through the same screen code as the interactive client.  For example:
+ *
+ *    -     1 | alice | secret1 | 555-123-4567
+ *    alice 4 | retry-key-17 | Irvine | Pepperoni Pizza | 2 | done
+ *    alice 3 | 1 | 3
+ *
+ * Commands run on a pool of workers.  The output of each command is
+ * captured and printed as one block, in script order, followed by a
+ * summary of the timings per menu option.  A command fails if it needs
+ * more answers than it was given, throws, or prints to standard error.
+ */
+public class BatchRunner {
+
+   private static class Command {
+      final int lineNo;
+      final String text;
+      final String login;
+      final int option;
+      final List<String> answers;
+
+      Command(int lineNo, String text, String login, int option, List<String> answers) {
+         this.lineNo = lineNo;
+         this.text = text;
+         this.login = login;
+         this.option = option;
+         this.answers = answers;
+      }
+   }//end Command
+
+   private static class Result {
+      final Command command;
+      final boolean ok;
+      final long micros;
+      final String output;
+
+      Result(Command command, boolean ok, long micros, String output) {
+         this.command = command;
+         this.ok = ok;
+         this.micros = micros;
+         this.output = output;
+      }
+   }//end Result
+
+   /*
+    * Sends System.out/System.err of a thread running a command to that
+    * command's buffer, and everything else to the real stream.
+    */
+   private static class CapturingStream extends OutputStream {
+      private final PrintStream _real;
+      private final ThreadLocal<ByteArrayOutputStream> _buffer;
+
+      CapturingStream(PrintStream real, ThreadLocal<ByteArrayOutputStream> buffer) {
+         this._real = real;
+         this._buffer = buffer;
+      }
+
+      public void write(int b) {
+         ByteArrayOutputStream buffer = this._buffer.get();
+         if (buffer != null)
+            buffer.write(b);
+         else
+            this._real.write(b);
+      }
+
+      public void write(byte[] b, int off, int len) {
+         ByteArrayOutputStream buffer = this._buffer.get();
+         if (buffer != null)
+            buffer.write(b, off, len);
+         else
+            this._real.write(b, off, len);
+      }
+
+      public void flush() {
+         if (this._buffer.get() == null)
+            this._real.flush();
+      }
+   }//end CapturingStream
+
+   private final PizzaStore _esql;
+   private final int _workers;
+
+   // print only the failed commands, e.g. for load tests
+   private boolean _quiet = false;
+
+   private final ThreadLocal<ByteArrayOutputStream> _out = new ThreadLocal<ByteArrayOutputStream>();
+   private final ThreadLocal<ByteArrayOutputStream> _err = new ThreadLocal<ByteArrayOutputStream>();
+
+   public BatchRunner(PizzaStore esql, int workers) {
+      this._esql = esql;
+      this._workers = Math.max(1, workers);
+   }//end BatchRunner
+
+   /**
+    * Prints only the commands that failed, and the summary.
+    */
+   public void setQuiet(boolean quiet) {
+      this._quiet = quiet;
+   }//end setQuiet
+
+   /**
+    * Runs a script.
+    *
+    * @param path the script file, or "-" for standard input
+    * @return the number of failed commands
+    * @throws java.io.IOException when the script could not be read or parsed
+    */
+   public int run(String path) throws IOException {
+      List<Command> commands = parse(path);
+
+      PrintStream realOut = System.out;
+      PrintStream realErr = System.err;
+      System.setOut(new PrintStream(new CapturingStream(realOut, this._out), true));
+      System.setErr(new PrintStream(new CapturingStream(realErr, this._err), true));
+
+      ExecutorService pool = Executors.newFixedThreadPool(this._workers, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "batch-worker");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      int failed = 0;
+      long started = System.nanoTime();
+      List<Result> results = new ArrayList<Result>();
+      try {
+         List<Future<Result>> running = new ArrayList<Future<Result>>();
+         for (final Command command : commands) {
+            running.add(pool.submit(new Callable<Result>() {
+               public Result call() {
+                  return execute(command);
+               }
+            }));
+         }
+
+         for (Future<Result> future : running) {
+            Result result;
+            try {
+               result = future.get();
+            } catch (Exception e) {
+               throw new IOException("batch worker failed: " + e);
+            }
+            results.add(result);
+            if (!result.ok)
+               failed++;
+            if (this._quiet && result.ok)
+               continue;
+            realOut.println("[" + result.command.lineNo + "] " + result.command.text + "  -> "
+                            + (result.ok ? "ok" : "FAILED") + " (" + millis(result.micros) + " ms)");
+            for (String line : result.output.split("\n")) {
+               if (!line.trim().isEmpty())
+                  realOut.println("    " + line);
+            }
+         }
+      } finally {
+         pool.shutdownNow();
+         System.setOut(realOut);
+         System.setErr(realErr);
+      }
+
+      long wall = (System.nanoTime() - started) / 1000;
+      printSummary(realOut, results, failed, wall);
+      return failed;
+   }//end run
+
+   private Result execute(Command command) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ByteArrayOutputStream err = new ByteArrayOutputStream();
+      this._out.set(out);
+      this._err.set(err);
+      ConsoleInput.set(command.answers);
+      boolean ok = true;
+      long start = System.nanoTime();
+      try {
+         if (command.login == null) {
+            if (command.option == 1)
+               PizzaStore.CreateUser(this._esql);
+            else
+               throw new IllegalArgumentException("only option 1 runs without a login");
+         } else {
+            PizzaStore.runUserChoice(this._esql, command.login, command.option);
+         }
+      } catch (ConsoleInput.EndOfInput e) {
+         System.err.println("ran out of answers");
+         ok = false;
+      } catch (Exception e) {
+         System.err.println(e.toString());
+         ok = false;
+      } finally {
+         ConsoleInput.set(null);
+         this._esql.getAdmission().setOperationClass(-1);
+         this._out.remove();
+         this._err.remove();
+      }
+      long micros = (System.nanoTime() - start) / 1000;
+
+      if (err.size() > 0)
+         ok = false;
+      String output = out.toString() + (err.size() > 0 ? "error: " + err.toString() : "");
+      return new Result(command, ok, micros, output);
+   }//end execute
+
+   private static List<Command> parse(String path) throws IOException {
+      BufferedReader in = path.equals("-")
+         ? new BufferedReader(new InputStreamReader(System.in))
+         : new BufferedReader(new FileReader(path));
+      List<Command> commands = new ArrayList<Command>();
+      try {
+         String line;
+         int lineNo = 0;
+         while ((line = in.readLine()) != null) {
+            lineNo++;
+            String text = line.trim();
+            if (text.isEmpty() || text.startsWith("#"))
+               continue;
+
+            String[] parts = text.split("\\|", -1);
+            String[] head = parts[0].trim().split("\\s+");
+            if (head.length != 2)
+               throw new IOException(path + ":" + lineNo + ": expected <login> <menu option> [| answers]");
+            int option;
+            try {
+               option = Integer.parseInt(head[1]);
+            } catch (NumberFormatException e) {
+               throw new IOException(path + ":" + lineNo + ": bad menu option " + head[1]);
+            }
+            List<String> answers = new ArrayList<String>();
+            for (String answer : Arrays.asList(parts).subList(1, parts.length))
+               answers.add(answer.trim());
+            commands.add(new Command(lineNo, text, head[0].equals("-") ? null : head[0], option, answers));
+         }//end while
+      } finally {
+         if (!path.equals("-"))
+            in.close();
+      }
+      return commands;
+   }//end parse
+
+   private void printSummary(PrintStream out, List<Result> results, int failed, long wallMicros) {
+      Map<Integer, List<Long>> byOption = new TreeMap<Integer, List<Long>>();
+      for (Result result : results) {
+         List<Long> times = byOption.get(result.command.option);
+         if (times == null) {
+            times = new ArrayList<Long>();
+            byOption.put(result.command.option, times);
+         }
+         times.add(result.micros);
+      }
+
+      out.println();
+      out.println("BATCH SUMMARY");
+      out.println("-------------");
+      out.println(results.size() + " commands, " + (results.size() - failed) + " ok, " + failed + " failed, "
+                  + this._workers + " workers, " + millis(wallMicros) + " ms"
+                  + (wallMicros > 0 ? ", " + (results.size() * 1000000L / wallMicros) + " commands/s" : ""));
+      out.println("option  count   mean ms    p50 ms    p95 ms    max ms");
+      for (Map.Entry<Integer, List<Long>> e : byOption.entrySet()) {
+         List<Long> times = e.getValue();
+         Collections.sort(times);
+         long sum = 0;
+         for (long t : times)
+            sum += t;
+         out.println(String.format("%6d %6d %9s %9s %9s %9s", e.getKey(), times.size(),
+                                   millis(sum / times.size()), millis(percentile(times, 50)),
+                                   millis(percentile(times, 95)), millis(times.get(times.size() - 1))));
+      }
+   }//end printSummary
+
+   private static long percentile(List<Long> sorted, int p) {
+      int index = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+      return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+   }//end percentile
+
+   private static String millis(long micros) {
+      return String.format("%.1f", micros / 1000.0);
+   }//end millis
+
+}//end BatchRunner
@@ -0,0 +1,452 @@
+/*
+ * Columnar query results
+ * ======================
+ *
+ * Typed, column-oriented alternative to the List<List<String>> results of
+ * the execute methods.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every column is one primitive array, typed from ResultSetMetaData:
+ *
+ *    INT        integer, smallint                 int[]
+ *    LONG       bigint                            long[]
+ *    CENTS      numeric, decimal (money)          long[] in cents
+ *    DOUBLE     real, float, double precision     double[]
+ *    TIMESTAMP  timestamp, date                   long[] epoch millis
+ *    STRING     everything else                   int[] codes into a
+ *                                                 per-column dictionary
+ *
+ * so a result costs a few arrays instead of a list and a String per value,
+ * and readers get numbers without parsing them again.  NULLs are kept in a
+ * bitmap per column.  Rows and columns count from 0, unlike JDBC.
+ *
+ * Decimals are rounded half up to cents; every decimal in the schema is a
+ * price with two places.
+ */
+public class ColumnarResult {
+
+   public static final int INT = 0;
+   public static final int LONG = 1;
+   public static final int CENTS = 2;
+   public static final int DOUBLE = 3;
+   public static final int TIMESTAMP = 4;
+   public static final int STRING = 5;
+
+   private static final int INITIAL_CAPACITY = 16;
+
+   private final String[] _names;
+   private final int[] _types;
+   private int _rows = 0;
+   private int _capacity = INITIAL_CAPACITY;
+
+   // per column, by type: int[] (INT, STRING codes), long[] or double[]
+   private final Object[] _values;
+   private final long[][] _nulls;
+   private final List<List<String>> _dictionaries = new ArrayList<List<String>>();
+   private final List<Map<String, Integer>> _codes = new ArrayList<Map<String, Integer>>();
+
+   private ColumnarResult(String[] names, int[] types) {
+      this._names = names;
+      this._types = types;
+      this._values = new Object[types.length];
+      this._nulls = new long[types.length][];
+      for (int col = 0; col < types.length; col++) {
+         this._values[col] = newArray(types[col], this._capacity);
+         this._nulls[col] = new long[(this._capacity + 63) / 64];
+         this._dictionaries.add(types[col] == STRING ? new ArrayList<String>() : null);
+         this._codes.add(types[col] == STRING ? new HashMap<String, Integer>() : null);
+      }
+   }//end ColumnarResult
+
+   /**
+    * Reads a whole result set.
+    *
+    * @param rs the result set, positioned before the first row
+    * @return the rows, column by column
+    * @throws java.sql.SQLException when reading the result set failed
+    */
+   public static ColumnarResult read(ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      String[] names = new String[numCol];
+      int[] types = new int[numCol];
+      for (int col = 0; col < numCol; col++) {
+         names[col] = rsmd.getColumnName(col + 1);
+         types[col] = typeOf(rsmd.getColumnType(col + 1));
+      }
+
+      ColumnarResult result = new ColumnarResult(names, types);
+      while (rs.next()) {
+         int row = result.addRow();
+         for (int col = 0; col < numCol; col++) {
+            switch (types[col]) {
+               case INT: {
+                  int v = rs.getInt(col + 1);
+                  if (rs.wasNull())
+                     result.setNull(row, col);
+                  else
+                     ((int[]) result._values[col])[row] = v;
+                  break;
+               }
+               case LONG: {
+                  long v = rs.getLong(col + 1);
+                  if (rs.wasNull())
+                     result.setNull(row, col);
+                  else
+                     ((long[]) result._values[col])[row] = v;
+                  break;
+               }
+               case CENTS: {
+                  String v = rs.getString(col + 1);
+                  if (v == null)
+                     result.setNull(row, col);
+                  else
+                     ((long[]) result._values[col])[row] = parseCents(v);
+                  break;
+               }
+               case DOUBLE: {
+                  double v = rs.getDouble(col + 1);
+                  if (rs.wasNull())
+                     result.setNull(row, col);
+                  else
+                     ((double[]) result._values[col])[row] = v;
+                  break;
+               }
+               case TIMESTAMP: {
+                  Timestamp v = rs.getTimestamp(col + 1);
+                  if (v == null)
+                     result.setNull(row, col);
+                  else
+                     ((long[]) result._values[col])[row] = v.getTime();
+                  break;
+               }
+               default: {
+                  String v = rs.getString(col + 1);
+                  if (v == null)
+                     result.setNull(row, col);
+                  else
+                     ((int[]) result._values[col])[row] = result.encode(col, v);
+                  break;
+               }
+            }
+         }
+      }//end while
+      return result;
+   }//end read
+
+   /**
+    * Appends results of the same query, e.g. from several order shards.
+    *
+    * @param parts results with the same columns
+    * @return the rows of all parts, in order
+    */
+   public static ColumnarResult concat(List<ColumnarResult> parts) {
+      ColumnarResult first = parts.get(0);
+      ColumnarResult result = new ColumnarResult(first._names, first._types);
+      for (ColumnarResult part : parts) {
+         if (!Arrays.equals(part._types, first._types))
+            throw new IllegalArgumentException("results have different columns");
+         for (int r = 0; r < part._rows; r++) {
+            int row = result.addRow();
+            for (int col = 0; col < first._types.length; col++) {
+               if (part.isNull(r, col)) {
+                  result.setNull(row, col);
+                  continue;
+               }
+               switch (first._types[col]) {
+                  case INT:
+                     ((int[]) result._values[col])[row] = ((int[]) part._values[col])[r];
+                     break;
+                  case DOUBLE:
+                     ((double[]) result._values[col])[row] = ((double[]) part._values[col])[r];
+                     break;
+                  case STRING:
+                     ((int[]) result._values[col])[row] = result.encode(col, part.getString(r, col));
+                     break;
+                  default:
+                     ((long[]) result._values[col])[row] = ((long[]) part._values[col])[r];
+                     break;
+               }
+            }
+         }
+      }
+      return result;
+   }//end concat
+
+   /**
+    * @return the number of rows
+    */
+   public int rowCount() {
+      return this._rows;
+   }//end rowCount
+
+   /**
+    * @return the number of columns
+    */
+   public int columnCount() {
+      return this._types.length;
+   }//end columnCount
+
+   /**
+    * @return the column's name as the database reported it
+    */
+   public String columnName(int col) {
+      return this._names[col];
+   }//end columnName
+
+   /**
+    * @return the column's type, INT ... STRING
+    */
+   public int columnType(int col) {
+      return this._types[col];
+   }//end columnType
+
+   /**
+    * @param name a column name, any case
+    * @return the column's index, or -1
+    */
+   public int columnIndex(String name) {
+      for (int col = 0; col < this._names.length; col++) {
+         if (this._names[col].equalsIgnoreCase(name))
+            return col;
+      }
+      return -1;
+   }//end columnIndex
+
+   public boolean isNull(int row, int col) {
+      checkRow(row);
+      return (this._nulls[col][row >>> 6] & (1L << row)) != 0;
+   }//end isNull
+
+   /**
+    * @return an INT or LONG value, 0 for NULL
+    */
+   public int getInt(int row, int col) {
+      checkRow(row);
+      switch (this._types[col]) {
+         case INT: return ((int[]) this._values[col])[row];
+         case LONG: return (int) ((long[]) this._values[col])[row];
+         default: throw wrongType(col, "an int");
+      }
+   }//end getInt
+
+   /**
+    * @return an INT, LONG, CENTS (in cents) or TIMESTAMP (epoch millis)
+    *         value, 0 for NULL
+    */
+   public long getLong(int row, int col) {
+      checkRow(row);
+      switch (this._types[col]) {
+         case INT: return ((int[]) this._values[col])[row];
+         case LONG: case CENTS: case TIMESTAMP: return ((long[]) this._values[col])[row];
+         default: throw wrongType(col, "a long");
+      }
+   }//end getLong
+
+   /**
+    * @return a CENTS value in cents, 0 for NULL
+    */
+   public long getCents(int row, int col) {
+      checkRow(row);
+      if (this._types[col] != CENTS)
+         throw wrongType(col, "cents");
+      return ((long[]) this._values[col])[row];
+   }//end getCents
+
+   /**
+    * @return a numeric value as a double (CENTS in dollars), 0 for NULL
+    */
+   public double getDouble(int row, int col) {
+      checkRow(row);
+      switch (this._types[col]) {
+         case DOUBLE: return ((double[]) this._values[col])[row];
+         case INT: return ((int[]) this._values[col])[row];
+         case LONG: return ((long[]) this._values[col])[row];
+         case CENTS: return ((long[]) this._values[col])[row] / 100.0;
+         default: throw wrongType(col, "a double");
+      }
+   }//end getDouble
+
+   /**
+    * @return any value as text, or null for NULL
+    */
+   public String getString(int row, int col) {
+      if (isNull(row, col))
+         return null;
+      switch (this._types[col]) {
+         case INT: return String.valueOf(((int[]) this._values[col])[row]);
+         case LONG: return String.valueOf(((long[]) this._values[col])[row]);
+         case CENTS: return PricingEngine.format(((long[]) this._values[col])[row]);
+         case DOUBLE: return String.valueOf(((double[]) this._values[col])[row]);
+         case TIMESTAMP: return new Timestamp(((long[]) this._values[col])[row]).toString();
+         default: return this._dictionaries.get(col).get(((int[]) this._values[col])[row]);
+      }
+   }//end getString
+
+   /**
+    * @return an INT column (or a STRING column's codes), one value per row
+    */
+   public int[] ints(int col) {
+      if (this._types[col] != INT && this._types[col] != STRING)
+         throw wrongType(col, "ints");
+      return Arrays.copyOf((int[]) this._values[col], this._rows);
+   }//end ints
+
+   /**
+    * @return a LONG, CENTS or TIMESTAMP column, one value per row
+    */
+   public long[] longs(int col) {
+      if (this._types[col] != LONG && this._types[col] != CENTS && this._types[col] != TIMESTAMP)
+         throw wrongType(col, "longs");
+      return Arrays.copyOf((long[]) this._values[col], this._rows);
+   }//end longs
+
+   /**
+    * @return a DOUBLE column, one value per row
+    */
+   public double[] doubles(int col) {
+      if (this._types[col] != DOUBLE)
+         throw wrongType(col, "doubles");
+      return Arrays.copyOf((double[]) this._values[col], this._rows);
+   }//end doubles
+
+   /**
+    * @return the distinct values of a STRING column, indexed by ints(col)
+    */
+   public List<String> dictionary(int col) {
+      if (this._types[col] != STRING)
+         throw wrongType(col, "a dictionary");
+      return Collections.unmodifiableList(this._dictionaries.get(col));
+   }//end dictionary
+
+   /**
+    * @return the rows as string records, for code that still prints them
+    *         the way executeQueryAndReturnResult returns them
+    */
+   public List<List<String>> toRecords() {
+      List<List<String>> records = new ArrayList<List<String>>(this._rows);
+      for (int row = 0; row < this._rows; row++) {
+         List<String> record = new ArrayList<String>(this._types.length);
+         for (int col = 0; col < this._types.length; col++)
+            record.add(getString(row, col));
+         records.add(record);
+      }
+      return records;
+   }//end toRecords
+
+   /**
+    * Parses a decimal into cents, rounded half up.
+    */
+   public static long parseCents(String decimal) {
+      String s = decimal.trim();
+      int dot = s.indexOf('.');
+      // the common case, at most two places, without BigDecimal
+      if (dot < 0 ? s.length() <= 16 : s.length() - dot <= 3 && dot <= 16) {
+         boolean negative = s.startsWith("-");
+         long cents = 0;
+         int digits = 0;
+         for (int i = negative ? 1 : 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '.')
+               continue;
+            if (c < '0' || c > '9')
+               return slowCents(s);
+            cents = cents * 10 + (c - '0');
+            digits++;
+         }
+         if (digits == 0)
+            return slowCents(s);
+         int places = dot < 0 ? 0 : s.length() - dot - 1;
+         for (int i = places; i < 2; i++)
+            cents *= 10;
+         return negative ? -cents : cents;
+      }
+      return slowCents(s);
+   }//end parseCents
+
+   private static long slowCents(String s) {
+      return new BigDecimal(s).movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
+   }//end slowCents
+
+   private static int typeOf(int sqlType) {
+      switch (sqlType) {
+         case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT:
+            return INT;
+         case Types.BIGINT:
+            return LONG;
+         case Types.NUMERIC: case Types.DECIMAL:
+            return CENTS;
+         case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+            return DOUBLE;
+         case Types.TIMESTAMP: case Types.DATE:
+            return TIMESTAMP;
+         default:
+            return STRING;
+      }
+   }//end typeOf
+
+   private static Object newArray(int type, int capacity) {
+      switch (type) {
+         case INT: case STRING: return new int[capacity];
+         case DOUBLE: return new double[capacity];
+         default: return new long[capacity];
+      }
+   }//end newArray
+
+   private int addRow() {
+      if (this._rows == this._capacity) {
+         this._capacity *= 2;
+         for (int col = 0; col < this._types.length; col++) {
+            Object grown = newArray(this._types[col], this._capacity);
+            System.arraycopy(this._values[col], 0, grown, 0, this._rows);
+            this._values[col] = grown;
+            this._nulls[col] = Arrays.copyOf(this._nulls[col], (this._capacity + 63) / 64);
+         }
+      }
+      return this._rows++;
+   }//end addRow
+
+   private void setNull(int row, int col) {
+      this._nulls[col][row >>> 6] |= 1L << row;
+   }//end setNull
+
+   private int encode(int col, String value) {
+      Map<String, Integer> codes = this._codes.get(col);
+      Integer code = codes.get(value);
+      if (code == null) {
+         List<String> dictionary = this._dictionaries.get(col);
+         code = dictionary.size();
+         dictionary.add(value);
+         codes.put(value, code);
+      }
+      return code;
+   }//end encode
+
+   private void checkRow(int row) {
+      if (row < 0 || row >= this._rows)
+         throw new IndexOutOfBoundsException("row " + row + " of " + this._rows);
+   }//end checkRow
+
+   private IllegalStateException wrongType(int col, String wanted) {
+      return new IllegalStateException("column " + this._names[col] + " can't be read as " + wanted);
+   }//end wrongType
+
+}//end ColumnarResult
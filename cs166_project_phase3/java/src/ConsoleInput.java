@@ -0,0 +1,91 @@
+/*
+ * Console input
+ * =============
+ *
+ * The one source of input lines for every prompt.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * All prompts read through ConsoleInput.get().nextLine().  Interactively
+ * that is a single reader shared over System.in, so no prompt can buffer
+ * and lose input meant for the next one.  A batch worker installs the
+ * answers of the command it runs for its own thread with set.
+ *
+ * Running out of input throws EndOfInput instead of returning null, so a
+ * prompt loop can't spin on an exhausted stream.
+ */
+public class ConsoleInput {
+
+   /**
+    * Thrown when a prompt needs a line and there is none left.
+    */
+   public static class EndOfInput extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      public EndOfInput() {
+         super("ran out of input");
+      }
+   }//end EndOfInput
+
+   private static final ConsoleInput STDIN =
+      new ConsoleInput(new BufferedReader(new InputStreamReader(System.in)), null);
+
+   private static final ThreadLocal<ConsoleInput> CURRENT = new ThreadLocal<ConsoleInput>();
+
+   private final BufferedReader _reader;
+   private final List<String> _lines;
+   private int _next = 0;
+
+   private ConsoleInput(BufferedReader reader, List<String> lines) {
+      this._reader = reader;
+      this._lines = lines;
+   }//end ConsoleInput
+
+   /**
+    * @return the input of the current thread, by default standard input
+    */
+   public static ConsoleInput get() {
+      ConsoleInput input = CURRENT.get();
+      return input != null ? input : STDIN;
+   }//end get
+
+   /**
+    * Makes the current thread's prompts read the given lines, or standard
+    * input again for null.
+    */
+   public static void set(List<String> lines) {
+      if (lines == null)
+         CURRENT.remove();
+      else
+         CURRENT.set(new ConsoleInput(null, new ArrayList<String>(lines)));
+   }//end set
+
+   /**
+    * @return the next line, without its line terminator
+    * @throws EndOfInput when there are no lines left
+    */
+   public synchronized String nextLine() {
+      if (this._lines != null) {
+         if (this._next >= this._lines.size())
+            throw new EndOfInput();
+         return this._lines.get(this._next++);
+      }
+      String line;
+      try {
+         line = this._reader.readLine();
+      } catch (IOException e) {
+         line = null;
+      }
+      if (line == null)
+         throw new EndOfInput();
+      return line;
+   }//end nextLine
+
+}//end ConsoleInput
@@ -0,0 +1,177 @@
+/*
+ * Delivery batching
+ * =================
+ *
+ * Groups the pending orders of each store into delivery batches by time
+ * window and capacity.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A batch starts with an order and takes the store's later orders placed
+ * within the window after it, up to the capacity.  Batches are kept as the
+ * DispatchQueue's orders come and go (placed, refreshed, claimed, or
+ * changed by Update Order Status): an arriving order joins the newest open
+ * batch of its store that covers its timestamp and has room, or starts a
+ * new one, so nothing is rescanned.
+ *
+ * Claiming and finishing a batch is done by DispatchQueue, with one
+ * set-based UPDATE each (see OrderStatus).
+ */
+public class DeliveryBatcher {
+
+   public static final long DEFAULT_WINDOW_MILLIS = 15 * 60 * 1000;
+   public static final int DEFAULT_CAPACITY = 5;
+
+   /**
+    * An open batch: orders of one store, oldest first.
+    */
+   public static class Batch {
+      public final int storeID;
+      public final long windowStart;
+      private final long _seq;
+      private final List<DispatchQueue.PendingOrder> _orders = new ArrayList<DispatchQueue.PendingOrder>();
+
+      Batch(int storeID, long windowStart, long seq) {
+         this.storeID = storeID;
+         this.windowStart = windowStart;
+         this._seq = seq;
+      }
+
+      /**
+       * @return the orders, oldest first
+       */
+      public List<DispatchQueue.PendingOrder> orders() {
+         return new ArrayList<DispatchQueue.PendingOrder>(this._orders);
+      }
+
+      public int size() {
+         return this._orders.size();
+      }
+   }//end Batch
+
+   /**
+    * A batch claimed by a driver.
+    */
+   public static class Claimed {
+      public final int batchID;
+      public final int storeID;
+      public final List<DispatchQueue.PendingOrder> orders;
+
+      public Claimed(int batchID, int storeID, List<DispatchQueue.PendingOrder> orders) {
+         this.batchID = batchID;
+         this.storeID = storeID;
+         this.orders = orders;
+      }
+   }//end Claimed
+
+   // by window start, then creation
+   private static final Comparator<Batch> BY_START = new Comparator<Batch>() {
+      public int compare(Batch a, Batch b) {
+         if (a.windowStart != b.windowStart)
+            return a.windowStart < b.windowStart ? -1 : 1;
+         return a._seq < b._seq ? -1 : (a._seq > b._seq ? 1 : 0);
+      }
+   };
+
+   private final long _window;
+   private final int _capacity;
+   private long _nextSeq = 0;
+
+   // guarded by this
+   private final Map<Integer, TreeSet<Batch>> _batches = new HashMap<Integer, TreeSet<Batch>>();
+   private final Map<Integer, Batch> _byOrderID = new HashMap<Integer, Batch>();
+
+   public DeliveryBatcher(long windowMillis, int capacity) {
+      this._window = windowMillis;
+      this._capacity = capacity;
+   }//end DeliveryBatcher
+
+   /**
+    * Adds a pending order to a batch of its store.
+    */
+   public synchronized void add(DispatchQueue.PendingOrder order) {
+      if (this._byOrderID.containsKey(order.orderID))
+         return;
+      TreeSet<Batch> batches = this._batches.get(order.storeID);
+      if (batches == null) {
+         batches = new TreeSet<Batch>(BY_START);
+         this._batches.put(order.storeID, batches);
+      }
+
+      // newest batch starting at or before the order that covers it and has room
+      Batch batch = null;
+      Iterator<Batch> candidates =
+         batches.headSet(new Batch(order.storeID, order.orderTimestamp, Long.MAX_VALUE), true).descendingIterator();
+      while (candidates.hasNext()) {
+         Batch candidate = candidates.next();
+         if (order.orderTimestamp >= candidate.windowStart + this._window)
+            break;
+         if (candidate.size() < this._capacity) {
+            batch = candidate;
+            break;
+         }
+      }
+      if (batch == null) {
+         batch = new Batch(order.storeID, order.orderTimestamp, this._nextSeq++);
+         batches.add(batch);
+      }
+
+      int at = Collections.binarySearch(batch._orders, order);
+      batch._orders.add(at < 0 ? -at - 1 : at, order);
+      this._byOrderID.put(order.orderID, batch);
+   }//end add
+
+   /**
+    * Drops an order that was claimed or left the 'Pending' state.
+    */
+   public synchronized void remove(int orderID) {
+      Batch batch = this._byOrderID.remove(orderID);
+      if (batch == null)
+         return;
+      for (Iterator<DispatchQueue.PendingOrder> i = batch._orders.iterator(); i.hasNext(); ) {
+         if (i.next().orderID == orderID)
+            i.remove();
+      }
+      if (batch._orders.isEmpty()) {
+         TreeSet<Batch> batches = this._batches.get(batch.storeID);
+         if (batches != null)
+            batches.remove(batch);
+      }
+   }//end remove
+
+   /**
+    * Takes the oldest batch of a store out of the batcher.
+    *
+    * @return the batch, or null if the store has no pending orders
+    */
+   public synchronized Batch pollOldest(int storeID) {
+      TreeSet<Batch> batches = this._batches.get(storeID);
+      Batch batch = batches == null ? null : batches.pollFirst();
+      if (batch == null)
+         return null;
+      for (DispatchQueue.PendingOrder order : batch._orders)
+         this._byOrderID.remove(order.orderID);
+      return batch;
+   }//end pollOldest
+
+   /**
+    * Forgets every batch, e.g. before the pending orders are reloaded.
+    */
+   public synchronized void clear() {
+      this._batches.clear();
+      this._byOrderID.clear();
+   }//end clear
+
+}//end DeliveryBatcher
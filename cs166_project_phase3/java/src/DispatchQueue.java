@@ -0,0 +1,370 @@
+/*
+ * Driver dispatch queue
+ * =====================
+ *
+ * Per-store queues of pending orders, so drivers can ask for work instead of
+ * knowing order IDs up front.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the pending orders of every store in a lock-free priority queue
+ * ordered by orderTimestamp (oldest first).
+ *
+ * The queues are fed by the order journal as it applies orders, rebuilt at
+ * startup from the idx_foodorder_pending partial index and synced with it
+ * every SYNC_INTERVAL_SECONDS, which picks up orders placed by other
+ * processes and drops the ones claimed there.  A claim takes orders off the queue
+ * and then persists each one with a compare-and-set UPDATE that only
+ * succeeds while the order is still 'Pending', so two drivers (in this or
+ * any other process) never get the same order.
+ *
+ * The same orders are grouped into delivery batches as they are queued
+ * (see DeliveryBatcher).  A driver can claim a whole batch, and later
+ * finish it, with one set-based UPDATE instead of one per order.
+ */
+public class DispatchQueue {
+
+   public static final String PENDING = OrderStatus.PENDING;
+   public static final String CLAIMED = OrderStatus.CLAIMED;
+
+   private static final String NEXT_BATCH_QUERY = "SELECT nextval('delivery_batch_seq')";
+
+   private static final String PENDING_QUERY =
+      "SELECT orderID, storeID, orderTimestamp FROM FoodOrder WHERE orderStatus = '" + PENDING + "'";
+
+   private static final long SYNC_INTERVAL_SECONDS = 15;
+
+   /**
+    * A pending order as seen by the dispatcher.
+    */
+   public static class PendingOrder implements Comparable<PendingOrder> {
+      public final int orderID;
+      public final int storeID;
+      public final long orderTimestamp;
+
+      public PendingOrder(int orderID, int storeID, long orderTimestamp) {
+         this.orderID = orderID;
+         this.storeID = storeID;
+         this.orderTimestamp = orderTimestamp;
+      }
+
+      public int compareTo(PendingOrder other) {
+         if (this.orderTimestamp != other.orderTimestamp)
+            return this.orderTimestamp < other.orderTimestamp ? -1 : 1;
+         return Integer.compare(this.orderID, other.orderID);
+      }
+
+      public String toString() {
+         return "[" + orderID + ", store " + storeID + ", " + new Timestamp(orderTimestamp) + "]";
+      }
+   }//end PendingOrder
+
+   private final PizzaStore _esql;
+
+   // storeID -> pending orders of that store, oldest first
+   private final ConcurrentMap<Integer, ConcurrentSkipListSet<PendingOrder>> _queues =
+      new ConcurrentHashMap<Integer, ConcurrentSkipListSet<PendingOrder>>();
+
+   // orderID -> queued entry, so status changes can drop an order by ID
+   private final ConcurrentMap<Integer, PendingOrder> _byOrderID = new ConcurrentHashMap<Integer, PendingOrder>();
+
+   // the same orders in delivery batches
+   private final DeliveryBatcher _batcher =
+      new DeliveryBatcher(DeliveryBatcher.DEFAULT_WINDOW_MILLIS, DeliveryBatcher.DEFAULT_CAPACITY);
+
+   private ScheduledExecutorService _scheduler = null;
+
+   public DispatchQueue(PizzaStore esql) {
+      this._esql = esql;
+   }//end DispatchQueue
+
+   /**
+    * Syncs the queues with the database every SYNC_INTERVAL_SECONDS in the
+    * background; the first load is left to startup.
+    */
+   public void start() {
+      this._scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "dispatch-queue-sync");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this._scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               sync();
+            } catch (SQLException e) {
+               // the queues stay as they are until the next sync
+            }
+         }
+      }, SYNC_INTERVAL_SECONDS, SYNC_INTERVAL_SECONDS, TimeUnit.SECONDS);
+   }//end start
+
+   /**
+    * Stops the background sync.
+    */
+   public void stop() {
+      if (this._scheduler != null)
+         this._scheduler.shutdownNow();
+   }//end stop
+
+   /**
+    * Loads every pending order.  The predicate matches the partial index
+    * idx_foodorder_pending, so this never scans completed orders.
+    *
+    * @return the number of pending orders queued
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int rebuild() throws SQLException {
+      ColumnarResult results = this._esql.getShards().queryAllColumns(PENDING_QUERY);
+
+      this._queues.clear();
+      this._byOrderID.clear();
+      this._batcher.clear();
+      for (int row = 0; row < results.rowCount(); row++)
+         offer(results.getInt(row, 0), results.getInt(row, 1), results.getLong(row, 2));
+      return results.rowCount();
+   }//end rebuild
+
+   /**
+    * Brings the queues in line with the pending orders in the database
+    * without clearing them: orders placed by other processes are queued,
+    * and orders queued before the query that are no longer pending there
+    * (claimed or cancelled elsewhere) are dropped.
+    *
+    * @return the number of pending orders
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int sync() throws SQLException {
+      // orders offered while the query runs may be missing from its result
+      Set<Integer> queued = new HashSet<Integer>(this._byOrderID.keySet());
+      ColumnarResult results = this._esql.getShards().queryAllColumns(PENDING_QUERY);
+
+      Set<Integer> pending = new HashSet<Integer>();
+      for (int row = 0; row < results.rowCount(); row++) {
+         int orderID = results.getInt(row, 0);
+         pending.add(orderID);
+         offer(orderID, results.getInt(row, 1), results.getLong(row, 2));
+      }
+      for (Integer orderID : queued) {
+         if (!pending.contains(orderID))
+            remove(orderID);
+      }
+      return results.rowCount();
+   }//end sync
+
+   /**
+    * Reloads the pending orders of one store, picking up orders placed by
+    * other processes.  Uses the (storeID, orderTimestamp) partial index.
+    *
+    * @return the number of pending orders queued for the store
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int refresh(int storeID) throws SQLException {
+      ColumnarResult results = this._esql.getShards().queryColumns(storeID,
+         "SELECT orderID, orderTimestamp FROM FoodOrder WHERE storeID = " + storeID
+         + " AND orderStatus = '" + PENDING + "' ORDER BY orderTimestamp");
+
+      for (int row = 0; row < results.rowCount(); row++)
+         offer(results.getInt(row, 0), storeID, results.getLong(row, 1));
+      return results.rowCount();
+   }//end refresh
+
+   /**
+    * Queues a newly placed order.
+    */
+   public void offer(int orderID, int storeID, long orderTimestamp) {
+      PendingOrder order = new PendingOrder(orderID, storeID, orderTimestamp);
+      ConcurrentSkipListSet<PendingOrder> queue = this._queues.get(storeID);
+      if (queue == null) {
+         ConcurrentSkipListSet<PendingOrder> created = new ConcurrentSkipListSet<PendingOrder>();
+         queue = this._queues.putIfAbsent(storeID, created);
+         if (queue == null)
+            queue = created;
+      }
+      if (this._byOrderID.putIfAbsent(orderID, order) == null) {
+         queue.add(order);
+         this._batcher.add(order);
+      }
+   }//end offer
+
+   /**
+    * Drops an order that left the 'Pending' state some other way.
+    */
+   public void remove(int orderID) {
+      PendingOrder order = this._byOrderID.remove(orderID);
+      if (order == null)
+         return;
+      ConcurrentSkipListSet<PendingOrder> queue = this._queues.get(order.storeID);
+      if (queue != null)
+         queue.remove(order);
+      this._batcher.remove(orderID);
+   }//end remove
+
+   /**
+    * Claims up to count of the oldest pending orders of a store.
+    *
+    * Orders are taken off the queue with pollFirst (so concurrent claimers in
+    * this process never see the same entry) and each claim is persisted with
+    * a compare-and-set update.  An order another process already claimed
+    * fails the update and is skipped.  When the queue runs out before count
+    * orders are claimed it is refreshed from the database once.
+    *
+    * @param storeID the store to take orders from
+    * @param count how many orders to claim
+    * @return the orders actually claimed, oldest first
+    * @throws java.sql.SQLException when an update failed
+    */
+   public List<PendingOrder> claim(int storeID, int count) throws SQLException {
+      List<PendingOrder> claimed = new ArrayList<PendingOrder>();
+      boolean refreshed = false;
+      while (claimed.size() < count) {
+         ConcurrentSkipListSet<PendingOrder> queue = this._queues.get(storeID);
+         PendingOrder order = queue == null ? null : queue.pollFirst();
+         if (order == null) {
+            // entries claimed elsewhere may have used up the queue
+            if (refreshed)
+               break;
+            refresh(storeID);
+            refreshed = true;
+            continue;
+         }
+         this._byOrderID.remove(order.orderID, order);
+         this._batcher.remove(order.orderID);
+
+         int updated;
+         try {
+            updated = this._esql.getShards().update(order.storeID,
+               OrderStatus.transitionStatement(order.orderID, new Timestamp(order.orderTimestamp).toString(),
+                                               PENDING, CLAIMED, OrderStatus.ANY_VERSION));
+         } catch (SQLException e) {
+            // the order is still pending in the database, put it back
+            offer(order.orderID, order.storeID, order.orderTimestamp);
+            throw e;
+         }
+         if (updated == 1)
+            claimed.add(order);
+      }//end while
+      return claimed;
+   }//end claim
+
+   /**
+    * Claims the oldest delivery batch of a store with one UPDATE.  Orders
+    * claimed elsewhere in the meantime don't match the update and are left
+    * out of the batch.  An empty store is refreshed from the database
+    * first.
+    *
+    * @param storeID the store to take a batch from
+    * @param login the driver claiming it
+    * @return the claimed batch, or null if the store has no pending orders
+    * @throws java.sql.SQLException when the update failed
+    */
+   public DeliveryBatcher.Claimed claimBatch(int storeID, String login) throws SQLException {
+      DeliveryBatcher.Batch batch = this._batcher.pollOldest(storeID);
+      if (batch == null) {
+         refresh(storeID);
+         batch = this._batcher.pollOldest(storeID);
+         if (batch == null)
+            return null;
+      }
+
+      // off the per-order queue too, unless a single claim took it meanwhile
+      List<PendingOrder> orders = new ArrayList<PendingOrder>();
+      ConcurrentSkipListSet<PendingOrder> queue = this._queues.get(storeID);
+      for (PendingOrder order : batch.orders()) {
+         if (this._byOrderID.remove(order.orderID, order)) {
+            if (queue != null)
+               queue.remove(order);
+            orders.add(order);
+         }
+      }
+      if (orders.isEmpty())
+         return claimBatch(storeID, login);
+
+      int updated;
+      int batchID;
+      try {
+         batchID = this._esql.executeQueryAndReturnColumns(NEXT_BATCH_QUERY).getInt(0, 0);
+         updated = this._esql.getShards().update(storeID, OrderStatus.claimBatchStatement(batchID, login, storeID,
+            orderIDs(orders), orders.get(0).orderTimestamp, orders.get(orders.size() - 1).orderTimestamp));
+      } catch (SQLException e) {
+         // the orders are still pending in the database, put them back
+         for (PendingOrder order : orders)
+            offer(order.orderID, order.storeID, order.orderTimestamp);
+         throw e;
+      }
+
+      if (updated < orders.size()) {
+         // someone else got some of them; keep the ones this update claimed
+         ColumnarResult members = this._esql.getShards().queryColumns(storeID,
+            "SELECT orderID FROM FoodOrder WHERE storeID = " + storeID + " AND batchID = " + batchID);
+         List<Integer> claimedIDs = new ArrayList<Integer>();
+         for (int row = 0; row < members.rowCount(); row++)
+            claimedIDs.add(members.getInt(row, 0));
+         List<PendingOrder> claimed = new ArrayList<PendingOrder>();
+         for (PendingOrder order : orders) {
+            if (claimedIDs.contains(order.orderID))
+               claimed.add(order);
+         }
+         orders = claimed;
+      }
+      return new DeliveryBatcher.Claimed(batchID, storeID, orders);
+   }//end claimBatch
+
+   /**
+    * Finishes a claimed batch with one UPDATE: delivered (complete) or
+    * handed back (Pending, queued again).  Only the driver who claimed the
+    * batch can finish it.
+    *
+    * @param storeID the batch's store
+    * @param batchID the batch
+    * @param login the driver finishing it
+    * @param status OrderStatus.COMPLETE, INCOMPLETE or PENDING
+    * @return the orders of the batch that changed, none if the batch has
+    *         no orders claimed by login
+    * @throws java.sql.SQLException when the update failed
+    */
+   public List<Integer> finishBatch(int storeID, int batchID, String login, String status) throws SQLException {
+      int updated = this._esql.getShards().update(storeID,
+         OrderStatus.batchTransitionStatement(storeID, batchID, login, CLAIMED, status));
+      List<Integer> changed = new ArrayList<Integer>();
+      if (updated == 0)
+         return changed;
+
+      // the batch's orders now in the new status, for notifications
+      ColumnarResult members = this._esql.getShards().queryColumns(storeID,
+         "SELECT orderID FROM FoodOrder WHERE storeID = " + storeID + " AND batchID = " + batchID
+         + " AND batchClaimedBy = '" + login.replace("'", "''") + "' AND orderStatus = '" + status + "'");
+      for (int row = 0; row < members.rowCount(); row++)
+         changed.add(members.getInt(row, 0));
+      if (status.equals(PENDING))
+         refresh(storeID);
+      return changed;
+   }//end finishBatch
+
+   private static int[] orderIDs(List<PendingOrder> orders) {
+      int[] ids = new int[orders.size()];
+      for (int i = 0; i < ids.length; i++)
+         ids[i] = orders.get(i).orderID;
+      return ids;
+   }//end orderIDs
+
+}//end DispatchQueue
@@ -0,0 +1,267 @@
+/*
+ * Idempotent order submission
+ * ===========================
+ *
+ * Recognises a retried order by its client idempotency key.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A key is checked in three tiers:
+ *
+ *    recent keys   bounded LRU map of key -> orderID for the keys placed
+ *                  or looked up lately; a hit is a retry
+ *    Bloom filter  every key in the deduplication window; "definitely
+ *                  absent" means a new key, with no database round trip
+ *    database      OrderIdempotency, only asked on a Bloom filter hit
+ *                  (or before the filter is loaded)
+ *
+ * The key is stored in OrderIdempotency in the same transaction as the
+ * order (by place_order, see OrderJournal), and its primary key makes the database the
+ * final word: if two processes race on a key, or the key was placed by
+ * another process after the filter was loaded, place_order returns the
+ * order placed first and the journal reports it (see OrderJournal.retryOf).
+ *
+ * Every PURGE_INTERVAL_HOURS keys past the window are deleted and the
+ * filter is rebuilt from the remaining ones, which also picks up the keys
+ * of other processes.
+ */
+public class IdempotencyGuard {
+
+   // how long a key is remembered
+   public static final int WINDOW_HOURS = 24;
+
+   public static final int MAX_KEY_LENGTH = 64;
+
+   private static final int RECENT_KEYS = 10000;
+
+   private static final long PURGE_INTERVAL_HOURS = 1;
+
+   // 2^20 bits and 7 hashes: about 1% false positives at 100k keys
+   private static final int BLOOM_BITS = 1 << 20;
+   private static final int BLOOM_HASHES = 7;
+
+   private final PizzaStore _esql;
+   private ScheduledExecutorService _scheduler = null;
+   // guarded by this
+   private long[] _bloom = new long[BLOOM_BITS / 64];
+   private volatile boolean _loaded = false;
+
+   // key -> orderID, least recently used first; guarded by this
+   private final LinkedHashMap<String, Integer> _recent = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+         return size() > RECENT_KEYS;
+      }
+   };
+
+   public IdempotencyGuard(PizzaStore esql) {
+      this._esql = esql;
+   }//end IdempotencyGuard
+
+   /**
+    * Loads the keys inside the window into a new Bloom filter, which
+    * replaces the current one.  Until this is done every lookup asks the
+    * database.
+    *
+    * @return the number of keys loaded
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int load() throws SQLException {
+      List<List<String>> results = this._esql.getShards().queryAll(
+         "SELECT idempotencyKey FROM OrderIdempotency WHERE createdAt > now() - interval '"
+         + WINDOW_HOURS + " hours'", -1, -1);
+      long[] bloom = new long[BLOOM_BITS / 64];
+      for (List<String> record : results)
+         addToBloom(bloom, record.get(0));
+      synchronized (this) {
+         // keys recorded meanwhile are kept
+         for (String key : this._recent.keySet())
+            addToBloom(bloom, key);
+         this._bloom = bloom;
+      }
+      this._loaded = true;
+      return results.size();
+   }//end load
+
+   /**
+    * Deletes the keys past the window on the global database and every
+    * order shard.
+    *
+    * @return the number of keys deleted
+    * @throws java.sql.SQLException when failed to execute the delete
+    */
+   public int purge() throws SQLException {
+      int deleted = 0;
+      List<Connection> connections = this._esql.getShards().openAllConnections();
+      try {
+         for (Connection conn : connections) {
+            Statement stmt = conn.createStatement();
+            try {
+               deleted += stmt.executeUpdate("DELETE FROM OrderIdempotency WHERE createdAt <= now() - interval '"
+                  + WINDOW_HOURS + " hours'");
+            } finally {
+               stmt.close();
+            }
+         }
+      } finally {
+         for (Connection conn : connections)
+            conn.close();
+      }
+      return deleted;
+   }//end purge
+
+   /**
+    * Purges and reloads every PURGE_INTERVAL_HOURS in the background; the
+    * first load is left to startup.
+    */
+   public void start() {
+      this._scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "idempotency-key-purge");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this._scheduler.scheduleAtFixedRate(new Runnable() {
+         public void run() {
+            try {
+               purge();
+               load();
+            } catch (SQLException e) {
+               System.err.println("Error purging idempotency keys: " + e.getMessage());
+            }
+         }
+      }, PURGE_INTERVAL_HOURS, PURGE_INTERVAL_HOURS, TimeUnit.HOURS);
+   }//end start
+
+   /**
+    * Stops the background schedule.
+    */
+   public void stop() {
+      if (this._scheduler != null)
+         this._scheduler.shutdownNow();
+   }//end stop
+
+   /**
+    * @param key the client's idempotency key
+    * @return the orderID placed with the key, or -1 for a new key
+    * @throws java.sql.SQLException when the database had to be asked and failed
+    */
+   public int lookup(String key) throws SQLException {
+      synchronized (this) {
+         Integer orderID = this._recent.get(key);
+         if (orderID != null)
+            return orderID;
+         if (this._loaded && !mightContain(key))
+            return -1;
+      }
+
+      List<List<String>> results = this._esql.getShards().queryAll(
+         "SELECT orderID FROM OrderIdempotency WHERE idempotencyKey = '" + key + "'"
+         + " AND createdAt > now() - interval '" + WINDOW_HOURS + " hours'", -1, -1);
+      if (results.isEmpty())
+         return -1;
+      int orderID = Integer.parseInt(results.get(0).get(0).trim());
+      synchronized (this) {
+         this._recent.put(key, orderID);
+      }
+      return orderID;
+   }//end lookup
+
+   /**
+    * The lookup without the database, for when it can't be reached: only
+    * the keys this process placed or looked up lately are known.
+    *
+    * @param key the client's idempotency key
+    * @return the orderID placed with the key, or -1 if it isn't known here
+    */
+   public synchronized int lookupLocal(String key) {
+      Integer orderID = this._recent.get(key);
+      return orderID == null ? -1 : orderID;
+   }//end lookupLocal
+
+   /**
+    * Records the order placed with a key, unless a concurrent submission in
+    * this process recorded one first.
+    *
+    * @param key the client's idempotency key
+    * @param orderID the order about to be placed with it
+    * @return orderID, or the order recorded first
+    */
+   public synchronized int record(String key, int orderID) {
+      Integer first = this._recent.get(key);
+      if (first != null)
+         return first;
+      this._recent.put(key, orderID);
+      addToBloom(this._bloom, key);
+      return orderID;
+   }//end record
+
+   /**
+    * Replaces the order recorded for a key, once the database reported
+    * that the key had been placed with another order.
+    */
+   public synchronized void remember(String key, int orderID) {
+      this._recent.put(key, orderID);
+      addToBloom(this._bloom, key);
+   }//end remember
+
+   /**
+    * Drops a key recorded with an order that was never placed (it could not
+    * be journaled, or the database rejected it), so that a retry with the
+    * same key places the order.
+    *
+    * @param key the client's idempotency key
+    * @param orderID the order recorded with it
+    */
+   public synchronized void forget(String key, int orderID) {
+      Integer recorded = this._recent.get(key);
+      if (recorded != null && recorded == orderID)
+         this._recent.remove(key);
+   }//end forget
+
+   private static void addToBloom(long[] bloom, String key) {
+      long h = hash(key);
+      int h1 = (int) h, h2 = (int) (h >>> 32);
+      for (int i = 0; i < BLOOM_HASHES; i++) {
+         int bit = ((h1 + i * h2) & 0x7fffffff) % BLOOM_BITS;
+         bloom[bit >>> 6] |= 1L << bit;
+      }
+   }//end addToBloom
+
+   private boolean mightContain(String key) {
+      long h = hash(key);
+      int h1 = (int) h, h2 = (int) (h >>> 32);
+      for (int i = 0; i < BLOOM_HASHES; i++) {
+         int bit = ((h1 + i * h2) & 0x7fffffff) % BLOOM_BITS;
+         if ((this._bloom[bit >>> 6] & (1L << bit)) == 0)
+            return false;
+      }
+      return true;
+   }//end mightContain
+
+   // 64-bit FNV-1a over the UTF-8 bytes, split into two 32-bit hashes above
+   private static long hash(String key) {
+      long h = 0xcbf29ce484222325L;
+      for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+         h ^= b & 0xff;
+         h *= 0x100000001b3L;
+      }
+      return h;
+   }//end hash
+
+}//end IdempotencyGuard
@@ -0,0 +1,143 @@
+/*
+ * Ingredient index
+ * ================
+ *
+ * Dictionary-encoded ingredients with one bitset per menu item, for
+ * "contains" and "doesn't contain" menu filters.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every distinct ingredient (trimmed, case-insensitive) gets a small
+ * integer ID the first time it is seen; IDs are never reused, so masks
+ * built earlier stay valid.  Each item keeps its ingredients as a long[]
+ * bitset over those IDs, which turns an include/exclude filter into a few
+ * word-wise ANDs instead of splitting and comparing strings per row.
+ *
+ * Kept in step with MenuCatalog as a listener.
+ */
+public class IngredientIndex implements MenuCatalog.Listener {
+
+   // normalised ingredient -> ID, and ID -> ingredient as first spelled
+   private final Map<String, Integer> _ids = new HashMap<String, Integer>();
+   private final List<String> _names = new ArrayList<String>();
+
+   // itemName -> ingredient bitset
+   private final Map<String, long[]> _bits = new HashMap<String, long[]>();
+
+   /**
+    * Updates the bitsets with a catalog delta.
+    */
+   public synchronized void itemsChanged(boolean full, List<MenuCatalog.MenuItem> changed, List<String> deleted) {
+      if (full)
+         this._bits.clear();
+      for (String itemName : deleted)
+         this._bits.remove(itemName);
+      for (MenuCatalog.MenuItem item : changed) {
+         long[] bits = new long[0];
+         for (String ingredient : split(item.ingredients)) {
+            int id = intern(ingredient);
+            if ((id >>> 6) >= bits.length)
+               bits = grow(bits, (id >>> 6) + 1);
+            bits[id >>> 6] |= 1L << id;
+         }
+         this._bits.put(item.itemName, bits);
+      }
+   }//end itemsChanged
+
+   /**
+    * @return every ingredient seen so far, as first spelled
+    */
+   public synchronized List<String> ingredients() {
+      return new ArrayList<String>(this._names);
+   }//end ingredients
+
+   /**
+    * @return true if the ingredient is known (case-insensitive)
+    */
+   public synchronized boolean contains(String ingredient) {
+      return this._ids.containsKey(normalise(ingredient));
+   }//end contains
+
+   /**
+    * Builds a mask over the given ingredients; unknown ones are ignored.
+    *
+    * @param ingredients ingredient names
+    * @return the mask, to pass to matches
+    */
+   public synchronized long[] mask(List<String> ingredients) {
+      long[] mask = new long[0];
+      for (String ingredient : ingredients) {
+         Integer id = this._ids.get(normalise(ingredient));
+         if (id == null)
+            continue;
+         if ((id >>> 6) >= mask.length)
+            mask = grow(mask, (id >>> 6) + 1);
+         mask[id >>> 6] |= 1L << id;
+      }
+      return mask;
+   }//end mask
+
+   /**
+    * @param itemName the item to test
+    * @param include mask of ingredients the item must all have
+    * @param exclude mask of ingredients the item must have none of
+    * @return true if the item passes both masks
+    */
+   public synchronized boolean matches(String itemName, long[] include, long[] exclude) {
+      long[] bits = this._bits.get(itemName);
+      if (bits == null)
+         return false;
+      for (int i = 0; i < include.length; i++) {
+         long word = i < bits.length ? bits[i] : 0L;
+         if ((word & include[i]) != include[i])
+            return false;
+      }
+      for (int i = 0; i < exclude.length && i < bits.length; i++) {
+         if ((bits[i] & exclude[i]) != 0)
+            return false;
+      }
+      return true;
+   }//end matches
+
+   /**
+    * Splits a comma-separated ingredient list, dropping empty entries.
+    */
+   public static List<String> split(String ingredients) {
+      List<String> result = new ArrayList<String>();
+      if (ingredients == null)
+         return result;
+      for (String ingredient : ingredients.split(",")) {
+         if (!ingredient.trim().isEmpty())
+            result.add(ingredient.trim());
+      }
+      return result;
+   }//end split
+
+   private int intern(String ingredient) {
+      String key = normalise(ingredient);
+      Integer id = this._ids.get(key);
+      if (id == null) {
+         id = this._names.size();
+         this._ids.put(key, id);
+         this._names.add(ingredient);
+      }
+      return id;
+   }//end intern
+
+   private static String normalise(String ingredient) {
+      return ingredient.trim().toLowerCase();
+   }//end normalise
+
+   private static long[] grow(long[] bits, int words) {
+      long[] grown = new long[words];
+      System.arraycopy(bits, 0, grown, 0, bits.length);
+      return grown;
+   }//end grow
+
+}//end IngredientIndex
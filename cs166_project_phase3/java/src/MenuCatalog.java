@@ -0,0 +1,269 @@
+/*
+ * Versioned menu
+ * ==============
+ *
+ * Local copy of Items that is revalidated against the menu version instead
+ * of being downloaded on every screen.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The menu carries a monotonically increasing version (MenuVersion.version,
+ * bumped by a trigger on every insert, update or delete of Items; see
+ * create_tables.sql).
+ *
+ * fetch answers a client that knows some version with "not modified", the
+ * items changed and deleted since then, or the full menu.  This process
+ * keeps its own copy the same way: revalidate costs one single-row query
+ * when nothing changed, on the read replica when it is close enough (see
+ * ReplicaRouter).  Only a newer version fetches the changes, from the
+ * primary, so the version and the changes come from one database.
+ */
+public class MenuCatalog {
+
+   /**
+    * One row of Items.
+    */
+   public static class MenuItem {
+      public final String itemName;
+      public final String ingredients;
+      public final String typeOfItem;
+      public final String price;
+      public final long priceCents;
+      public final String description;
+      public final long menuVersion;
+
+      public MenuItem(String itemName, String ingredients, String typeOfItem, String price,
+                      String description, long menuVersion) {
+         this(itemName, ingredients, typeOfItem, ColumnarResult.parseCents(price), description, menuVersion);
+      }
+
+      public MenuItem(String itemName, String ingredients, String typeOfItem, long priceCents,
+                      String description, long menuVersion) {
+         this.itemName = itemName;
+         this.ingredients = ingredients;
+         this.typeOfItem = typeOfItem;
+         this.price = PricingEngine.format(priceCents);
+         this.priceCents = priceCents;
+         this.description = description;
+         this.menuVersion = menuVersion;
+      }
+
+      /**
+       * @return the item the way SELECT * FROM Items used to print it
+       */
+      public List<String> toRecord() {
+         return Arrays.asList(itemName, ingredients, typeOfItem, price, description);
+      }
+   }//end MenuItem
+
+   /**
+    * Answer to a conditional menu fetch.
+    */
+   public static class Response {
+      public static final int NOT_MODIFIED = 0;
+      public static final int DELTA = 1;
+      public static final int FULL = 2;
+
+      public final int status;
+      public final long version;
+      public final List<MenuItem> changed;
+      public final List<String> deleted;
+
+      public Response(int status, long version, List<MenuItem> changed, List<String> deleted) {
+         this.status = status;
+         this.version = version;
+         this.changed = changed;
+         this.deleted = deleted;
+      }
+   }//end Response
+
+   /**
+    * Told about every change applied to the local copy.
+    */
+   public interface Listener {
+      /**
+       * @param full true if the local copy was replaced rather than patched
+       * @param changed items added or updated
+       * @param deleted names of items removed
+       */
+      void itemsChanged(boolean full, List<MenuItem> changed, List<String> deleted);
+   }//end Listener
+
+   public static final String MENU_COLUMNS = "itemName, ingredients, typeOfItem, price, description, menuVersion";
+
+   private final PizzaStore _esql;
+
+   // local copy, by itemName
+   private final Map<String, MenuItem> _items = new TreeMap<String, MenuItem>();
+   private long _version = 0;
+   private final List<Listener> _listeners = new ArrayList<Listener>();
+
+   // current version learned elsewhere (the login prefetch), trusted
+   // until _notedUntil instead of asking MenuVersion
+   private long _notedVersion = -1;
+   private long _notedUntil = 0;
+
+   public MenuCatalog(PizzaStore esql) {
+      this._esql = esql;
+   }//end MenuCatalog
+
+   /**
+    * Registers a listener for changes to the local copy.
+    */
+   public synchronized void addListener(Listener listener) {
+      this._listeners.add(listener);
+   }//end addListener
+
+   /**
+    * Conditional fetch for a client that has the menu at knownVersion
+    * (0 for none).
+    *
+    * @param knownVersion the version the client has
+    * @return not modified, the delta since knownVersion, or the full menu
+    * @throws java.sql.SQLException when failed to execute the queries
+    */
+   public Response fetch(long knownVersion) throws SQLException {
+      long current = this._esql.executeQueryAndReturnColumns("SELECT version FROM MenuVersion").getLong(0, 0);
+      if (knownVersion == current)
+         return new Response(Response.NOT_MODIFIED, current, Collections.<MenuItem>emptyList(),
+                             Collections.<String>emptyList());
+
+      // a client ahead of us (e.g. after a reload) can't be given a delta
+      if (knownVersion <= 0 || knownVersion > current) {
+         List<MenuItem> all = toItems(this._esql.executeQueryAndReturnColumns(
+            "SELECT " + MENU_COLUMNS + " FROM Items"));
+         return new Response(Response.FULL, versionOf(all, current), all, Collections.<String>emptyList());
+      }
+
+      List<MenuItem> changed = toItems(this._esql.executeQueryAndReturnColumns(
+         "SELECT " + MENU_COLUMNS + " FROM Items WHERE menuVersion > " + knownVersion));
+      List<String> deleted = new ArrayList<String>();
+      for (List<String> record : this._esql.executeQueryAndReturnResult(
+            "SELECT itemName FROM ItemsDeleted WHERE menuVersion > " + knownVersion))
+         deleted.add(record.get(0));
+      return new Response(Response.DELTA, versionOf(changed, current), changed, deleted);
+   }//end fetch
+
+   /**
+    * Brings the local copy up to date.
+    *
+    * @return true if anything changed
+    * @throws java.sql.SQLException when failed to execute the queries
+    */
+   public synchronized boolean revalidate() throws SQLException {
+      if (this._notedVersion == this._version && System.currentTimeMillis() < this._notedUntil)
+         return false;
+      // a replica behind the local copy has nothing newer either
+      if (this._version > 0 && this._esql.executeReadQueryAndReturnColumns(
+            "SELECT version FROM MenuVersion", ReplicaRouter.REFERENCE).getLong(0, 0) <= this._version)
+         return false;
+      Response response = fetch(this._version);
+      apply(response);
+      return response.status != Response.NOT_MODIFIED;
+   }//end revalidate
+
+   /**
+    * Records the current version read by another query, so revalidate can
+    * skip its version check while the local copy is at that version.
+    *
+    * @param version the version MenuVersion had
+    * @param ttlMillis how long to trust it
+    */
+   public synchronized void noteCurrentVersion(long version, long ttlMillis) {
+      this._notedVersion = version;
+      this._notedUntil = System.currentTimeMillis() + ttlMillis;
+   }//end noteCurrentVersion
+
+   /**
+    * Forgets a noted version, e.g. after the menu was changed.
+    */
+   public synchronized void forgetNotedVersion() {
+      this._notedVersion = -1;
+      this._notedUntil = 0;
+   }//end forgetNotedVersion
+
+   /**
+    * Applies a fetch response to the local copy.
+    */
+   public synchronized void apply(Response response) {
+      if (response.status == Response.NOT_MODIFIED)
+         return;
+      if (response.status == Response.FULL)
+         this._items.clear();
+      for (String itemName : response.deleted)
+         this._items.remove(itemName);
+      for (MenuItem item : response.changed)
+         this._items.put(item.itemName, item);
+      this._version = response.version;
+      for (Listener listener : this._listeners)
+         listener.itemsChanged(response.status == Response.FULL, response.changed, response.deleted);
+   }//end apply
+
+   /**
+    * @return the local copy, revalidated first
+    * @throws java.sql.SQLException when failed to execute the queries
+    */
+   public synchronized List<MenuItem> items() throws SQLException {
+      revalidate();
+      return new ArrayList<MenuItem>(this._items.values());
+   }//end items
+
+   /**
+    * @return the local copy as a full response, e.g. to save it and apply
+    *         it again on the next start
+    */
+   public synchronized Response snapshot() {
+      return new Response(Response.FULL, this._version, new ArrayList<MenuItem>(this._items.values()),
+                          Collections.<String>emptyList());
+   }//end snapshot
+
+   /**
+    * Looks an item up in the local copy without revalidating it.
+    *
+    * @param itemName the exact item name
+    * @return the item, or null if the local copy doesn't have it
+    */
+   public synchronized MenuItem find(String itemName) {
+      return this._items.get(itemName);
+   }//end find
+
+   /**
+    * @return the version of the local copy
+    */
+   public synchronized long version() {
+      return this._version;
+   }//end version
+
+   /*
+    * The version read first may be older than rows that were committed in
+    * between, so the response carries the newest version actually seen.
+    */
+   private static long versionOf(List<MenuItem> items, long current) {
+      long version = current;
+      for (MenuItem item : items)
+         version = Math.max(version, item.menuVersion);
+      return version;
+   }//end versionOf
+
+   // columns in the order of MENU_COLUMNS
+   private static List<MenuItem> toItems(ColumnarResult results) {
+      List<MenuItem> items = new ArrayList<MenuItem>(results.rowCount());
+      for (int row = 0; row < results.rowCount(); row++) {
+         items.add(new MenuItem(results.getString(row, 0), results.getString(row, 1), results.getString(row, 2),
+                                results.getCents(row, 3), results.getString(row, 4), results.getLong(row, 5)));
+      }
+      return items;
+   }//end toItems
+
+}//end MenuCatalog
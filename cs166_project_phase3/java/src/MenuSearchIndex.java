@@ -0,0 +1,172 @@
+/*
+ * Menu search
+ * ===========
+ *
+ * In-memory full-text search over item names, ingredients and descriptions.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Inverted index over the menu, kept in step with MenuCatalog.
+ *
+ * Text is lower-cased and split on anything that is not a letter or digit.
+ * Every term maps to the items containing it with a weight per field
+ * (name > ingredients > description).  Terms are kept sorted, so a query
+ * term also matches every indexed term it is a prefix of.  All query terms
+ * must match; results are ranked by summed weight, exact term matches count
+ * double, and ties go alphabetically.
+ *
+ * The catalog calls itemsChanged with its deltas, so a menu update only
+ * re-indexes the items that changed.  Searches never touch the database.
+ */
+public class MenuSearchIndex implements MenuCatalog.Listener {
+
+   private static final int NAME_WEIGHT = 4;
+   private static final int INGREDIENTS_WEIGHT = 2;
+   private static final int DESCRIPTION_WEIGHT = 1;
+
+   // term -> (itemName -> weight)
+   private final TreeMap<String, Map<String, Integer>> _postings = new TreeMap<String, Map<String, Integer>>();
+
+   // itemName -> its terms, so an item can be taken out again
+   private final Map<String, List<String>> _termsOf = new HashMap<String, List<String>>();
+
+   /**
+    * Updates the index with a catalog delta.
+    */
+   public synchronized void itemsChanged(boolean full, List<MenuCatalog.MenuItem> changed, List<String> deleted) {
+      if (full) {
+         this._postings.clear();
+         this._termsOf.clear();
+      }
+      for (String itemName : deleted)
+         remove(itemName);
+      for (MenuCatalog.MenuItem item : changed) {
+         remove(item.itemName);
+         add(item);
+      }
+   }//end itemsChanged
+
+   /**
+    * Searches the menu.
+    *
+    * @param query free text, e.g. "pepp pizza"
+    * @param limit maximum number of results
+    * @return matching item names, best match first
+    */
+   public synchronized List<String> search(String query, int limit) {
+      List<String> terms = tokenize(query);
+      if (terms.isEmpty())
+         return new ArrayList<String>();
+
+      Map<String, Integer> scores = null;
+      for (String term : terms) {
+         Map<String, Integer> termScores = new HashMap<String, Integer>();
+         SortedMap<String, Map<String, Integer>> matches = this._postings.subMap(term, term + Character.MAX_VALUE);
+         for (Map.Entry<String, Map<String, Integer>> match : matches.entrySet()) {
+            int factor = match.getKey().equals(term) ? 2 : 1;
+            for (Map.Entry<String, Integer> posting : match.getValue().entrySet()) {
+               Integer old = termScores.get(posting.getKey());
+               int score = posting.getValue() * factor;
+               if (old == null || old < score)
+                  termScores.put(posting.getKey(), score);
+            }
+         }
+
+         // every term has to match
+         if (scores == null) {
+            scores = termScores;
+         } else {
+            Map<String, Integer> both = new HashMap<String, Integer>();
+            for (Map.Entry<String, Integer> e : scores.entrySet()) {
+               Integer other = termScores.get(e.getKey());
+               if (other != null)
+                  both.put(e.getKey(), e.getValue() + other);
+            }
+            scores = both;
+         }
+         if (scores.isEmpty())
+            break;
+      }
+
+      final Map<String, Integer> ranked = scores;
+      List<String> result = new ArrayList<String>(ranked.keySet());
+      Collections.sort(result, new Comparator<String>() {
+         public int compare(String a, String b) {
+            int byScore = ranked.get(b) - ranked.get(a);
+            return byScore != 0 ? byScore : a.compareTo(b);
+         }
+      });
+      return result.size() > limit ? result.subList(0, limit) : result;
+   }//end search
+
+   /**
+    * Splits text into lower-case terms of letters and digits.
+    */
+   public static List<String> tokenize(String text) {
+      List<String> terms = new ArrayList<String>();
+      if (text == null)
+         return terms;
+      StringBuilder term = new StringBuilder();
+      for (int i = 0; i <= text.length(); i++) {
+         char c = i < text.length() ? text.charAt(i) : ' ';
+         if (Character.isLetterOrDigit(c)) {
+            term.append(Character.toLowerCase(c));
+         } else if (term.length() > 0) {
+            terms.add(term.toString());
+            term.setLength(0);
+         }
+      }
+      return terms;
+   }//end tokenize
+
+   private void add(MenuCatalog.MenuItem item) {
+      Map<String, Integer> weights = new HashMap<String, Integer>();
+      addTerms(weights, item.itemName, NAME_WEIGHT);
+      addTerms(weights, item.ingredients, INGREDIENTS_WEIGHT);
+      addTerms(weights, item.description, DESCRIPTION_WEIGHT);
+
+      for (Map.Entry<String, Integer> e : weights.entrySet()) {
+         Map<String, Integer> postings = this._postings.get(e.getKey());
+         if (postings == null) {
+            postings = new HashMap<String, Integer>();
+            this._postings.put(e.getKey(), postings);
+         }
+         postings.put(item.itemName, e.getValue());
+      }
+      this._termsOf.put(item.itemName, new ArrayList<String>(weights.keySet()));
+   }//end add
+
+   // a term found in several fields keeps its best weight
+   private static void addTerms(Map<String, Integer> weights, String text, int weight) {
+      for (String term : tokenize(text)) {
+         Integer old = weights.get(term);
+         if (old == null || old < weight)
+            weights.put(term, weight);
+      }
+   }//end addTerms
+
+   private void remove(String itemName) {
+      List<String> terms = this._termsOf.remove(itemName);
+      if (terms == null)
+         return;
+      for (String term : terms) {
+         Map<String, Integer> postings = this._postings.get(term);
+         if (postings == null)
+            continue;
+         postings.remove(itemName);
+         if (postings.isEmpty())
+            this._postings.remove(term);
+      }
+   }//end remove
+
+}//end MenuSearchIndex
@@ -0,0 +1,545 @@
+/*
+ * Cold order-history archive
+ * ==========================
+ *
+ * Moves completed orders past the retention window out of FoodOrder and
+ * ItemsInOrder into compressed, column-oriented files on local disk, and
+ * reads them back for order history.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Archive of closed orders, one directory of files partitioned by month.
+ *
+ * Each file holds up to CHUNK_SIZE orders of one month, sorted by login, and
+ * their line items.  Every column is dictionary or plainly encoded and
+ * gzipped on its own, so a reader decompresses the login column first and
+ * only touches the rest when a row matches.  The index file keeps the
+ * min/max login, orderID and orderTimestamp of every file, which lets
+ * lookups skip whole files without opening them.
+ *
+ * Archiving deletes the archived orders from the live tables one chunk per
+ * transaction (line items go with them through ON DELETE CASCADE), after the
+ * chunk's file is safely on disk.
+ */
+public class OrderArchive {
+
+   public static final String CLOSED_STATUS = OrderStatus.COMPLETE;
+
+   // orders per archive file, and per delete transaction
+   private static final int CHUNK_SIZE = 2000;
+
+   private static final int MAGIC = 0x505a4331; // "PZC1"
+   private static final String INDEX_FILE = "index";
+
+   // column numbers in an archive file
+   private static final int COL_ORDER_ID = 0;
+   private static final int COL_LOGIN = 1;
+   private static final int COL_STORE_ID = 2;
+   private static final int COL_TOTAL_CENTS = 3;
+   private static final int COL_TIMESTAMP = 4;
+   private static final int COL_STATUS = 5;
+   private static final int COL_ITEM_ORDER_ID = 6;
+   private static final int COL_ITEM_NAME = 7;
+   private static final int COL_ITEM_QUANTITY = 8;
+   private static final int NUM_COLUMNS = 9;
+
+   /**
+    * Index entry describing one archive file.
+    */
+   private static class FileInfo {
+      String name;
+      long minTimestamp, maxTimestamp;
+      String minLogin, maxLogin;
+      int minOrderID, maxOrderID;
+      int rows;
+
+      String toLine() {
+         return name + "\t" + minTimestamp + "\t" + maxTimestamp + "\t" + minLogin + "\t" + maxLogin
+            + "\t" + minOrderID + "\t" + maxOrderID + "\t" + rows;
+      }
+
+      static FileInfo fromLine(String line) {
+         String[] f = line.split("\t");
+         FileInfo info = new FileInfo();
+         info.name = f[0];
+         info.minTimestamp = Long.parseLong(f[1]);
+         info.maxTimestamp = Long.parseLong(f[2]);
+         info.minLogin = f[3];
+         info.maxLogin = f[4];
+         info.minOrderID = Integer.parseInt(f[5]);
+         info.maxOrderID = Integer.parseInt(f[6]);
+         info.rows = Integer.parseInt(f[7]);
+         return info;
+      }
+   }//end FileInfo
+
+   /**
+    * Orders and line items of one archive file, column by column.
+    */
+   private static class Chunk {
+      int[] orderID;
+      String[] login;
+      int[] storeID;
+      long[] totalCents;
+      long[] timestamp;
+      String[] status;
+      int[] itemOrderID;
+      String[] itemName;
+      int[] itemQuantity;
+   }//end Chunk
+
+   private final PizzaStore _esql;
+   private final File _dir;
+   private List<FileInfo> _index = null;
+
+   public OrderArchive(PizzaStore esql, String directory) {
+      this._esql = esql;
+      this._dir = new File(directory);
+   }//end OrderArchive
+
+   /**
+    * Archives every closed order placed before now - retentionDays.
+    *
+    * @param retentionDays how many days of closed orders stay live
+    * @return the number of orders moved to the archive
+    * @throws java.sql.SQLException when reading or deleting failed
+    * @throws java.io.IOException when an archive file could not be written
+    */
+   public synchronized int archive(int retentionDays) throws SQLException, IOException {
+      if (!this._dir.exists() && !this._dir.mkdirs())
+         throw new IOException("cannot create archive directory " + this._dir);
+
+      Timestamp cutoff = new Timestamp(System.currentTimeMillis() - retentionDays * 24L * 3600 * 1000);
+      Connection conn = this._esql.openConnection();
+      int archived = 0;
+      try {
+         conn.setAutoCommit(false);
+         List<String> months = queryColumn(conn,
+            "SELECT DISTINCT date_trunc('month', orderTimestamp) FROM FoodOrder"
+            + " WHERE orderStatus = '" + CLOSED_STATUS + "' AND orderTimestamp < '" + cutoff + "' ORDER BY 1");
+         conn.commit();
+
+         for (String month : months) {
+            String monthStart = month.substring(0, 10);
+            String range = "orderTimestamp >= DATE '" + monthStart + "'"
+               + " AND orderTimestamp < DATE '" + monthStart + "' + interval '1 month'"
+               + " AND orderTimestamp < '" + cutoff + "'";
+            // the month's partition, chunk by chunk; archived rows are deleted, so
+            // every pass starts from the top again
+            while (true) {
+               int moved = archiveChunk(conn, monthStart, range);
+               archived += moved;
+               if (moved < CHUNK_SIZE)
+                  break;
+            }
+         }
+      } finally {
+         conn.close();
+      }
+      return archived;
+   }//end archive
+
+   /**
+    * Returns the archived orders of a user, shaped like the rows of
+    * SELECT * FROM FoodOrder.  Files whose login range cannot contain the
+    * user are skipped without being opened.
+    */
+   public synchronized List<List<String>> ordersFor(String login) throws IOException {
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (FileInfo info : index()) {
+         if (login.compareTo(info.minLogin) < 0 || login.compareTo(info.maxLogin) > 0)
+            continue;
+         Chunk chunk = read(info, login);
+         for (int i = 0; i < chunk.login.length; i++) {
+            if (chunk.login[i].equals(login))
+               result.add(orderRecord(chunk, i));
+         }
+      }
+      return result;
+   }//end ordersFor
+
+   /**
+    * Looks up one archived order of a user.
+    *
+    * @return the order row followed by its [itemName, quantity] rows, or an
+    *         empty list if the order is not archived
+    */
+   public synchronized List<List<String>> findOrder(String login, int orderID) throws IOException {
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (FileInfo info : index()) {
+         if (orderID < info.minOrderID || orderID > info.maxOrderID)
+            continue;
+         if (login.compareTo(info.minLogin) < 0 || login.compareTo(info.maxLogin) > 0)
+            continue;
+         Chunk chunk = read(info, login);
+         if (chunk.orderID == null)
+            continue;
+         for (int i = 0; i < chunk.orderID.length; i++) {
+            if (chunk.orderID[i] != orderID || !chunk.login[i].equals(login))
+               continue;
+            result.add(orderRecord(chunk, i));
+            for (int j = 0; j < chunk.itemOrderID.length; j++) {
+               if (chunk.itemOrderID[j] == orderID) {
+                  List<String> item = new ArrayList<String>();
+                  item.add(chunk.itemName[j]);
+                  item.add(String.valueOf(chunk.itemQuantity[j]));
+                  result.add(item);
+               }
+            }
+            return result;
+         }
+      }
+      return result;
+   }//end findOrder
+
+   /*
+    * Archives up to CHUNK_SIZE closed orders of one month: write the file,
+    * add it to the index, then delete the rows in one transaction.
+    */
+   private int archiveChunk(Connection conn, String monthStart, String range) throws SQLException, IOException {
+      Statement stmt = conn.createStatement();
+      Chunk chunk = new Chunk();
+      List<Integer> ids = new ArrayList<Integer>();
+      try {
+         ResultSet rs = stmt.executeQuery(
+            "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder"
+            + " WHERE " + range + " AND orderStatus = '" + CLOSED_STATUS + "'"
+            + " ORDER BY login COLLATE \"C\", orderTimestamp LIMIT " + CHUNK_SIZE);
+         List<Object[]> rows = new ArrayList<Object[]>();
+         while (rs.next()) {
+            rows.add(new Object[] { rs.getInt(1), rs.getString(2).trim(), rs.getInt(3),
+               rs.getBigDecimal(4).movePointRight(2).longValue(), rs.getTimestamp(5).getTime(),
+               rs.getString(6).trim() });
+         }
+         if (rows.isEmpty()) {
+            conn.commit();
+            return 0;
+         }
+
+         int n = rows.size();
+         chunk.orderID = new int[n];
+         chunk.login = new String[n];
+         chunk.storeID = new int[n];
+         chunk.totalCents = new long[n];
+         chunk.timestamp = new long[n];
+         chunk.status = new String[n];
+         for (int i = 0; i < n; i++) {
+            Object[] row = rows.get(i);
+            chunk.orderID[i] = (Integer) row[0];
+            chunk.login[i] = (String) row[1];
+            chunk.storeID[i] = (Integer) row[2];
+            chunk.totalCents[i] = (Long) row[3];
+            chunk.timestamp[i] = (Long) row[4];
+            chunk.status[i] = (String) row[5];
+            ids.add(chunk.orderID[i]);
+         }
+
+         String idList = ids.toString().replace("[", "(").replace("]", ")");
+         rs = stmt.executeQuery("SELECT orderID, itemName, quantity FROM ItemsInOrder"
+            + " WHERE " + range + " AND orderID IN " + idList);
+         List<Object[]> items = new ArrayList<Object[]>();
+         while (rs.next())
+            items.add(new Object[] { rs.getInt(1), rs.getString(2), rs.getInt(3) });
+         chunk.itemOrderID = new int[items.size()];
+         chunk.itemName = new String[items.size()];
+         chunk.itemQuantity = new int[items.size()];
+         for (int i = 0; i < items.size(); i++) {
+            chunk.itemOrderID[i] = (Integer) items.get(i)[0];
+            chunk.itemName[i] = (String) items.get(i)[1];
+            chunk.itemQuantity[i] = (Integer) items.get(i)[2];
+         }
+
+         // the file and its index entry go first; if the delete below fails the
+         // rows are in both places and readers drop the archived copy
+         FileInfo info = write(monthStart.substring(0, 7), chunk);
+         index().add(info);
+         saveIndex();
+
+         stmt.executeUpdate("DELETE FROM FoodOrder WHERE " + range
+            + " AND orderStatus = '" + CLOSED_STATUS + "' AND orderID IN " + idList);
+         conn.commit();
+         return n;
+      } catch (SQLException e) {
+         conn.rollback();
+         throw e;
+      } finally {
+         stmt.close();
+      }
+   }//end archiveChunk
+
+   private static List<String> queryColumn(Connection conn, String query) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(query);
+         List<String> result = new ArrayList<String>();
+         while (rs.next())
+            result.add(rs.getString(1));
+         return result;
+      } finally {
+         stmt.close();
+      }
+   }//end queryColumn
+
+   private static List<String> orderRecord(Chunk chunk, int i) {
+      List<String> record = new ArrayList<String>();
+      record.add(String.valueOf(chunk.orderID[i]));
+      record.add(chunk.login[i]);
+      record.add(String.valueOf(chunk.storeID[i]));
+      long cents = chunk.totalCents[i];
+      record.add((cents / 100) + "." + (cents % 100 < 10 ? "0" : "") + (cents % 100));
+      String ts = new Timestamp(chunk.timestamp[i]).toString();
+      record.add(ts.endsWith(".0") ? ts.substring(0, ts.length() - 2) : ts);
+      record.add(chunk.status[i]);
+      return record;
+   }//end orderRecord
+
+   // ---- index ----
+
+   private List<FileInfo> index() throws IOException {
+      if (this._index != null)
+         return this._index;
+      this._index = new ArrayList<FileInfo>();
+      File file = new File(this._dir, INDEX_FILE);
+      if (!file.exists())
+         return this._index;
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty())
+               this._index.add(FileInfo.fromLine(line));
+         }
+      } finally {
+         reader.close();
+      }
+      return this._index;
+   }//end index
+
+   private void saveIndex() throws IOException {
+      File tmp = new File(this._dir, INDEX_FILE + ".tmp");
+      BufferedWriter writer = new BufferedWriter(new FileWriter(tmp));
+      try {
+         for (FileInfo info : this._index) {
+            writer.write(info.toLine());
+            writer.newLine();
+         }
+      } finally {
+         writer.close();
+      }
+      File target = new File(this._dir, INDEX_FILE);
+      if (!tmp.renameTo(target)) {
+         target.delete();
+         if (!tmp.renameTo(target))
+            throw new IOException("cannot replace archive index " + target);
+      }
+   }//end saveIndex
+
+   // ---- file format ----
+
+   private FileInfo write(String month, Chunk chunk) throws IOException {
+      byte[][] columns = new byte[NUM_COLUMNS][];
+      columns[COL_ORDER_ID] = compress(encodeInts(chunk.orderID));
+      columns[COL_LOGIN] = compress(encodeStrings(chunk.login));
+      columns[COL_STORE_ID] = compress(encodeInts(chunk.storeID));
+      columns[COL_TOTAL_CENTS] = compress(encodeLongs(chunk.totalCents));
+      columns[COL_TIMESTAMP] = compress(encodeLongs(chunk.timestamp));
+      columns[COL_STATUS] = compress(encodeStrings(chunk.status));
+      columns[COL_ITEM_ORDER_ID] = compress(encodeInts(chunk.itemOrderID));
+      columns[COL_ITEM_NAME] = compress(encodeStrings(chunk.itemName));
+      columns[COL_ITEM_QUANTITY] = compress(encodeInts(chunk.itemQuantity));
+
+      FileInfo info = new FileInfo();
+      int seq = 0;
+      do {
+         info.name = "orders-" + month + "-" + (seq++) + ".pzc";
+      } while (new File(this._dir, info.name).exists());
+
+      FileOutputStream file = new FileOutputStream(new File(this._dir, info.name));
+      try {
+         DataOutputStream out = new DataOutputStream(file);
+         out.writeInt(MAGIC);
+         out.writeInt(chunk.orderID.length);
+         out.writeInt(chunk.itemOrderID.length);
+         out.writeInt(NUM_COLUMNS);
+         for (byte[] column : columns)
+            out.writeInt(column.length);
+         for (byte[] column : columns)
+            out.write(column);
+         out.flush();
+         file.getFD().sync();
+      } finally {
+         file.close();
+      }
+
+      info.rows = chunk.orderID.length;
+      info.minTimestamp = Long.MAX_VALUE;
+      info.maxTimestamp = Long.MIN_VALUE;
+      info.minOrderID = Integer.MAX_VALUE;
+      info.maxOrderID = Integer.MIN_VALUE;
+      for (int i = 0; i < info.rows; i++) {
+         info.minTimestamp = Math.min(info.minTimestamp, chunk.timestamp[i]);
+         info.maxTimestamp = Math.max(info.maxTimestamp, chunk.timestamp[i]);
+         info.minOrderID = Math.min(info.minOrderID, chunk.orderID[i]);
+         info.maxOrderID = Math.max(info.maxOrderID, chunk.orderID[i]);
+      }
+      // compared the way readers compare, not in the database's collation
+      info.minLogin = chunk.login[0];
+      info.maxLogin = chunk.login[0];
+      for (String login : chunk.login) {
+         if (login.compareTo(info.minLogin) < 0)
+            info.minLogin = login;
+         if (login.compareTo(info.maxLogin) > 0)
+            info.maxLogin = login;
+      }
+      return info;
+   }//end write
+
+   /*
+    * Reads an archive file.  The login column is decompressed first; when no
+    * row belongs to matchLogin the other columns are never touched and are
+    * left null.
+    */
+   private Chunk read(FileInfo info, String matchLogin) throws IOException {
+      DataInputStream in = new DataInputStream(new FileInputStream(new File(this._dir, info.name)));
+      try {
+         if (in.readInt() != MAGIC)
+            throw new IOException("not an order archive file: " + info.name);
+         in.readInt(); // order rows
+         in.readInt(); // item rows
+         int numColumns = in.readInt();
+         int[] lengths = new int[numColumns];
+         for (int i = 0; i < numColumns; i++)
+            lengths[i] = in.readInt();
+         byte[][] columns = new byte[numColumns][];
+         for (int i = 0; i < numColumns; i++) {
+            columns[i] = new byte[lengths[i]];
+            in.readFully(columns[i]);
+         }
+
+         Chunk chunk = new Chunk();
+         chunk.login = decodeStrings(decompress(columns[COL_LOGIN]));
+         if (!Arrays.asList(chunk.login).contains(matchLogin))
+            return chunk;
+         chunk.orderID = decodeInts(decompress(columns[COL_ORDER_ID]));
+         chunk.storeID = decodeInts(decompress(columns[COL_STORE_ID]));
+         chunk.totalCents = decodeLongs(decompress(columns[COL_TOTAL_CENTS]));
+         chunk.timestamp = decodeLongs(decompress(columns[COL_TIMESTAMP]));
+         chunk.status = decodeStrings(decompress(columns[COL_STATUS]));
+         chunk.itemOrderID = decodeInts(decompress(columns[COL_ITEM_ORDER_ID]));
+         chunk.itemName = decodeStrings(decompress(columns[COL_ITEM_NAME]));
+         chunk.itemQuantity = decodeInts(decompress(columns[COL_ITEM_QUANTITY]));
+         return chunk;
+      } finally {
+         in.close();
+      }
+   }//end read
+
+   private static byte[] compress(byte[] raw) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+      gzip.write(raw);
+      gzip.close();
+      return bytes.toByteArray();
+   }//end compress
+
+   private static DataInputStream decompress(byte[] packed) throws IOException {
+      return new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(packed)));
+   }//end decompress
+
+   private static byte[] encodeInts(int[] values) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(values.length);
+      for (int v : values)
+         out.writeInt(v);
+      return bytes.toByteArray();
+   }//end encodeInts
+
+   private static byte[] encodeLongs(long[] values) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(values.length);
+      for (long v : values)
+         out.writeLong(v);
+      return bytes.toByteArray();
+   }//end encodeLongs
+
+   // dictionary encoding: distinct values once, then one code per row
+   private static byte[] encodeStrings(String[] values) throws IOException {
+      Map<String, Integer> codes = new HashMap<String, Integer>();
+      List<String> dictionary = new ArrayList<String>();
+      int[] rowCodes = new int[values.length];
+      for (int i = 0; i < values.length; i++) {
+         Integer code = codes.get(values[i]);
+         if (code == null) {
+            code = dictionary.size();
+            codes.put(values[i], code);
+            dictionary.add(values[i]);
+         }
+         rowCodes[i] = code;
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(dictionary.size());
+      for (String value : dictionary)
+         out.writeUTF(value);
+      out.writeInt(values.length);
+      for (int code : rowCodes)
+         out.writeInt(code);
+      return bytes.toByteArray();
+   }//end encodeStrings
+
+   private static int[] decodeInts(DataInputStream in) throws IOException {
+      int[] values = new int[in.readInt()];
+      for (int i = 0; i < values.length; i++)
+         values[i] = in.readInt();
+      return values;
+   }//end decodeInts
+
+   private static long[] decodeLongs(DataInputStream in) throws IOException {
+      long[] values = new long[in.readInt()];
+      for (int i = 0; i < values.length; i++)
+         values[i] = in.readLong();
+      return values;
+   }//end decodeLongs
+
+   private static String[] decodeStrings(DataInputStream in) throws IOException {
+      String[] dictionary = new String[in.readInt()];
+      for (int i = 0; i < dictionary.length; i++)
+         dictionary[i] = in.readUTF();
+      String[] values = new String[in.readInt()];
+      for (int i = 0; i < values.length; i++)
+         values[i] = dictionary[in.readInt()];
+      return values;
+   }//end decodeStrings
+
+}//end OrderArchive
@@ -0,0 +1,227 @@
+/*
+ * Order export
+ * ============
+ *
+ * Streams FoodOrder joined with ItemsInOrder and Items prices to a file for
+ * reporting, without holding the result in memory.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Exports order line items through a server-side cursor straight into a
+ * file channel.
+ *
+ * Rows are fetched FETCH_SIZE at a time from a cursor declared on a
+ * dedicated connection and encoded into one reusable direct buffer that is
+ * written out whenever it fills up, so memory use does not grow with the
+ * number of rows.
+ *
+ * Two formats are supported:
+ *    CSV    header line, then one line per line item
+ *    BINARY magic, then per line item: int orderID, str login, int storeID,
+ *           long orderTimestamp (epoch ms), str orderStatus,
+ *           long totalPrice (cents), str itemName, int quantity,
+ *           long price (cents); str is a short length plus UTF-8 bytes
+ */
+public class OrderExport {
+
+   public static final int CSV = 1;
+   public static final int BINARY = 2;
+
+   private static final int BINARY_MAGIC = 0x505a4531; // "PZE1"
+   private static final int FETCH_SIZE = 10000;
+   private static final int BUFFER_SIZE = 1 << 20;
+
+   private static final String CSV_HEADER =
+      "orderID,login,storeID,orderTimestamp,orderStatus,totalPrice,itemName,quantity,price\n";
+
+   private final PizzaStore _esql;
+   private final ByteBuffer _buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+   private FileChannel _channel;
+
+   public OrderExport(PizzaStore esql) {
+      this._esql = esql;
+   }//end OrderExport
+
+   /**
+    * Exports the line items of orders placed in [fromDate, toDate).
+    *
+    * @param fromDate first day to export (yyyy-mm-dd)
+    * @param toDate day after the last day to export (yyyy-mm-dd)
+    * @param storeID only export this store, or -1 for all stores
+    * @param format CSV or BINARY
+    * @param path file to write
+    * @return the number of rows written
+    * @throws java.sql.SQLException when the query failed
+    * @throws java.io.IOException when the file could not be written
+    */
+   public long export(String fromDate, String toDate, int storeID, int format, String path)
+         throws SQLException, IOException {
+      String query =
+         "SELECT F.orderID, F.login, F.storeID, F.orderTimestamp, F.orderStatus, F.totalPrice, "
+         + "I.itemName, I.quantity, M.price "
+         + "FROM FoodOrder F "
+         + "JOIN ItemsInOrder I ON I.orderID = F.orderID AND I.orderTimestamp = F.orderTimestamp "
+         + "JOIN Items M ON M.itemName = I.itemName "
+         + "WHERE F.orderTimestamp >= DATE '" + fromDate + "' AND F.orderTimestamp < DATE '" + toDate + "'"
+         + (storeID >= 0 ? " AND F.storeID = " + storeID : "");
+
+      Connection conn = this._esql.openConnection();
+      FileOutputStream file = new FileOutputStream(path);
+      long rows = 0;
+      try {
+         this._channel = file.getChannel();
+         this._buffer.clear();
+         if (format == CSV)
+            putAscii(CSV_HEADER);
+         else
+            this._buffer.putInt(BINARY_MAGIC);
+
+         // cursors only live inside a transaction
+         conn.setAutoCommit(false);
+         Statement stmt = conn.createStatement();
+         try {
+            stmt.execute("DECLARE order_export NO SCROLL CURSOR FOR " + query);
+            while (true) {
+               ResultSet rs = stmt.executeQuery("FETCH FORWARD " + FETCH_SIZE + " FROM order_export");
+               int fetched = 0;
+               while (rs.next()) {
+                  if (format == CSV)
+                     writeCsv(rs);
+                  else
+                     writeBinary(rs);
+                  fetched++;
+               }
+               rs.close();
+               rows += fetched;
+               if (fetched < FETCH_SIZE)
+                  break;
+            }//end while
+            stmt.execute("CLOSE order_export");
+            conn.commit();
+         } finally {
+            stmt.close();
+         }
+
+         drain();
+         this._channel.force(false);
+      } finally {
+         this._channel = null;
+         file.close();
+         conn.close();
+      }
+      return rows;
+   }//end export
+
+   private void writeCsv(ResultSet rs) throws SQLException, IOException {
+      putAscii(rs.getString(1));
+      putByte(',');
+      putCsvString(rs.getString(2));
+      putByte(',');
+      putAscii(rs.getString(3));
+      putByte(',');
+      putAscii(rs.getString(4));
+      putByte(',');
+      putCsvString(trim(rs.getString(5)));
+      putByte(',');
+      putAscii(rs.getString(6));
+      putByte(',');
+      putCsvString(rs.getString(7));
+      putByte(',');
+      putAscii(rs.getString(8));
+      putByte(',');
+      putAscii(rs.getString(9));
+      putByte('\n');
+   }//end writeCsv
+
+   private void writeBinary(ResultSet rs) throws SQLException, IOException {
+      ensure(64);
+      this._buffer.putInt(rs.getInt(1));
+      putString(rs.getString(2));
+      ensure(12);
+      this._buffer.putInt(rs.getInt(3));
+      this._buffer.putLong(rs.getTimestamp(4).getTime());
+      putString(trim(rs.getString(5)));
+      ensure(8);
+      this._buffer.putLong(cents(rs.getBigDecimal(6)));
+      putString(rs.getString(7));
+      ensure(12);
+      this._buffer.putInt(rs.getInt(8));
+      this._buffer.putLong(cents(rs.getBigDecimal(9)));
+   }//end writeBinary
+
+   private static long cents(BigDecimal value) {
+      return value.movePointRight(2).longValue();
+   }//end cents
+
+   private static String trim(String value) {
+      return value == null ? "" : value.trim();
+   }//end trim
+
+   private void putByte(char c) throws IOException {
+      ensure(1);
+      this._buffer.put((byte) c);
+   }//end putByte
+
+   // numbers and timestamps are plain ASCII
+   private void putAscii(String value) throws IOException {
+      if (value == null)
+         return;
+      ensure(value.length());
+      for (int i = 0; i < value.length(); i++)
+         this._buffer.put((byte) value.charAt(i));
+   }//end putAscii
+
+   private void putCsvString(String value) throws IOException {
+      if (value == null)
+         return;
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      boolean quote = value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0;
+      ensure(bytes.length * 2 + 2);
+      if (!quote) {
+         this._buffer.put(bytes);
+         return;
+      }
+      this._buffer.put((byte) '"');
+      for (byte b : bytes) {
+         if (b == '"')
+            this._buffer.put((byte) '"');
+         this._buffer.put(b);
+      }
+      this._buffer.put((byte) '"');
+   }//end putCsvString
+
+   private void putString(String value) throws IOException {
+      byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+      ensure(2 + bytes.length);
+      this._buffer.putShort((short) bytes.length);
+      this._buffer.put(bytes);
+   }//end putString
+
+   // makes room for the next n bytes by writing out the buffer
+   private void ensure(int n) throws IOException {
+      if (this._buffer.remaining() < n)
+         drain();
+   }//end ensure
+
+   private void drain() throws IOException {
+      this._buffer.flip();
+      while (this._buffer.hasRemaining())
+         this._channel.write(this._buffer);
+      this._buffer.clear();
+   }//end drain
+
+}//end OrderExport
@@ -0,0 +1,786 @@
+/*
+ * Write-ahead order journal
+ * =========================
+ *
+ * Orders are made durable on local disk first and applied to FoodOrder and
+ * ItemsInOrder in the background, so a short database outage does not lose
+ * them.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped journal of placed orders.
+ *
+ * placeOrder appends an entry and returns once it is on disk; fsyncs of
+ * concurrent appenders are batched by a flusher thread.  A replayer thread
+ * applies entries in order, each in one transaction, skipping orders whose
+ * ID is already in FoodOrder, so replaying after a crash is harmless.  The
+ * check includes the journaled orderTimestamp so it probes one partition.  Once
+ * everything is applied the journal is truncated back to its header.
+ * Each entry is applied on the database owning its store (see ShardRouter).
+ *
+ * An entry the database refuses while it is up (rather than unreachable)
+ * is not retried: its place_order call is appended to the dead-letter file
+ * next to the journal (<journal>.rejected), with the reason, so it can be
+ * fixed and run by hand, and rejection() reports it to the waiting client.
+ * An entry whose idempotency key was already placed with another order
+ * (see IdempotencyGuard) is not placed again; retryOf() reports that order.
+ *
+ * Order IDs are handed out locally from blocks reserved through the
+ * foodorder_id_block_seq sequence (ID_BLOCK_SIZE IDs per nextval), so every
+ * process gets disjoint IDs and intake keeps working while the database is
+ * down as long as a reserved block is left.  The blocks in hand are kept in
+ * the journal header and survive restarts.
+ *
+ * File layout:
+ *    header (HEADER_SIZE bytes): magic, appliedOffset, writeOffset,
+ *                                nextID, blockEnd, spareBlockEnd
+ *    records: int length, int crc32, payload
+ */
+public class OrderJournal {
+
+   // must match INCREMENT BY of foodorder_id_block_seq
+   public static final int ID_BLOCK_SIZE = 100;
+   private static final String RESERVE_BLOCK_QUERY = "SELECT nextval('foodorder_id_block_seq')";
+
+   private static final int MAGIC = 0x505a4a31; // "PZJ1"
+   private static final int HEADER_SIZE = 64;
+   private static final int POS_APPLIED = 8;
+   private static final int POS_WRITE = 16;
+   private static final int POS_NEXT_ID = 24;
+   private static final int POS_BLOCK_END = 28;
+   private static final int POS_SPARE_END = 32;
+
+   private static final int DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+   // how long the flusher lets appends accumulate before forcing
+   private static final long FLUSH_INTERVAL_MS = 2;
+   // back-off of the replayer while the database is unreachable
+   private static final long RETRY_INTERVAL_MS = 2000;
+
+   private static final String REJECTED_SUFFIX = ".rejected";
+   // outcomes kept for rejection() and retryOf(), the oldest are dropped first
+   private static final int MAX_OUTCOMES = 1000;
+
+   /**
+    * One journaled order.
+    */
+   public static class Entry {
+      public final int orderID;
+      public final String login;
+      public final int storeID;
+      public final long totalCents;
+      public final long orderTimestamp;
+      public final List<String> items;
+      public final List<Integer> quantities;
+      // client idempotency key, or null
+      public final String idempotencyKey;
+
+      public Entry(int orderID, String login, int storeID, long totalCents, long orderTimestamp,
+                   List<String> items, List<Integer> quantities) {
+         this(orderID, login, storeID, totalCents, orderTimestamp, items, quantities, null);
+      }
+
+      public Entry(int orderID, String login, int storeID, long totalCents, long orderTimestamp,
+                   List<String> items, List<Integer> quantities, String idempotencyKey) {
+         this.orderID = orderID;
+         this.login = login;
+         this.storeID = storeID;
+         this.totalCents = totalCents;
+         this.orderTimestamp = orderTimestamp;
+         this.items = items;
+         this.quantities = quantities;
+         this.idempotencyKey = idempotencyKey;
+      }
+   }//end Entry
+
+   private final PizzaStore _esql;
+   private final RandomAccessFile _file;
+   private final File _rejectedFile;
+   private final MappedByteBuffer _buffer;
+   private final int _capacity;
+
+   // all fields below are guarded by this
+   private long _appliedOffset;
+   private long _writeOffset;
+   private int _nextID;
+   private int _blockEnd;
+   private int _spareBlockEnd;
+
+   // logical entry counters; offsets move when the journal is compacted
+   private long _appendSeq = 0;
+   private long _durableSeq = 0;
+   private long _appliedSeq = 0;
+
+   // sequence number -> reason of the entries the database refused
+   private final Map<Long, String> _rejections = outcomes();
+   // sequence number -> order placed earlier with the entry's idempotency key
+   private final Map<Long, Integer> _retries = outcomes();
+   // sequence number -> total in cents that place_order charged for the entry
+   private final Map<Long, Long> _totals = outcomes();
+
+   private volatile boolean _running = true;
+   private Thread _flusher;
+   private Thread _replayer;
+   private Connection _replayConnection = null;
+
+   // replay connections to the order shards, by shard index
+   private final Map<Integer, Connection> _shardConnections = new HashMap<Integer, Connection>();
+
+   /**
+    * Opens (or creates) the journal file and recovers entries that were
+    * written but not yet applied.
+    *
+    * @param esql the store the entries are applied to
+    * @param path the journal file
+    * @throws java.io.IOException when the file cannot be mapped or is
+    *         locked by another process
+    */
+   public OrderJournal(PizzaStore esql, String path) throws IOException {
+      this._esql = esql;
+      this._capacity = DEFAULT_CAPACITY;
+
+      File file = new File(path);
+      this._rejectedFile = new File(path + REJECTED_SUFFIX);
+      boolean created = !file.exists() || file.length() < HEADER_SIZE;
+      this._file = new RandomAccessFile(file, "rw");
+      // two processes appending to one journal would overwrite each other
+      FileLock lock;
+      try {
+         lock = this._file.getChannel().tryLock();
+      } catch (OverlappingFileLockException e) {
+         lock = null;
+      }
+      if (lock == null) {
+         this._file.close();
+         throw new IOException("the journal is in use by another process; run each client in its own directory");
+      }
+      this._buffer = this._file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this._capacity);
+
+      if (created || this._buffer.getInt(0) != MAGIC) {
+         this._buffer.putInt(0, MAGIC);
+         this._appliedOffset = HEADER_SIZE;
+         this._writeOffset = HEADER_SIZE;
+         this._nextID = 1;
+         this._blockEnd = 0;
+         this._spareBlockEnd = 0;
+         writeHeader();
+         this._buffer.force();
+      } else {
+         this._appliedOffset = this._buffer.getLong(POS_APPLIED);
+         this._nextID = this._buffer.getInt(POS_NEXT_ID);
+         this._blockEnd = this._buffer.getInt(POS_BLOCK_END);
+         this._spareBlockEnd = this._buffer.getInt(POS_SPARE_END);
+         recover();
+      }
+   }//end OrderJournal
+
+   /**
+    * Starts the flusher and replayer threads.
+    */
+   public void start() {
+      this._flusher = new Thread(new Runnable() {
+         public void run() {
+            flushLoop();
+         }
+      }, "order-journal-flusher");
+      this._flusher.setDaemon(true);
+      this._flusher.start();
+
+      this._replayer = new Thread(new Runnable() {
+         public void run() {
+            replayLoop();
+         }
+      }, "order-journal-replayer");
+      this._replayer.setDaemon(true);
+      this._replayer.start();
+   }//end start
+
+   /**
+    * Hands out the next order ID from the reserved blocks.  A new block is
+    * reserved from the database when none is left; during an outage this
+    * only fails once the spare block is used up as well.
+    *
+    * @return a new, globally unique order ID
+    * @throws java.sql.SQLException when no ID is left and none can be reserved
+    */
+   public synchronized int nextOrderID() throws SQLException {
+      if (this._nextID > this._blockEnd) {
+         if (this._spareBlockEnd == 0)
+            this._spareBlockEnd = Integer.parseInt(
+               this._esql.executeQueryAndReturnResult(RESERVE_BLOCK_QUERY).get(0).get(0));
+         this._blockEnd = this._spareBlockEnd;
+         this._nextID = this._blockEnd - ID_BLOCK_SIZE + 1;
+         this._spareBlockEnd = 0;
+      }
+      int id = this._nextID++;
+      writeHeader();
+      return id;
+   }//end nextOrderID
+
+   /**
+    * Appends an order and waits until it is on disk.
+    *
+    * @param entry the order to journal
+    * @return the sequence number to pass to awaitApplied
+    * @throws java.io.IOException when the journal is full or closed
+    */
+   public long append(Entry entry) throws IOException {
+      byte[] payload = encode(entry);
+      CRC32 crc = new CRC32();
+      crc.update(payload, 0, payload.length);
+
+      long seq;
+      synchronized (this) {
+         if (!this._running)
+            throw new IOException("order journal is closed");
+         int recordSize = 8 + payload.length;
+         if (this._writeOffset + recordSize > this._capacity)
+            throw new IOException("order journal is full, " + (this._appendSeq - this._appliedSeq) + " orders waiting for the database");
+
+         int pos = (int) this._writeOffset;
+         // payload first, length last, so a torn record never looks valid
+         this._buffer.putInt(pos + 4, (int) crc.getValue());
+         for (int i = 0; i < payload.length; i++)
+            this._buffer.put(pos + 8 + i, payload[i]);
+         this._buffer.putInt(pos, payload.length);
+
+         this._writeOffset += recordSize;
+         this._buffer.putLong(POS_WRITE, this._writeOffset);
+         seq = ++this._appendSeq;
+         notifyAll();
+
+         // group commit: wait for the flusher to force this batch
+         while (this._durableSeq < seq) {
+            try {
+               wait();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new IOException("interrupted waiting for the order journal");
+            }
+         }
+      }
+      return seq;
+   }//end append
+
+   /**
+    * Waits until the entry with the given sequence number is in the database.
+    *
+    * @return true if it was applied within timeoutMs
+    */
+   public synchronized boolean awaitApplied(long seq, long timeoutMs) {
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while (this._appliedSeq < seq) {
+         long left = deadline - System.currentTimeMillis();
+         if (left <= 0)
+            return false;
+         try {
+            wait(left);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+         }
+      }
+      return true;
+   }//end awaitApplied
+
+   /**
+    * @param seq a sequence number from append
+    * @return why the database refused the entry, or null if it was not
+    *         refused (or not applied yet)
+    */
+   public synchronized String rejection(long seq) {
+      return this._rejections.get(seq);
+   }//end rejection
+
+   /**
+    * @param seq a sequence number from append
+    * @return the order placed earlier with the entry's idempotency key,
+    *         which the entry was dropped in favour of, or -1
+    */
+   public synchronized int retryOf(long seq) {
+      Integer orderID = this._retries.get(seq);
+      return orderID == null ? -1 : orderID;
+   }//end retryOf
+
+   /**
+    * @param seq a sequence number from append
+    * @return the total in cents place_order charged for the entry, priced
+    *         from Items, or -1 if it was not applied (yet)
+    */
+   public synchronized long appliedTotal(long seq) {
+      Long totalCents = this._totals.get(seq);
+      return totalCents == null ? -1 : totalCents;
+   }//end appliedTotal
+
+   /**
+    * @return the number of journaled orders not yet in the database
+    */
+   public synchronized long pendingCount() {
+      return this._appendSeq - this._appliedSeq;
+   }//end pendingCount
+
+   /**
+    * Stops the background threads and forces the journal to disk.  Entries
+    * not applied yet stay in the file and are replayed on the next start.
+    */
+   public void close() {
+      synchronized (this) {
+         this._running = false;
+         notifyAll();
+      }
+      if (this._flusher != null)
+         this._flusher.interrupt();
+      if (this._replayer != null)
+         this._replayer.interrupt();
+      synchronized (this) {
+         writeHeader();
+         this._buffer.force();
+      }
+      try {
+         if (this._replayConnection != null)
+            this._replayConnection.close();
+         this._file.close();
+      } catch (Exception e) {
+         // ignored.
+      }
+   }//end close
+
+   // returns the last ID of a fresh block of ID_BLOCK_SIZE IDs
+   private static int reserveBlock(Connection conn) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         java.sql.ResultSet rs = stmt.executeQuery(RESERVE_BLOCK_QUERY);
+         rs.next();
+         int blockEnd = rs.getInt(1);
+         if (!conn.getAutoCommit())
+            conn.commit();
+         return blockEnd;
+      } finally {
+         stmt.close();
+      }
+   }//end reserveBlock
+
+   private void writeHeader() {
+      this._buffer.putLong(POS_APPLIED, this._appliedOffset);
+      this._buffer.putLong(POS_WRITE, this._writeOffset);
+      this._buffer.putInt(POS_NEXT_ID, this._nextID);
+      this._buffer.putInt(POS_BLOCK_END, this._blockEnd);
+      this._buffer.putInt(POS_SPARE_END, this._spareBlockEnd);
+   }//end writeHeader
+
+   /*
+    * Finds the end of the valid records after appliedOffset; anything past
+    * the first short or corrupt record is a torn write and is dropped.
+    */
+   private void recover() {
+      long pos = this._appliedOffset;
+      long count = 0;
+      while (pos + 8 <= this._capacity) {
+         int length = this._buffer.getInt((int) pos);
+         if (length <= 0 || pos + 8 + length > this._capacity)
+            break;
+         byte[] payload = new byte[length];
+         for (int i = 0; i < length; i++)
+            payload[i] = this._buffer.get((int) pos + 8 + i);
+         CRC32 crc = new CRC32();
+         crc.update(payload, 0, length);
+         if ((int) crc.getValue() != this._buffer.getInt((int) pos + 4))
+            break;
+         pos += 8 + length;
+         count++;
+      }
+      this._writeOffset = pos;
+      this._appendSeq = count;
+      this._durableSeq = count;
+      writeHeader();
+   }//end recover
+
+   private void flushLoop() {
+      while (this._running) {
+         try {
+            Thread.sleep(FLUSH_INTERVAL_MS);
+            long target;
+            synchronized (this) {
+               while (this._running && this._appendSeq == this._durableSeq)
+                  wait();
+               target = this._appendSeq;
+            }
+            this._buffer.force();
+            synchronized (this) {
+               if (target > this._durableSeq)
+                  this._durableSeq = target;
+               notifyAll();
+            }
+         } catch (InterruptedException e) {
+            return;
+         }
+      }//end while
+   }//end flushLoop
+
+   private void replayLoop() {
+      while (this._running) {
+         try {
+            topUpSpareBlock();
+
+            Entry entry;
+            long next;
+            synchronized (this) {
+               if (this._appliedSeq >= this._durableSeq) {
+                  wait(RETRY_INTERVAL_MS);
+                  continue;
+               }
+               int pos = (int) this._appliedOffset;
+               int length = this._buffer.getInt(pos);
+               byte[] payload = new byte[length];
+               for (int i = 0; i < length; i++)
+                  payload[i] = this._buffer.get(pos + 8 + i);
+               entry = decode(payload);
+               next = this._appliedOffset + 8 + length;
+            }
+
+            try {
+               int placedOrderID = apply(this._appliedSeq + 1, entry);
+               if (placedOrderID != entry.orderID) {
+                  System.err.println("Journaled order " + entry.orderID + " has the idempotency key of order "
+                     + placedOrderID + ", which was kept");
+                  synchronized (this) {
+                     this._retries.put(this._appliedSeq + 1, placedOrderID);
+                  }
+               } else if (this._esql.getDispatchQueue() != null) {
+                  // only now is the order there for drivers to claim
+                  this._esql.getDispatchQueue().offer(entry.orderID, entry.storeID, entry.orderTimestamp);
+               }
+            } catch (SQLException e) {
+               closeReplayConnection();
+               if (!databaseReachable(entry.storeID)) {
+                  // outage: keep the entry and retry later
+                  Thread.sleep(RETRY_INTERVAL_MS);
+                  continue;
+               }
+               // the database is up and refused this order: set it aside, do
+               // not block the rest
+               System.err.println("Journaled order " + entry.orderID + " rejected by the database: " + e.getMessage());
+               try {
+                  deadLetter(entry, e.getMessage());
+               } catch (IOException ioe) {
+                  // keep the entry until it is set aside
+                  System.err.println("Error - Unable to write " + this._rejectedFile + ": " + ioe.getMessage());
+                  Thread.sleep(RETRY_INTERVAL_MS);
+                  continue;
+               }
+               // a retry with the same key may place the order after all
+               if (entry.idempotencyKey != null && this._esql.getIdempotency() != null)
+                  this._esql.getIdempotency().forget(entry.idempotencyKey, entry.orderID);
+               synchronized (this) {
+                  this._rejections.put(this._appliedSeq + 1, e.getMessage());
+               }
+            }
+
+            synchronized (this) {
+               this._appliedOffset = next;
+               this._appliedSeq++;
+               if (this._appliedOffset == this._writeOffset)
+                  truncate();
+               else if (this._appliedOffset > this._capacity / 2
+                        && HEADER_SIZE + (this._writeOffset - this._appliedOffset) + 4 <= this._appliedOffset)
+                  compact();
+               writeHeader();
+               notifyAll();
+            }
+         } catch (InterruptedException e) {
+            return;
+         }
+      }//end while
+   }//end replayLoop
+
+   // a bounded map of the latest outcomes by sequence number
+   private static <V> Map<Long, V> outcomes() {
+      return new LinkedHashMap<Long, V>() {
+         protected boolean removeEldestEntry(Map.Entry<Long, V> eldest) {
+            return size() > MAX_OUTCOMES;
+         }
+      };
+   }//end outcomes
+
+   // appends the refused entry's call to the dead-letter file and syncs it
+   private void deadLetter(Entry entry, String reason) throws IOException {
+      FileOutputStream out = new FileOutputStream(this._rejectedFile, true);
+      try {
+         String record = "-- " + new Timestamp(System.currentTimeMillis()) + " order " + entry.orderID
+            + " rejected: " + String.valueOf(reason).replace('\n', ' ') + "\n" + placeOrderQuery(entry) + ";\n";
+         out.write(record.getBytes(StandardCharsets.UTF_8));
+         out.getFD().sync();
+      } finally {
+         out.close();
+      }
+   }//end deadLetter
+
+   // reserve the next ID block while the database is up, for use during outages
+   private void topUpSpareBlock() {
+      synchronized (this) {
+         if (this._spareBlockEnd != 0)
+            return;
+      }
+      try {
+         int blockEnd = reserveBlock(replayConnection());
+         synchronized (this) {
+            if (this._spareBlockEnd == 0) {
+               this._spareBlockEnd = blockEnd;
+               writeHeader();
+            }
+         }
+      } catch (SQLException e) {
+         closeReplayConnection();
+      }
+   }//end topUpSpareBlock
+
+   // the database owning the store's orders, which may be a shard
+   private boolean databaseReachable(int storeID) {
+      try {
+         Statement stmt = orderConnection(storeID).createStatement();
+         try {
+            stmt.execute("SELECT 1");
+         } finally {
+            stmt.close();
+         }
+         return true;
+      } catch (SQLException e) {
+         closeReplayConnection();
+         return false;
+      }
+   }//end databaseReachable
+
+   private Connection replayConnection() throws SQLException {
+      if (this._replayConnection == null) {
+         this._replayConnection = this._esql.openConnection();
+         this._replayConnection.setAutoCommit(false);
+      }
+      return this._replayConnection;
+   }//end replayConnection
+
+   private Connection orderConnection(int storeID) throws SQLException {
+      int shard = this._esql.getShards().shardIndex(storeID);
+      if (shard == ShardRouter.GLOBAL)
+         return replayConnection();
+      Connection conn = this._shardConnections.get(shard);
+      if (conn == null) {
+         conn = this._esql.getShards().openConnection(storeID);
+         conn.setAutoCommit(false);
+         this._shardConnections.put(shard, conn);
+      }
+      return conn;
+   }//end orderConnection
+
+   /*
+    * Places one order with a single call of the place_order function (see
+    * create_tables.sql), which inserts the order, its line items and its
+    * idempotency key in one transaction.  An order ID that is already
+    * present means the entry was applied before a crash; the function
+    * leaves it alone, as it does with an idempotency key placed before.
+    * The function prices the order from Items; a total other than the one
+    * the customer was shown is reported.
+    *
+    * Returns the ID of the order placed, or of the one placed before with
+    * the entry's key.
+    */
+   private int apply(long seq, Entry entry) throws SQLException {
+      Connection conn = orderConnection(entry.storeID);
+      Statement stmt = conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(placeOrderQuery(entry));
+         int orderID = entry.orderID;
+         long totalCents = entry.totalCents;
+         if (rs.next()) {
+            orderID = rs.getInt(1);
+            totalCents = ColumnarResult.parseCents(rs.getString(2));
+         }
+         rs.close();
+         conn.commit();
+         if (orderID == entry.orderID) {
+            synchronized (this) {
+               this._totals.put(seq, totalCents);
+            }
+         }
+         if (orderID == entry.orderID && totalCents != entry.totalCents)
+            System.err.println("Journaled order " + entry.orderID + " was priced at $" + PricingEngine.format(totalCents)
+               + " instead of $" + PricingEngine.format(entry.totalCents) + ", the menu changed meanwhile");
+         return orderID;
+      } catch (SQLException e) {
+         try {
+            conn.rollback();
+         } catch (SQLException re) {
+            // ignored, the connection is dropped below.
+         }
+         throw e;
+      } finally {
+         stmt.close();
+      }
+   }//end apply
+
+   private void closeReplayConnection() {
+      try {
+         if (this._replayConnection != null)
+            this._replayConnection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+      this._replayConnection = null;
+      for (Connection conn : this._shardConnections.values()) {
+         try {
+            conn.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+      this._shardConnections.clear();
+   }//end closeReplayConnection
+
+   /*
+    * Everything applied: wipe the records and start over at the header.
+    * The records are zeroed on disk before the header points at them, so
+    * a crash in between never replays an applied record.
+    */
+   private void truncate() {
+      for (int pos = HEADER_SIZE; pos < this._writeOffset; pos++)
+         this._buffer.put(pos, (byte) 0);
+      this._buffer.force();
+      this._appliedOffset = HEADER_SIZE;
+      this._writeOffset = HEADER_SIZE;
+      writeHeader();
+      this._buffer.force();
+   }//end truncate
+
+   /*
+    * Moves the unapplied tail to the front to make room for new records.
+    * The tail is copied to free space in front of it, ending in a zero
+    * length that stops recover(), and forced before the header switches
+    * to it; only then is the old copy zeroed.  A crash at any point leaves
+    * the header pointing at one complete copy.  The caller makes sure the
+    * copy and its terminator fit in front of appliedOffset.
+    */
+   private void compact() {
+      int from = (int) this._appliedOffset;
+      int length = (int) (this._writeOffset - this._appliedOffset);
+      for (int i = 0; i < length; i++)
+         this._buffer.put(HEADER_SIZE + i, this._buffer.get(from + i));
+      this._buffer.putInt(HEADER_SIZE + length, 0);
+      this._buffer.force();
+
+      long oldWriteOffset = this._writeOffset;
+      this._appliedOffset = HEADER_SIZE;
+      this._writeOffset = HEADER_SIZE + length;
+      writeHeader();
+      this._buffer.force();
+
+      for (long pos = this._writeOffset; pos < oldWriteOffset; pos++)
+         this._buffer.put((int) pos, (byte) 0);
+      this._buffer.force();
+   }//end compact
+
+   /**
+    * @return the place_order call for an order, with the client's ID and
+    *         timestamp
+    */
+   public static String placeOrderQuery(Entry entry) {
+      StringBuilder items = new StringBuilder();
+      StringBuilder quantities = new StringBuilder();
+      for (int i = 0; i < entry.items.size(); i++) {
+         // quoted array elements, commas and spaces in item names are kept
+         items.append(i == 0 ? "" : ", ").append('"')
+            .append(entry.items.get(i).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+         quantities.append(i == 0 ? "" : ", ").append(entry.quantities.get(i));
+      }
+      return "SELECT order_id, total FROM place_order(" + entry.orderID + ", " + quote(entry.login) + ", "
+         + entry.storeID + ", " + quote("{" + items + "}") + "::varchar[], '{" + quantities + "}'::integer[], '"
+         + new Timestamp(entry.orderTimestamp) + "'::timestamp, "
+         + (entry.idempotencyKey == null ? "NULL" : quote(entry.idempotencyKey)) + ")";
+   }//end placeOrderQuery
+
+   // a string literal; the 7.3 driver has no array binding and its
+   // setString escapes quotes with a backslash, so quotes are doubled here
+   private static String quote(String value) {
+      return "'" + value.replace("'", "''") + "'";
+   }//end quote
+
+   private static byte[] encode(Entry entry) {
+      byte[] login = entry.login.getBytes(StandardCharsets.UTF_8);
+      List<byte[]> names = new ArrayList<byte[]>();
+      byte[] key = entry.idempotencyKey == null ? null : entry.idempotencyKey.getBytes(StandardCharsets.UTF_8);
+      int size = 4 + 2 + login.length + 4 + 8 + 8 + 2;
+      for (String item : entry.items) {
+         byte[] name = item.getBytes(StandardCharsets.UTF_8);
+         names.add(name);
+         size += 2 + name.length + 4;
+      }
+      if (key != null)
+         size += 2 + key.length;
+
+      java.nio.ByteBuffer out = java.nio.ByteBuffer.allocate(size);
+      out.putInt(entry.orderID);
+      out.putShort((short) login.length).put(login);
+      out.putInt(entry.storeID);
+      out.putLong(entry.totalCents);
+      out.putLong(entry.orderTimestamp);
+      out.putShort((short) names.size());
+      for (int i = 0; i < names.size(); i++) {
+         out.putShort((short) names.get(i).length).put(names.get(i));
+         out.putInt(entry.quantities.get(i));
+      }
+      // optional trailer, so entries written before keys existed still decode
+      if (key != null)
+         out.putShort((short) key.length).put(key);
+      return out.array();
+   }//end encode
+
+   private static Entry decode(byte[] payload) {
+      java.nio.ByteBuffer in = java.nio.ByteBuffer.wrap(payload);
+      int orderID = in.getInt();
+      byte[] login = new byte[in.getShort()];
+      in.get(login);
+      int storeID = in.getInt();
+      long totalCents = in.getLong();
+      long orderTimestamp = in.getLong();
+      int count = in.getShort();
+      List<String> items = new ArrayList<String>();
+      List<Integer> quantities = new ArrayList<Integer>();
+      for (int i = 0; i < count; i++) {
+         byte[] name = new byte[in.getShort()];
+         in.get(name);
+         items.add(new String(name, StandardCharsets.UTF_8));
+         quantities.add(in.getInt());
+      }
+      String idempotencyKey = null;
+      if (in.hasRemaining()) {
+         byte[] key = new byte[in.getShort()];
+         in.get(key);
+         idempotencyKey = new String(key, StandardCharsets.UTF_8);
+      }
+      return new Entry(orderID, new String(login, StandardCharsets.UTF_8), storeID, totalCents,
+                       orderTimestamp, items, quantities, idempotencyKey);
+   }//end decode
+
+}//end OrderJournal
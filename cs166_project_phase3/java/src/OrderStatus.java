@@ -0,0 +1,172 @@
+/*
+ * Order status
+ * ============
+ *
+ * The order status state machine and its compare-and-set transitions.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Allowed transitions:
+ *
+ *    Pending     -> Claimed, complete, incomplete
+ *    Claimed     -> Pending (handed back), complete, incomplete
+ *    incomplete  -> Pending (retried)
+ *    complete    (final; archived after the retention window)
+ *
+ * Every transition is one UPDATE that only matches while the order still
+ * has the status (and, if given, the version) the caller saw, and bumps
+ * FoodOrder.version.  Nothing is read or locked first: a writer that lost a
+ * race updates no rows and reports the conflict instead of overwriting the
+ * other writer's change.
+ *
+ * Delivery batches (see DeliveryBatcher) move the same way, all their
+ * orders in one UPDATE.
+ */
+public class OrderStatus {
+
+   public static final String PENDING = "Pending";
+   public static final String CLAIMED = "Claimed";
+   public static final String COMPLETE = "complete";
+   public static final String INCOMPLETE = "incomplete";
+
+   // every status, in the order the screens number them
+   public static final List<String> ALL =
+      Collections.unmodifiableList(Arrays.asList(PENDING, CLAIMED, COMPLETE, INCOMPLETE));
+
+   // matches any version in transition
+   public static final int ANY_VERSION = -1;
+
+   private static final Map<String, List<String>> TRANSITIONS = new LinkedHashMap<String, List<String>>();
+   static {
+      TRANSITIONS.put(PENDING, Arrays.asList(CLAIMED, COMPLETE, INCOMPLETE));
+      TRANSITIONS.put(CLAIMED, Arrays.asList(PENDING, COMPLETE, INCOMPLETE));
+      TRANSITIONS.put(INCOMPLETE, Arrays.asList(PENDING));
+      TRANSITIONS.put(COMPLETE, Collections.<String>emptyList());
+   }
+
+   /**
+    * @param status a status, possibly blank padded (orderStatus is a char)
+    * @return the statuses it may change to, in the order of ALL
+    */
+   public static List<String> next(String status) {
+      List<String> targets = TRANSITIONS.get(status == null ? null : status.trim());
+      if (targets == null)
+         return Collections.<String>emptyList();
+      List<String> next = new ArrayList<String>();
+      for (String s : ALL) {
+         if (targets.contains(s))
+            next.add(s);
+      }
+      return next;
+   }//end next
+
+   /**
+    * @return true if from may change to to
+    */
+   public static boolean allowed(String from, String to) {
+      return next(from).contains(to);
+   }//end allowed
+
+   /**
+    * Builds the compare-and-set UPDATE of one order.
+    *
+    * @param orderID the order
+    * @param orderTimestamp its timestamp, which prunes to one partition
+    * @param from the status the caller saw
+    * @param to the new status
+    * @param expectedVersion the version the caller saw, or ANY_VERSION
+    * @return the statement
+    */
+   public static String transitionStatement(int orderID, String orderTimestamp, String from, String to,
+                                            int expectedVersion) {
+      if (!allowed(from, to))
+         throw new IllegalArgumentException("an order can't go from " + from.trim() + " to " + to);
+      return "UPDATE FoodOrder SET orderStatus = '" + to + "', version = version + 1"
+         + " WHERE orderID = " + orderID + " AND orderTimestamp = '" + orderTimestamp + "'"
+         + " AND orderStatus = '" + from.trim() + "'"
+         + (expectedVersion == ANY_VERSION ? "" : " AND version = " + expectedVersion);
+   }//end transitionStatement
+
+   /**
+    * Builds the set-based UPDATE claiming a delivery batch: every listed
+    * order of the store that is still Pending gets the batch's ID and the
+    * claiming driver.
+    *
+    * @param batchID the new batch
+    * @param login the driver claiming it
+    * @param storeID the orders' store
+    * @param orderIDs the orders
+    * @param firstTimestamp the oldest order's timestamp (epoch millis)
+    * @param lastTimestamp the newest order's timestamp, the two prune to
+    *                      the partitions the batch spans
+    * @return the statement
+    */
+   public static String claimBatchStatement(int batchID, String login, int storeID, int[] orderIDs,
+                                            long firstTimestamp, long lastTimestamp) {
+      StringBuilder ids = new StringBuilder();
+      for (int orderID : orderIDs) {
+         if (ids.length() > 0)
+            ids.append(", ");
+         ids.append(orderID);
+      }
+      return "UPDATE FoodOrder SET orderStatus = '" + CLAIMED + "', batchID = " + batchID
+         + ", batchClaimedBy = '" + login.replace("'", "''") + "', version = version + 1"
+         + " WHERE storeID = " + storeID + " AND orderID IN (" + ids + ")"
+         + " AND orderTimestamp BETWEEN '" + new Timestamp(firstTimestamp) + "' AND '"
+         + new Timestamp(lastTimestamp) + "'"
+         + " AND orderStatus = '" + PENDING + "'";
+   }//end claimBatchStatement
+
+   /**
+    * Builds the set-based UPDATE moving every order of a delivery batch
+    * that still has status from to status to.  Only the orders claimed by
+    * login match.
+    *
+    * @param storeID the batch's store
+    * @param batchID the batch
+    * @param login the driver who claimed it
+    * @param from the status the batch's orders have
+    * @param to the new status
+    * @return the statement
+    */
+   public static String batchTransitionStatement(int storeID, int batchID, String login, String from, String to) {
+      if (!allowed(from, to))
+         throw new IllegalArgumentException("an order can't go from " + from.trim() + " to " + to);
+      return "UPDATE FoodOrder SET orderStatus = '" + to + "', version = version + 1"
+         + " WHERE storeID = " + storeID + " AND batchID = " + batchID
+         + " AND batchClaimedBy = '" + login.replace("'", "''") + "'"
+         + " AND orderStatus = '" + from.trim() + "'";
+   }//end batchTransitionStatement
+
+   /**
+    * Applies one transition on the database owning the order's store.
+    *
+    * @param esql the store
+    * @param storeID the order's store
+    * @param orderID the order
+    * @param orderTimestamp its timestamp
+    * @param from the status the caller saw
+    * @param to the new status
+    * @param expectedVersion the version the caller saw, or ANY_VERSION
+    * @return true if applied, false if the order changed meanwhile
+    * @throws java.sql.SQLException when the update failed
+    */
+   public static boolean transition(PizzaStore esql, int storeID, int orderID, String orderTimestamp,
+                                    String from, String to, int expectedVersion) throws SQLException {
+      return esql.getShards().update(storeID,
+         transitionStatement(orderID, orderTimestamp, from, to, expectedVersion)) == 1;
+   }//end transition
+
+}//end OrderStatus
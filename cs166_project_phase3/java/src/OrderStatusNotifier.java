@@ -0,0 +1,232 @@
+/*
+ * Order status notifications
+ * ==========================
+ *
+ * Pushes order status changes to interested sessions instead of having them
+ * re-run viewOrderInfo against FoodOrder.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Publishes order status changes through Postgres LISTEN/NOTIFY and delivers
+ * them to subscribers in this process.
+ *
+ * Every order has its own channel (order_status_<orderID>).  Subscribers in
+ * the same process as the publisher are called directly with the new status;
+ * other processes get the NOTIFY on a dedicated listen connection and read
+ * the new status once, by primary key, only when it actually changed.
+ */
+public class OrderStatusNotifier {
+
+   /**
+    * Callback for pushed status changes.  HTTP or other front ends plug in
+    * here the same way the command-line session does.
+    */
+   public interface Listener {
+      void statusChanged(int orderID, String newStatus);
+   }//end Listener
+
+   private static final String CHANNEL_PREFIX = "order_status_";
+
+   // how often the listen connection is asked for pending notifications
+   private static final long PUMP_INTERVAL_MS = 250;
+
+   private final PizzaStore _esql;
+   private final Map<Integer, List<Listener>> _listeners = new ConcurrentHashMap<Integer, List<Listener>>();
+
+   // dedicated connection for LISTEN, opened on the first subscribe
+   private Connection _listenConnection = null;
+   private Thread _pump = null;
+   private volatile boolean _running = false;
+
+   // backend pid of the publishing connection, used to skip our own NOTIFYs
+   private int _publisherPID = -1;
+
+   public OrderStatusNotifier(PizzaStore esql) {
+      this._esql = esql;
+   }//end OrderStatusNotifier
+
+   /**
+    * Publishes a status change for an order.  Local subscribers are told
+    * right away, everyone else through NOTIFY.
+    *
+    * @param orderID the order that changed
+    * @param newStatus the status it changed to
+    * @throws java.sql.SQLException when the NOTIFY failed
+    */
+   public void publish(int orderID, String newStatus) throws SQLException {
+      deliver(orderID, newStatus);
+      this._esql.executeUpdate("NOTIFY " + channel(orderID));
+   }//end publish
+
+   /**
+    * Subscribes to status changes of one order.
+    *
+    * @param orderID the order to watch
+    * @param listener called for every change
+    * @throws java.sql.SQLException when the LISTEN failed
+    */
+   public synchronized void subscribe(int orderID, Listener listener) throws SQLException {
+      List<Listener> listeners = this._listeners.get(orderID);
+      if (listeners == null) {
+         listeners = new CopyOnWriteArrayList<Listener>();
+         this._listeners.put(orderID, listeners);
+      }
+      listeners.add(listener);
+
+      startPump();
+      execute(this._listenConnection, "LISTEN " + channel(orderID));
+   }//end subscribe
+
+   /**
+    * Removes a subscription made with subscribe.
+    *
+    * @param orderID the order that was watched
+    * @param listener the listener to remove
+    */
+   public synchronized void unsubscribe(int orderID, Listener listener) {
+      List<Listener> listeners = this._listeners.get(orderID);
+      if (listeners == null)
+         return;
+      listeners.remove(listener);
+      if (!listeners.isEmpty())
+         return;
+
+      this._listeners.remove(orderID);
+      try {
+         execute(this._listenConnection, "UNLISTEN " + channel(orderID));
+      } catch (SQLException e) {
+         // ignored, the channel is dropped with the connection anyway.
+      }
+   }//end unsubscribe
+
+   /**
+    * Stops the pump thread and closes the listen connection.
+    */
+   public synchronized void close() {
+      this._running = false;
+      if (this._pump != null) {
+         this._pump.interrupt();
+         this._pump = null;
+      }
+      try {
+         if (this._listenConnection != null)
+            this._listenConnection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+      this._listenConnection = null;
+   }//end close
+
+   private static String channel(int orderID) {
+      return CHANNEL_PREFIX + orderID;
+   }//end channel
+
+   private void deliver(int orderID, String newStatus) {
+      List<Listener> listeners = this._listeners.get(orderID);
+      if (listeners == null)
+         return;
+      for (Listener listener : listeners)
+         listener.statusChanged(orderID, newStatus);
+   }//end deliver
+
+   private void startPump() throws SQLException {
+      if (this._running)
+         return;
+
+      this._publisherPID = this._esql.getBackendPID();
+      this._listenConnection = this._esql.openConnection();
+      this._running = true;
+      this._pump = new Thread(new Runnable() {
+         public void run() {
+            pump();
+         }
+      }, "order-status-listener");
+      this._pump.setDaemon(true);
+      this._pump.start();
+   }//end startPump
+
+   /*
+    * The driver only reads asynchronous notifications while it processes a
+    * query, so an empty statement is sent on the listen connection.  This
+    * never touches FoodOrder; the table is read only for orders that changed.
+    */
+   private void pump() {
+      while (this._running) {
+         try {
+            Connection conn = this._listenConnection;
+            PGNotification[] notifications;
+            synchronized (conn) {
+               execute(conn, "SELECT 1");
+               notifications = ((PGConnection) conn).getNotifications();
+            }
+            if (notifications != null) {
+               for (PGNotification n : notifications) {
+                  if (n.getPID() == this._publisherPID)
+                     continue; // already delivered by publish
+                  int orderID = Integer.parseInt(n.getName().substring(CHANNEL_PREFIX.length()));
+                  String status = readStatus(conn, orderID);
+                  if (status != null)
+                     deliver(orderID, status);
+               }
+            }
+            Thread.sleep(PUMP_INTERVAL_MS);
+         } catch (InterruptedException e) {
+            return;
+         } catch (Exception e) {
+            if (this._running)
+               System.err.println("Order status listener: " + e.getMessage());
+            try {
+               Thread.sleep(PUMP_INTERVAL_MS * 4);
+            } catch (InterruptedException ie) {
+               return;
+            }
+         }
+      }//end while
+   }//end pump
+
+   private String readStatus(Connection conn, int orderID) throws SQLException {
+      // NOTIFY goes through the global database, the order may be on a shard
+      if (this._esql.getShards().isSharded()) {
+         List<List<String>> results = this._esql.getShards().queryAll(
+            "SELECT orderStatus FROM FoodOrder WHERE orderID = " + orderID, -1, -1);
+         return results.isEmpty() ? null : results.get(0).get(0).trim();
+      }
+      synchronized (conn) {
+         Statement stmt = conn.createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery("SELECT orderStatus FROM FoodOrder WHERE orderID = " + orderID);
+            return rs.next() ? rs.getString(1).trim() : null;
+         } finally {
+            stmt.close();
+         }
+      }
+   }//end readStatus
+
+   // the listen connection is shared by the pump and subscribe/unsubscribe
+   private static void execute(Connection conn, String sql) throws SQLException {
+      synchronized (conn) {
+         Statement stmt = conn.createStatement();
+         try {
+            stmt.execute(sql);
+         } finally {
+            stmt.close();
+         }
+      }
+   }//end execute
+
+}//end OrderStatusNotifier
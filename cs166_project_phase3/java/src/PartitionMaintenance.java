@@ -0,0 +1,100 @@
+/*
+ * Order partition maintenance
+ * ===========================
+ *
+ * Keeps the monthly partitions of FoodOrder and ItemsInOrder created ahead
+ * of time, so new orders never land in the default partition.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs create_order_partitions (see create_tables.sql) at startup and then
+ * once a day on its own connections, on every database holding orders.
+ */
+public class PartitionMaintenance {
+
+   // how many months past the current one always have partitions
+   public static final int MONTHS_AHEAD = 3;
+
+   private static final long INTERVAL_HOURS = 24;
+
+   private final PizzaStore _esql;
+   private ScheduledExecutorService _scheduler = null;
+
+   public PartitionMaintenance(PizzaStore esql) {
+      this._esql = esql;
+   }//end PartitionMaintenance
+
+   /**
+    * Creates the partitions that are missing right now, on the global
+    * database and every order shard.
+    *
+    * @return the number of months that got new partitions, summed over
+    *         the databases
+    * @throws java.sql.SQLException when failed to execute the function
+    */
+   public int run() throws SQLException {
+      int created = 0;
+      List<Connection> connections = this._esql.getShards().openAllConnections();
+      try {
+         for (Connection conn : connections) {
+            Statement stmt = conn.createStatement();
+            try {
+               ResultSet rs = stmt.executeQuery(
+                  "SELECT create_order_partitions(date_trunc('month', now())::date, " + MONTHS_AHEAD + ")");
+               created += rs.next() ? rs.getInt(1) : 0;
+            } finally {
+               stmt.close();
+            }
+         }
+      } finally {
+         for (Connection conn : connections)
+            conn.close();
+      }
+      return created;
+   }//end run
+
+   /**
+    * Runs the maintenance now and then every INTERVAL_HOURS in the
+    * background.
+    */
+   public void start() {
+      this._scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "order-partition-maintenance");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this._scheduler.scheduleAtFixedRate(new Runnable() {
+         public void run() {
+            try {
+               PartitionMaintenance.this.run();
+            } catch (SQLException e) {
+               System.err.println("Error creating order partitions: " + e.getMessage());
+            }
+         }
+      }, 0, INTERVAL_HOURS, TimeUnit.HOURS);
+   }//end start
+
+   /**
+    * Stops the background schedule.
+    */
+   public void stop() {
+      if (this._scheduler != null)
+         this._scheduler.shutdownNow();
+   }//end stop
+
+}//end PartitionMaintenance
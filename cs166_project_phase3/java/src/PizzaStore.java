@@ -14,21 +14,29 @@ import java.util.Arrays;
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.lang.Math;
 
 //my imports 
-import java.util.Scanner;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -37,13 +45,87 @@ import java.util.regex.Matcher;
  */
 public class PizzaStore {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // reference to physical database connection, opened in the background.
+   private FutureTask<Connection> _connecting = null;
 
-   // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+   // connection settings, kept so helpers can open their own connections
+   private String _url = null;
+   private String _user = null;
+   private String _passwd = null;
+
+   // publishes and delivers order status changes (LISTEN/NOTIFY)
+   private OrderStatusNotifier _notifier = null;
+
+   // per-store queues of pending orders for drivers
+   private DispatchQueue _dispatchQueue = null;
+
+   // routes read-only screens to a replica when one is configured
+   private ReplicaRouter _replicas = null;
+
+   // local write-ahead journal placed orders go through
+   private OrderJournal _journal = null;
+   private static final String JOURNAL_FILE = "order.journal";
+
+   // default staleness allowed for reads served by the replica
+   private static final double DEFAULT_MAX_REPLICA_LAG = 5.0;
+
+   // window (in monthly partitions) searched first for a user's recent orders
+   private static final int RECENT_ORDER_MONTHS = 3;
+
+   // pre-creates the monthly partitions of FoodOrder and ItemsInOrder
+   private PartitionMaintenance _partitions = null;
+
+   // local, versioned copy of the menu
+   private MenuCatalog _menu = null;
+
+   // full-text index over the local menu copy
+   private MenuSearchIndex _menuSearch = null;
+
+   // ingredient bitsets over the local menu copy
+   private IngredientIndex _ingredients = null;
+
+   // item prices in cents over the local menu copy
+   private PricingEngine _pricing = null;
+
+   // cached results of queries on read-mostly tables
+   private ResultCache _cache = null;
+   public static final long STORE_CACHE_TTL = 10 * 60 * 1000;
+   private static final long ITEM_TYPES_CACHE_TTL = 5 * 60 * 1000;
+   private static final String STORES_QUERY = "SELECT * FROM Store";
+   private static final String ITEM_TYPES_QUERY = "SELECT DISTINCT typeOfItem FROM Items";
+
+   // Items and Store mapped from a file shared by the processes on this host
+   private ReferenceSnapshot _reference = null;
+   private static final String REFERENCE_FILE = "reference.snapshot";
+
+   // databases owning the orders of each store range
+   private ShardRouter _shards = null;
+   private static final String SHARDS_FILE = "shards.conf";
+
+   // the FoodOrder columns customers see (shaped like archived orders) and
+   // orderTimestamp's position among them, for merging shard results
+   private static final String ORDER_COLUMNS = "orderID, login, storeID, totalPrice, orderTimestamp, orderStatus";
+   private static final int ORDER_TIMESTAMP_COLUMN = 4;
+
+   // recognises retried orders by their idempotency key
+   private IdempotencyGuard _idempotency = null;
+
+   // what the first screens after login show, prefetched by LogIn
+   private final Map<String, UserSession> _sessions = new ConcurrentHashMap<String, UserSession>();
+   private static final int RECENT_ORDERS = 5;
+
+   // per-operation-class statement permits and timeouts
+   private final AdmissionControl _admission = new AdmissionControl();
+
+   // menu and cached lists from the last run, for a warm start
+   private static final String SNAPSHOT_FILE = "cache.snapshot";
+   private static final int MENU_SEARCH_RESULTS = 10;
+   private static final int MENU_SUGGESTIONS = 3;
+
+   // closed orders moved out of FoodOrder/ItemsInOrder
+   private OrderArchive _archive = null;
+   private static final String ARCHIVE_DIR = "archive";
+   private static final int DEFAULT_RETENTION_DAYS = 365;
 
    /**
     * Creates a new instance of PizzaStore
@@ -55,6 +137,23 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public PizzaStore(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd, null, 0);
+   }//end PizzaStore
+
+   /**
+    * Creates a new instance of PizzaStore that sends read-only screens to a
+    * replica
+    *
+    * @param dbname the name of the database
+    * @param dbport the port of the primary
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param replicaUrl JDBC URL of the read replica, or null for none
+    * @param maxLagSeconds how far behind the replica may be and still serve reads
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public PizzaStore(String dbname, String dbport, String user, String passwd,
+                     String replicaUrl, double maxLagSeconds) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
@@ -62,16 +161,97 @@ public class PizzaStore {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
-         System.out.println("Done");
+         // obtain a physical connection in the background; everything that
+         // needs it waits in connection()
+         this._url = url;
+         this._user = user;
+         this._passwd = passwd;
+         this._connecting = new FutureTask<Connection>(new Callable<Connection>() {
+            public Connection call() {
+               try {
+                  // use postgres JDBC driver.
+                  Class.forName ("org.postgresql.Driver").newInstance ();
+                  Connection connection = DriverManager.getConnection(PizzaStore.this._url,
+                                                                      PizzaStore.this._user, PizzaStore.this._passwd);
+
+                  // backstop for drivers that don't enforce setQueryTimeout
+                  Statement stmt = connection.createStatement();
+                  stmt.execute("SET statement_timeout = " + AdmissionControl.MAX_TIMEOUT_SECONDS * 1000);
+                  stmt.close();
+                  return connection;
+               } catch (Exception e) {
+                  System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
+                  System.out.println("Make sure you started postgres on this machine");
+                  System.exit(-1);
+                  return null;
+               }
+            }
+         });
+         Thread connect = new Thread(this._connecting, "db-connect");
+         connect.setDaemon(true);
+         connect.start();
+         this._notifier = new OrderStatusNotifier(this);
+         this._dispatchQueue = new DispatchQueue(this);
+         this._archive = new OrderArchive(this, ARCHIVE_DIR);
+         this._menu = new MenuCatalog(this);
+         this._menuSearch = new MenuSearchIndex();
+         this._menu.addListener(this._menuSearch);
+         this._ingredients = new IngredientIndex();
+         this._menu.addListener(this._ingredients);
+         this._pricing = new PricingEngine();
+         this._menu.addListener(this._pricing);
+         this._reference = new ReferenceSnapshot(this, REFERENCE_FILE);
+         this._idempotency = new IdempotencyGuard(this);
+         this._cache = new ResultCache(new ResultCache.Loader() {
+            public List<List<String>> load(String query) throws SQLException {
+               // the cached tables are written with noteWrite(REFERENCE), so a
+               // load right after an invalidation still goes to the primary
+               return executeReadQueryAndReturnResult(query, ReplicaRouter.REFERENCE);
+            }
+         });
+         this._replicas = new ReplicaRouter(replicaUrl, user, passwd, maxLagSeconds);
+         if (this._replicas.isEnabled())
+            System.out.println ("Read replica URL: " + replicaUrl);
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
          System.exit(-1);
       }//end catch
+
+      try{
+         // orders of the store ranges listed in the file live on their own databases
+         this._shards = new ShardRouter(this, SHARDS_FILE, user, passwd);
+         if (this._shards.isSharded())
+            System.out.println ("Order shards: " + (this._shards.databaseCount() - 1));
+      }catch (IOException e){
+         System.err.println("Error - Unable to read shard config " + SHARDS_FILE + ": " + e.getMessage() );
+         System.exit(-1);
+      }//end catch
+
    }//end PizzaStore
 
+   /**
+    * Starts the background work of a client: partition maintenance, the
+    * idempotency key purge, the dispatch queue sync and the order journal.
+    * Not needed to only migrate the schema.
+    */
+   public void start() {
+      // new orders must always find their month's partition
+      this._partitions = new PartitionMaintenance(this);
+      this._partitions.start();
+      this._idempotency.start();
+      this._dispatchQueue.start();
+
+      try{
+         // replays orders left over from a previous run, then keeps applying new ones
+         this._journal = new OrderJournal(this, JOURNAL_FILE);
+         this._journal.start();
+      }catch (IOException e){
+         System.err.println("Error - Unable to open order journal " + JOURNAL_FILE + ": " + e.getMessage() );
+         System.exit(-1);
+      }//end catch
+   }//end start
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -80,16 +260,50 @@ public class PizzaStore {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      int opClass = this._admission.classify(sql);
+      this._admission.acquire(opClass);
+      try {
+         // creates a statement object
+         Statement stmt = connection().createStatement ();
+         this._admission.configure(stmt, opClass);
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+         // issues the update instruction
+         stmt.executeUpdate (sql);
 
-      // close the instruction
-      stmt.close ();
+         // close the instruction
+         stmt.close ();
+      } finally {
+         this._admission.release(opClass);
+      }
    }//end executeUpdate
 
+   /**
+    * Method to execute an update SQL statement and report how many rows it
+    * changed, e.g. to tell whether a compare-and-set update won.
+    *
+    * @param sql the input SQL string
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdateCount (String sql) throws SQLException {
+      int opClass = this._admission.classify(sql);
+      this._admission.acquire(opClass);
+      try {
+         // creates a statement object
+         Statement stmt = connection().createStatement ();
+         this._admission.configure(stmt, opClass);
+
+         // issues the update instruction
+         int rowCount = stmt.executeUpdate (sql);
+
+         // close the instruction
+         stmt.close ();
+         return rowCount;
+      } finally {
+         this._admission.release(opClass);
+      }
+   }//end executeUpdateCount
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
@@ -100,37 +314,44 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close();
-      return rowCount;
+      int opClass = this._admission.classify(query);
+      this._admission.acquire(opClass);
+      try {
+         // creates a statement object
+         Statement stmt = connection().createStatement ();
+         this._admission.configure(stmt, opClass);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+
+         // iterates through the result set and output them to standard out.
+         boolean outputHeader = true;
+         while (rs.next()){
+   		 if(outputHeader){
+   			for(int i = 1; i <= numCol; i++){
+   			System.out.print(rsmd.getColumnName(i) + "\t");
+   			}
+   			System.out.println();
+   			outputHeader = false;
+   		 }
+            for (int i=1; i<=numCol; ++i)
+               System.out.print (rs.getString (i) + "\t");
+            System.out.println ();
+            ++rowCount;
+         }//end while
+         stmt.close();
+         return rowCount;
+      } finally {
+         this._admission.release(opClass);
+      }
    }//end executeQuery
 
    /**
@@ -143,33 +364,142 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
+      return executeQueryAndReturnResult(connection(), query);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * return the results column by column, typed from the result set's
+    * metadata, for callers that compute with the values.
+    *
+    * @param query the input query string
+    * @return the query result as typed columns
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ColumnarResult executeQueryAndReturnColumns (String query) throws SQLException {
+      return executeQueryAndReturnColumns(connection(), query);
+   }//end executeQueryAndReturnColumns
+
+   /**
+    * Method to execute a read-only query (i.e. SELECT) on the read replica
+    * when the staleness policy allows it, and on the primary otherwise.
+    *
+    * @param query the input query string
+    * @param login the user the read is for, so their own fresh writes are
+    *              read back from the primary; null if not user specific
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeReadQueryAndReturnResult (String query, String login) throws SQLException {
+      // the replica needs the driver the primary connect loads
+      awaitConnection();
+      Connection replica = this._replicas.acquire(login);
+      if (replica == null)
+         return executeQueryAndReturnResult(query);
+
+      List<List<String>> result;
+      try {
+         result = executeQueryAndReturnResult(replica, query);
+      } catch (SQLException e) {
+         // replica trouble, fall back to the primary
+         this._replicas.discard(replica);
+         return executeQueryAndReturnResult(query);
+      }
+      this._replicas.release(replica);
+      return result;
+   }//end executeReadQueryAndReturnResult
+
+   /**
+    * Method to execute a read-only query (i.e. SELECT) on the read replica
+    * when the staleness policy allows it, and on the primary otherwise,
+    * returning the results column by column.
+    *
+    * @param query the input query string
+    * @param login the user the read is for, see executeReadQueryAndReturnResult
+    * @return the query result as typed columns
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ColumnarResult executeReadQueryAndReturnColumns (String query, String login) throws SQLException {
+      awaitConnection();
+      Connection replica = this._replicas.acquire(login);
+      if (replica == null)
+         return executeQueryAndReturnColumns(query);
+
+      ColumnarResult result;
+      try {
+         result = executeQueryAndReturnColumns(replica, query);
+      } catch (SQLException e) {
+         this._replicas.discard(replica);
+         return executeQueryAndReturnColumns(query);
+      }
+      this._replicas.release(replica);
       return result;
+   }//end executeReadQueryAndReturnColumns
+
+   /**
+    * Method to execute a read-only query on a read-mostly table through the
+    * result cache.  The result is shared and must not be modified.
+    *
+    * @param query the input query string
+    * @param ttlMillis how long the result may be served from the cache
+    * @param tables the tables the query reads, invalidated by their writers
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeCachedQueryAndReturnResult (String query, long ttlMillis, String... tables)
+         throws SQLException {
+      return this._cache.get(query, ttlMillis, tables);
+   }//end executeCachedQueryAndReturnResult
+
+   private List<List<String>> executeQueryAndReturnResult (Connection connection, String query) throws SQLException {
+      int opClass = this._admission.classify(query);
+      this._admission.acquire(opClass);
+      try {
+         // creates a statement object
+         Statement stmt = connection.createStatement ();
+         this._admission.configure(stmt, opClass);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+
+         // iterates through the result set and saves the data returned by the query.
+         boolean outputHeader = false;
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+           List<String> record = new ArrayList<String>();
+   		for (int i=1; i<=numCol; ++i)
+   			record.add(rs.getString (i));
+           result.add(record);
+         }//end while
+         stmt.close ();
+         return result;
+      } finally {
+         this._admission.release(opClass);
+      }
    }//end executeQueryAndReturnResult
 
+   private ColumnarResult executeQueryAndReturnColumns (Connection connection, String query) throws SQLException {
+      int opClass = this._admission.classify(query);
+      this._admission.acquire(opClass);
+      try {
+         Statement stmt = connection.createStatement ();
+         this._admission.configure(stmt, opClass);
+         ColumnarResult result = ColumnarResult.read(stmt.executeQuery (query));
+         stmt.close ();
+         return result;
+      } finally {
+         this._admission.release(opClass);
+      }
+   }//end executeQueryAndReturnColumns
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -179,20 +509,27 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
-
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+      int opClass = this._admission.classify(query);
+      this._admission.acquire(opClass);
+      try {
+          // creates a statement object
+          Statement stmt = connection().createStatement ();
+         this._admission.configure(stmt, opClass);
+
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery (query);
+
+          int rowCount = 0;
+
+          // iterates through the result set and count nuber of results.
+          while (rs.next()){
+             rowCount++;
+          }//end while
+          stmt.close ();
+          return rowCount;
+      } finally {
+         this._admission.release(opClass);
+      }
    }
 
    /**
@@ -205,7 +542,7 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+	Statement stmt = connection().createStatement ();
 
 	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
 	if (rs.next())
@@ -213,13 +550,253 @@ public class PizzaStore {
 	return -1;
    }
 
+   /**
+    * Waits until the main connection has been opened.
+    *
+    * @throws java.sql.SQLException when interrupted while waiting
+    */
+   public void awaitConnection() throws SQLException {
+      connection();
+   }//end awaitConnection
+
+   private Connection connection() throws SQLException {
+      try {
+         return this._connecting.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while connecting");
+      } catch (ExecutionException e) {
+         throw new SQLException("Unable to connect: " + e.getCause());
+      }
+   }//end connection
+
+   /**
+    * Opens an additional physical connection to the same database, for
+    * helpers that must not share the main connection (e.g. LISTEN).
+    *
+    * @return a new connection
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public Connection openConnection() throws SQLException {
+      awaitConnection();
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }//end openConnection
+
+   /**
+    * Returns the backend process id of the main connection, so pushed
+    * notifications we sent ourselves can be told apart.
+    *
+    * @return the backend pid, or -1 if it cannot be determined
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int getBackendPID() throws SQLException {
+      List<List<String>> result = executeQueryAndReturnResult("SELECT pg_backend_pid()");
+      if (result.isEmpty())
+         return -1;
+      return Integer.parseInt(result.get(0).get(0));
+   }//end getBackendPID
+
+   /**
+    * @return the order status notifier bound to this connection
+    */
+   public OrderStatusNotifier getNotifier() {
+      return this._notifier;
+   }//end getNotifier
+
+   /**
+    * @return the dispatch queue of pending orders
+    */
+   public DispatchQueue getDispatchQueue() {
+      return this._dispatchQueue;
+   }//end getDispatchQueue
+
+   /**
+    * @return the router deciding which reads go to the replica
+    */
+   public ReplicaRouter getReplicas() {
+      return this._replicas;
+   }//end getReplicas
+
+   /**
+    * @return the versioned local copy of the menu
+    */
+   public MenuCatalog getMenu() {
+      return this._menu;
+   }//end getMenu
+
+   /**
+    * @return the shared snapshot of Items and Store
+    */
+   public ReferenceSnapshot getReference() {
+      return this._reference;
+   }//end getReference
+
+   /**
+    * Finds the stores in a city in the shared reference snapshot, or with
+    * the cached query if the snapshot can't be used.  While the database
+    * can't be reached an expired cached result is used as well.
+    *
+    * @param city the exact city name
+    * @return the storeIDs, by storeID
+    * @throws java.sql.SQLException when failed to execute the query and no
+    *         copy of the stores is at hand
+    */
+   public int[] getStoreIDsInCity(String city) throws SQLException {
+      if (this._reference.ensureFresh(STORE_CACHE_TTL))
+         return this._reference.storeIDsInCity(city);
+      String query = "SELECT storeID FROM Store WHERE city = '" + city + "' ORDER BY storeID";
+      List<List<String>> results;
+      try {
+         results = executeCachedQueryAndReturnResult(query, STORE_CACHE_TTL, "Store");
+      } catch (SQLException e) {
+         results = this._cache.peek(query);
+         if (results == null) {
+            List<List<String>> stores = this._cache.peek(STORES_QUERY);
+            if (stores == null)
+               throw e;
+            // storeID and city, in the order of ReferenceSnapshot.STORE_COLUMNS
+            results = new ArrayList<List<String>>();
+            for (List<String> store : stores) {
+               if (city.equals(store.get(2).trim()))
+                  results.add(store);
+            }
+         }
+      }
+      int[] storeIDs = new int[results.size()];
+      for (int i = 0; i < storeIDs.length; i++)
+         storeIDs[i] = Integer.parseInt(results.get(i).get(0).trim());
+      Arrays.sort(storeIDs);
+      return storeIDs;
+   }//end getStoreIDsInCity
+
+   /**
+    * @return every store, from the shared reference snapshot or with the
+    *         cached query if the snapshot can't be used
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> getStores() throws SQLException {
+      if (this._reference.ensureFresh(STORE_CACHE_TTL))
+         return this._reference.stores();
+      return executeCachedQueryAndReturnResult(STORES_QUERY, STORE_CACHE_TTL, "Store");
+   }//end getStores
+
+   /**
+    * @return the full-text index over the menu
+    */
+   public MenuSearchIndex getMenuSearch() {
+      return this._menuSearch;
+   }//end getMenuSearch
+
+   /**
+    * @return the ingredient bitsets of the menu
+    */
+   public IngredientIndex getIngredients() {
+      return this._ingredients;
+   }//end getIngredients
+
+   /**
+    * @return the pricing engine
+    */
+   public PricingEngine getPricing() {
+      return this._pricing;
+   }//end getPricing
+
+   /**
+    * @return the idempotency key check of placeOrder
+    */
+   public IdempotencyGuard getIdempotency() {
+      return this._idempotency;
+   }//end getIdempotency
+
+   /**
+    * @return the router to the databases holding orders
+    */
+   public ShardRouter getShards() {
+      return this._shards;
+   }//end getShards
+
+   /**
+    * @return the admission control in front of the execute methods
+    */
+   public AdmissionControl getAdmission() {
+      return this._admission;
+   }//end getAdmission
+
+   /**
+    * @param login the user
+    * @return the user's prefetched session, or null if they didn't log in
+    *         through LogIn in this process
+    */
+   public UserSession getSession(String login) {
+      return login == null ? null : this._sessions.get(login);
+   }//end getSession
+
+   /**
+    * Drops a user's prefetched session, on logout or when their row changed.
+    */
+   public void endSession(String login) {
+      if (login != null)
+         this._sessions.remove(login);
+   }//end endSession
+
+   /**
+    * Drops the prefetched orders of every session, after a status change
+    * on an order that may be anyone's.
+    */
+   public void invalidateSessionOrders() {
+      for (UserSession session : this._sessions.values())
+         session.invalidateOrders();
+   }//end invalidateSessionOrders
+
+   /**
+    * @return the query result cache, for invalidation by writers
+    */
+   public ResultCache getCache() {
+      return this._cache;
+   }//end getCache
+
+   /**
+    * @return the archive of closed orders
+    */
+   public OrderArchive getArchive() {
+      return this._archive;
+   }//end getArchive
+
+   /**
+    * @return the write-ahead journal for placed orders
+    */
+   public OrderJournal getJournal() {
+      return this._journal;
+   }//end getJournal
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      if (this._notifier != null){
+         this._notifier.close();
+      }//end if
+      if (this._journal != null){
+         this._journal.close();
+      }//end if
+      if (this._replicas != null){
+         this._replicas.close();
+      }//end if
+      if (this._partitions != null){
+         this._partitions.stop();
+      }//end if
+      if (this._idempotency != null){
+         this._idempotency.stop();
+      }//end if
+      if (this._dispatchQueue != null){
+         this._dispatchQueue.stop();
+      }//end if
+      if (this._shards != null){
+         this._shards.close();
+      }//end if
       try{
-         if (this._connection != null){
-            this._connection.close ();
+         if (this._connecting != null && this._connecting.isDone()){
+            connection().close ();
          }//end if
       }catch (SQLException e){
          // ignored.
@@ -232,26 +809,75 @@ public class PizzaStore {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      // --batch <script|-> [--workers <n>] runs a script instead of the menus,
+      // --migrate <dir> applies the schema migrations in dir and exits
+      String batchScript = null;
+      String migrationsDir = null;
+      int batchWorkers = 1;
+      List<String> positional = new ArrayList<String>();
+      try {
+         for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--batch"))
+               batchScript = args[++i];
+            else if (args[i].equals("--migrate"))
+               migrationsDir = args[++i];
+            else if (args[i].equals("--workers"))
+               batchWorkers = Integer.parseInt(args[++i]);
+            else
+               positional.add(args[i]);
+         }
+      } catch (RuntimeException e) {
+         positional.clear(); // missing or bad option value, print the usage
+      }
+      args = positional.toArray(new String[positional.size()]);
+      if (args.length < 3 || args.length > 5) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             PizzaStore.class.getName () +
-            " <dbname> <port> <user>");
+            " [--batch <script file|-> [--workers <n>] | --migrate <migrations dir>]" +
+            " <dbname> <port> <user> [<replica jdbc url> [<max replica lag seconds>]]");
          return;
       }//end if
 
+      long started = System.nanoTime();
       Greeting();
       PizzaStore esql = null;
+      Startup startup = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the PizzaStore object and creates a physical
-         // connection.
+         // instantiate the PizzaStore object; the physical connection is
+         // opened in the background while the menu is shown
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
-         esql = new PizzaStore (dbname, dbport, user, "");
+         String replicaUrl = args.length > 3 ? args[3] : null;
+         double maxLagSeconds = args.length > 4 ? Double.parseDouble(args[4]) : DEFAULT_MAX_REPLICA_LAG;
+         esql = new PizzaStore (dbname, dbport, user, "", replicaUrl, maxLagSeconds);
+
+         // before any background work touches the schema
+         if (migrationsDir != null) {
+            int applied = new SchemaMigrations(esql, migrationsDir).run();
+            System.out.println(applied + " migration(s) applied");
+            return;
+         }//end if
+         esql.start();
+
+         // serve the menu and cached lists from the last run until the
+         // database answers, then warm them (and the queue of orders still
+         // waiting for a driver) in parallel
+         List<Startup.CachedQuery> cachedQueries = new ArrayList<Startup.CachedQuery>();
+         cachedQueries.add(new Startup.CachedQuery("item types", ITEM_TYPES_QUERY, ITEM_TYPES_CACHE_TTL, "Items"));
+         startup = new Startup(esql, SNAPSHOT_FILE, cachedQueries, started);
+         startup.loadSnapshot();
+         startup.warmUp();
+         startup.phase("first screen", started);
+
+         if (batchScript != null) {
+            int failed = new BatchRunner(esql, batchWorkers).run(batchScript);
+            if (failed > 0)
+               System.err.println(failed + " batch command(s) failed");
+            return;
+         }//end if
 
          boolean keepon = true;
          while(keepon) {
@@ -281,31 +907,28 @@ public class PizzaStore {
                 System.out.println("6. View Past 5 Order IDs");
                 System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
                 System.out.println("8. View Stores"); 
+                System.out.println("12. Track Order Status"); //pushed updates instead of re-running option 7
 
                 //**the following functionalities should only be able to be used by drivers & managers**
                 System.out.println("9. Update Order Status");
+                System.out.println("13. Claim Pending Orders");
+                System.out.println("16. Claim Delivery Batch");
+                System.out.println("17. Finish Delivery Batch");
 
                 //**the following functionalities should ony be able to be used by managers**
                 System.out.println("10. Update Menu");
                 System.out.println("11. Update User");
+                System.out.println("14. Archive Old Orders");
+                System.out.println("15. Export Orders");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
-                switch (readChoice()){
-                   case 1: viewProfile(esql, authorisedUser); break;
-                   case 2: updateProfile(esql, authorisedUser); break;
-                   case 3: viewMenu(esql); break;
-                   case 4: placeOrder(esql, authorisedUser); break;
-                   case 5: viewAllOrders(esql, authorisedUser); break;
-                   case 6: viewRecentOrders(esql, authorisedUser); break;
-                   case 7: viewOrderInfo(esql, authorisedUser); break;                   
-                   case 8: viewStores(esql); break;
-                   case 9: updateOrderStatus(esql, authorisedUser); break;
-                   case 10: updateMenu(esql, authorisedUser); break;
-                   case 11: authorisedUser = updateUser(esql, authorisedUser); break;
-
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
+                int choice = readChoice();
+                if (choice == 20) {
+                   esql.endSession(authorisedUser);
+                   usermenu = false;
+                } else {
+                   authorisedUser = runUserChoice(esql, authorisedUser, choice);
                 }
               }
             }
@@ -315,6 +938,9 @@ public class PizzaStore {
       }finally{
          // make sure to cleanup the created table and close the connection.
          try{
+            if(startup != null) {
+               startup.saveSnapshot();
+            }//end if
             if(esql != null) {
                System.out.print("Disconnecting from database...");
                esql.cleanup ();
@@ -326,6 +952,39 @@ public class PizzaStore {
       }//end try
    }//end main
 
+   /**
+    * Runs one option of the logged-in menu; shared by the menu loop and
+    * batch mode.
+    *
+    * @return the user logged in afterwards (Update User may rename them)
+    */
+   public static String runUserChoice(PizzaStore esql, String authorisedUser, int choice) {
+      // manager screens take admin permits, so they can't crowd out customers
+      boolean managerScreen = choice == 10 || choice == 11 || choice == 14 || choice == 15;
+      esql.getAdmission().setOperationClass(managerScreen ? AdmissionControl.ADMIN : -1);
+      switch (choice){
+         case 1: viewProfile(esql, authorisedUser); break;
+         case 2: updateProfile(esql, authorisedUser); break;
+         case 3: viewMenu(esql); break;
+         case 4: placeOrder(esql, authorisedUser); break;
+         case 5: viewAllOrders(esql, authorisedUser); break;
+         case 6: viewRecentOrders(esql, authorisedUser); break;
+         case 7: viewOrderInfo(esql, authorisedUser); break;
+         case 8: viewStores(esql); break;
+         case 9: updateOrderStatus(esql, authorisedUser); break;
+         case 10: updateMenu(esql, authorisedUser); break;
+         case 11: authorisedUser = updateUser(esql, authorisedUser); break;
+         case 12: trackOrderStatus(esql, authorisedUser); break;
+         case 13: claimPendingOrders(esql, authorisedUser); break;
+         case 14: archiveOrders(esql, authorisedUser); break;
+         case 15: exportOrders(esql, authorisedUser); break;
+         case 16: claimDeliveryBatch(esql, authorisedUser); break;
+         case 17: finishDeliveryBatch(esql, authorisedUser); break;
+         default : System.out.println("Unrecognized choice!"); break;
+      }
+      return authorisedUser;
+   }//end runUserChoice
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -342,8 +1001,10 @@ public class PizzaStore {
       // returns only if a correct value is given.
       do {
          System.out.print("Please make your choice: ");
-         try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
+         // end of input is not an invalid choice, it ends the session
+         String line = ConsoleInput.get().nextLine();
+         try { // parse the integer and break.
+            input = Integer.parseInt(line.trim());
             break;
          }catch (Exception e) {
             System.out.println("Your input is invalid!");
@@ -369,7 +1030,7 @@ public class PizzaStore {
       //username validation loop 
       do {
          //username input
-         Scanner myObj = new Scanner(System.in);
+         ConsoleInput myObj = ConsoleInput.get();
          System.out.print("Create Username: ");
          userName = myObj.nextLine();
 
@@ -412,7 +1073,7 @@ public class PizzaStore {
       //password validation loop 
       do {
          //password input
-         Scanner myObj = new Scanner(System.in);
+         ConsoleInput myObj = ConsoleInput.get();
          System.out.print("Create Password: ");
          password = myObj.nextLine();
 
@@ -434,7 +1095,7 @@ public class PizzaStore {
       //phonenumber validation loop 
       do {
          //phonenumber input
-         Scanner myObj = new Scanner(System.in);
+         ConsoleInput myObj = ConsoleInput.get();
          System.out.print("Add phone number in XXX-XXX-XXXX format: ");
          phonenumber = myObj.nextLine();
 
@@ -483,7 +1144,7 @@ public class PizzaStore {
       String password;
 
       // username input
-      Scanner myObj = new Scanner(System.in);
+      ConsoleInput myObj = ConsoleInput.get();
       System.out.print("Enter Username: ");
       username = myObj.nextLine();
 
@@ -491,18 +1152,19 @@ public class PizzaStore {
       System.out.print("Enter password: ");
       password = myObj.nextLine();
 
-      // username validation
-      String userExistsQuery = "SELECT * FROM users U WHERE U.login = '" + username + "'AND U.password = '" + password + "'";
-
+      // username validation, in the same round trip as the profile, the
+      // recent orders and the menu version the next screens show
       try {
-         // use the executeQuery method from the PizzaStore instance (esql)
-         int existingUserCount = esql.executeQuery(userExistsQuery); // This will return the number of rows returned
-       
+         UserSession session = UserSession.open(esql, username, password, RECENT_ORDERS);
+
          // if username doesn't exist, return null
-         if (existingUserCount <= 0) {
+         if (session == null) {
             System.out.println("Invalid credentials");
             return null;
          } else {
+            esql._sessions.put(username, session);
+            if (session.menuVersion() >= 0)
+               esql.getMenu().noteCurrentVersion(session.menuVersion(), session.remainingMillis());
             return username;
          }
       } catch (SQLException e) {
@@ -523,16 +1185,22 @@ public class PizzaStore {
       String favoriteItemsQuery = "SELECT favoriteItems FROM Users WHERE login='" + authorisedUser + "'";
 
       List<List<String>> results;
+      UserSession session = esql.getSession(authorisedUser);
+      String[] profile = session == null ? null : session.profile();
 
       try {
          // print out users
          System.out.println("");
          System.out.println("--------------------------------");
          System.out.print("Phone Number: ");
-         results = esql.executeQueryAndReturnResult(phoneNumQuery);
+         results = profile != null
+            ? Collections.singletonList(Collections.singletonList(profile[0]))
+            : esql.executeQueryAndReturnResult(phoneNumQuery);
          System.out.println(results.get(0));
          System.out.print("Favorite Item(s): ");
-         results = esql.executeQueryAndReturnResult(favoriteItemsQuery);
+         results = profile != null
+            ? Collections.singletonList(Collections.singletonList(profile[1]))
+            : esql.executeQueryAndReturnResult(favoriteItemsQuery);
          System.out.println(results.get(0));
          System.out.println("--------------------------------");
          System.out.println("");
@@ -545,7 +1213,7 @@ public class PizzaStore {
 
    public static void updateProfile(PizzaStore esql, String authorisedUser) {
       
-      Scanner myObj = new Scanner(System.in);
+      ConsoleInput myObj = ConsoleInput.get();
       int rowCount;
       String query;
 
@@ -605,13 +1273,11 @@ public class PizzaStore {
             List<String> favItemsResult = new ArrayList<>(); 
 
             // print and add items to favItemsResult
-            query = "SELECT * FROM Items";
-
             try {
-               List<List<String>> results = esql.executeQueryAndReturnResult(query);
+               List<MenuCatalog.MenuItem> results = esql.getMenu().items();
                
                for (int i = 0; i < results.size(); i++) {
-                  List<String> record = results.get(i);
+                  List<String> record = results.get(i).toRecord();
                   System.out.println(record);
 
                   //create a list of items 
@@ -691,9 +1357,14 @@ public class PizzaStore {
             }
             break;
 
-         case 9: break;
-         default : System.out.println("Unrecognized choice!"); break;
+         case 9: return;
+         default : System.out.println("Unrecognized choice!"); return;
       }
+
+      // the prefetched profile no longer matches the row
+      UserSession session = esql.getSession(authorisedUser);
+      if (session != null)
+         session.invalidateProfile();
    }
 
 
@@ -708,17 +1379,17 @@ public class PizzaStore {
          System.out.println("1. Full Menu");
          System.out.println("2. Filter Menu");
          System.out.println("3. Main Menu");
+         System.out.println("4. Search Menu");
          switch (readChoice()){
 
             case 1: //show the entire menu to the user 
 
-               String defaultQuery = "SELECT * FROM Items";
-            
+               //local copy of the menu, only re-downloaded when its version changed
                try {
-                  List<List<String>> results = esql.executeQueryAndReturnResult(defaultQuery);
+                  List<MenuCatalog.MenuItem> results = esql.getMenu().items();
 
                   for (int i = 0; i < results.size(); i++) {
-                     List<String> record = results.get(i);
+                     List<String> record = results.get(i).toRecord();
                      System.out.println(record);
                   }
 
@@ -733,10 +1404,10 @@ public class PizzaStore {
                //print out availible types for user to filter by 
                List<String> typesResult = new ArrayList<>(); //list of types
 
-               String typeListQuery = "SELECT DISTINCT typeOfItem FROM Items";
+               String typeListQuery = ITEM_TYPES_QUERY;
          
                try {
-                  List<List<String>> results = esql.executeQueryAndReturnResult(typeListQuery);
+                  List<List<String>> results = esql.executeCachedQueryAndReturnResult(typeListQuery, ITEM_TYPES_CACHE_TTL, "Items");
                    
 
                   for (int i = 0; i < results.size(); i++) {
@@ -755,7 +1426,7 @@ public class PizzaStore {
                //type input 
                String types = "";
                //types input
-               Scanner myObj = new Scanner(System.in);
+               ConsoleInput myObj = ConsoleInput.get();
 
                do {
                   
@@ -830,6 +1501,17 @@ public class PizzaStore {
 
                } while (true);  // Repeat until valid input is provided
 
+               // Ingredient input, checked against the ingredients on the menu
+               try {
+                  esql.getMenu().revalidate();
+               } catch (SQLException e) {
+                  System.err.println("SQL error: " + e.getMessage());
+               }
+               List<String> includeList = readIngredients(esql, myObj,
+                  "Must contain ingredients? (leave empty for any, comma for multiple): ");
+               List<String> excludeList = readIngredients(esql, myObj,
+                  "Exclude ingredients? (leave empty for none, comma for multiple): ");
+
                // Order input
                String orderInput = "";
 
@@ -851,54 +1533,44 @@ public class PizzaStore {
                } while (true);  // Repeat until valid order is provided
 
 
-               //once you have query parameters execute and show said query (simplier than input validation)
-
-               StringBuilder queryBuilder = new StringBuilder("SELECT * FROM Items WHERE 1=1");
-
-               // Filter by types (if user entered valid types)
+               //once you have the parameters filter the local menu copy (simplier than input validation)
+               List<String> typeFilter = new ArrayList<String>();
                if (!types.trim().isEmpty()) {
-                  String[] typesArray = types.split("\\s+");  // Split the input types by space
-                  for (int i = 0; i < typesArray.length; i++) {
-                     if (i == 0) {
-                           // For the first type, use "AND" to start the filter condition
-                           queryBuilder.append(" AND (");
-                     }
-                     queryBuilder.append("typeOfItem LIKE '%").append(typesArray[i].trim()).append("'");
-                     
-                     if (i < typesArray.length - 1) {
-                           // Add "OR" between types
-                           queryBuilder.append(" OR ");
-                     }
-                  }
-                  // Close the parentheses for the OR conditions
-                  queryBuilder.append(")");
-               }
-
-
-               // Filter by price (if user entered a valid price)
-               if (filterPrice > 0) {
-                  queryBuilder.append(" AND price <= ").append(filterPrice);
+                  for (String type : types.split("\\s+"))
+                     typeFilter.add(type.trim());
                }
+               long[] include = esql.getIngredients().mask(includeList);
+               long[] exclude = esql.getIngredients().mask(excludeList);
+               long maxCents = Math.round(filterPrice * 100);
 
-               // Add order clause (if the user specified an order)
-               if (!orderInput.isEmpty()) {
-                  // Assuming orderClause contains 'ASC' or 'DESC'
-                  if (orderInput.equals("a")) {
-                     queryBuilder.append(" ORDER BY price ASC");
-                  } else if (orderInput.equals("d")) {
-                     queryBuilder.append(" ORDER BY price DESC");
+               try {
+                  List<MenuCatalog.MenuItem> filtered = new ArrayList<MenuCatalog.MenuItem>();
+                  for (MenuCatalog.MenuItem item : esql.getMenu().items()) {
+                     // Filter by types (if user entered valid types)
+                     if (!typeFilter.isEmpty() && !typeFilter.contains(item.typeOfItem.trim()))
+                        continue;
+                     // Filter by price (if user entered a valid price)
+                     if (filterPrice > 0 && item.priceCents > maxCents)
+                        continue;
+                     // Filter by ingredients, one AND per 64 ingredients
+                     if (!esql.getIngredients().matches(item.itemName, include, exclude))
+                        continue;
+                     filtered.add(item);
                   }
-               }
 
-               // Final custom query string
-               String customQuery = queryBuilder.toString();
-               //System.out.println(customQuery);
-            
-               try {
-                  List<List<String>> results = esql.executeQueryAndReturnResult(customQuery);
+                  // Add order (if the user specified an order)
+                  if (!orderInput.isEmpty()) {
+                     final boolean ascending = orderInput.equals("a");
+                     Collections.sort(filtered, new Comparator<MenuCatalog.MenuItem>() {
+                        public int compare(MenuCatalog.MenuItem a, MenuCatalog.MenuItem b) {
+                           int byPrice = a.priceCents < b.priceCents ? -1 : a.priceCents > b.priceCents ? 1 : 0;
+                           return ascending ? byPrice : -byPrice;
+                        }
+                     });
+                  }
 
-                  for (int i = 0; i < results.size(); i++) {
-                     List<String> record = results.get(i);
+                  for (int i = 0; i < filtered.size(); i++) {
+                     List<String> record = filtered.get(i).toRecord();
                      System.out.println(record);
                   }
 
@@ -908,39 +1580,141 @@ public class PizzaStore {
                }
                break;
 
-               
             case 3: viewmenu = false; break;
 
+            case 4: searchMenu(esql); break;
+
             default : System.out.println("Unrecognized choice!"); break;
          }
       }
    }
 
 
-   public static void placeOrder(PizzaStore esql, String authorisedUser) {
-      String storeCity;
+   /*
+    * Reads a comma-separated ingredient list, asking again while any of
+    * them isn't on the menu.
+    */
+   /*
+    * Brings the local menu copy up to date for an order.  While the
+    * database can't be reached the order goes on with the copy at hand
+    * (the journal places it later); only without any copy is it refused.
+    */
+   private static boolean revalidateMenu(PizzaStore esql) {
+      try {
+         esql.getMenu().revalidate();
+         return true;
+      } catch (SQLException e) {
+         if (esql.getMenu().version() > 0)
+            return true;
+         System.err.println("Error retrieving the menu: " + e.getMessage());
+         return false;
+      }
+   }//end revalidateMenu
 
-      //store city validation loop 
+   private static List<String> readIngredients(PizzaStore esql, ConsoleInput myObj, String prompt) {
       do {
-         //city input
-         Scanner myObj = new Scanner(System.in);
-         System.out.print("Enter Store City: ");
-         storeCity = myObj.nextLine();
-
-         //length of city restrictions 
-         if(storeCity.length() < 5 ){
-            System.out.println("invalid city name: must be at least 5 characters");
-            continue; //prompts for city again 
+         System.out.print(prompt);
+         List<String> ingredients = IngredientIndex.split(myObj.nextLine());
+
+         boolean validInput = true;
+         for (String ingredient : ingredients) {
+            if (!esql.getIngredients().contains(ingredient)) {
+               System.err.println("Error: Ingredient '" + ingredient + "' is not on the menu.");
+               validInput = false;
+            }
          }
+         if (validInput)
+            return ingredients;
+      } while (true);
+   }
 
 
-         //store city existence 
-
-         String existsQuery = "SELECT * FROM Store S WHERE S.city = '" + storeCity + "'";
+   public static void searchMenu(PizzaStore esql) {
+      ConsoleInput myObj = ConsoleInput.get();
+      System.out.print("Search for (name, ingredient or description words): ");
+      String search = myObj.nextLine();
+
+      if (MenuSearchIndex.tokenize(search).isEmpty()) {
+         System.out.println("Nothing to search for");
+         return;
+      }
+
+      try {
+         // a version check; the search itself is answered from memory
+         esql.getMenu().revalidate();
+      } catch (SQLException e) {
+         System.err.println("SQL error: " + e.getMessage());
+      }
+
+      List<String> matches = esql.getMenuSearch().search(search, MENU_SEARCH_RESULTS);
+      if (matches.isEmpty()) {
+         System.out.println("No items match \"" + search + "\"");
+         return;
+      }
+      for (String itemName : matches) {
+         MenuCatalog.MenuItem item = esql.getMenu().find(itemName);
+         if (item != null)
+            System.out.println(item.toRecord());
+      }
+   }
+
+
+   public static void placeOrder(PizzaStore esql, String authorisedUser) {
+      String storeCity;
 
+      // a client retrying a submission sends the same key and gets the original order back
+      String idempotencyKey;
+      do {
+         ConsoleInput myObj = ConsoleInput.get();
+         System.out.print("Idempotency key (optional, enter to skip): ");
+         idempotencyKey = myObj.nextLine().trim();
+
+         if (idempotencyKey.isEmpty()) {
+            idempotencyKey = null;
+            break;
+         }
+         if (idempotencyKey.length() > IdempotencyGuard.MAX_KEY_LENGTH
+               || !idempotencyKey.matches("[A-Za-z0-9_.:-]+")) {
+            System.out.println("invalid key: up to " + IdempotencyGuard.MAX_KEY_LENGTH
+                               + " letters, digits or _ . : -");
+            continue;
+         }
+
+         int placedOrderID;
          try {
-            // Use the executeQuery method from the PizzaStore instance (esql)
-            int existingCount = esql.executeQuery(existsQuery); // This will return the number of rows returned
+            placedOrderID = esql.getIdempotency().lookup(idempotencyKey);
+         } catch (SQLException e) {
+            // during an outage only this process's keys are known; the
+            // database still catches a reused key when the order is applied
+            placedOrderID = esql.getIdempotency().lookupLocal(idempotencyKey);
+         }
+         if (placedOrderID >= 0) {
+            System.out.println("This order was already placed.");
+            System.out.println("Order ID: " + placedOrderID);
+            return;
+         }
+         break;
+      } while (true);
+
+      //store city validation loop 
+      do {
+         //city input
+         ConsoleInput myObj = ConsoleInput.get();
+         System.out.print("Enter Store City: ");
+         storeCity = myObj.nextLine();
+
+         //length of city restrictions 
+         if(storeCity.length() < 5 ){
+            System.out.println("invalid city name: must be at least 5 characters");
+            continue; //prompts for city again 
+         }
+
+
+         //store city existence 
+
+         try {
+            // same shared lookup as the storeID below
+            int existingCount = esql.getStoreIDsInCity(storeCity).length;
 
             if (existingCount == 0) { // if more than 0 there is a user with that name 
                 System.out.println("No stores in " + storeCity);
@@ -950,8 +1724,9 @@ public class PizzaStore {
             break; // Exit the loop when store in city exists 
 
         } catch (SQLException e) {
+            // no copy of the stores to check the city against
             System.err.println("Error checking city: " + e.getMessage());
-            continue; // Continue the loop if there is an exception
+            return;
         }
       }while (true);
 
@@ -964,9 +1739,13 @@ public class PizzaStore {
       List<Integer> quantities = new ArrayList<Integer>(); // To store item quantities
       String item = "";
 
+      // item names are checked against the local menu copy
+      if (!revalidateMenu(esql))
+         return;
+
       do {
          //item input loop
-         Scanner myObj = new Scanner(System.in);
+         ConsoleInput myObj = ConsoleInput.get();
          System.out.print("Enter Item (one at a time)(\"done\" to finish): ");
          item = myObj.nextLine();
 
@@ -990,42 +1769,35 @@ public class PizzaStore {
          //item existence 
          if(item != "done"){
 
-            String existsQuery = "SELECT * FROM Items I WHERE I.itemName = '" + item + "'";
-
-            try {
-               // Use the executeQuery method from the PizzaStore instance (esql)
-               int existingCount = esql.executeQuery(existsQuery); // This will return the number of rows returned
-
-               if (existingCount == 0) { // if more than 0 there is a user with that name 
-                  System.out.println("No items named " + item);
-                  continue; // prompts for city again
-               }
+            if (esql.getMenu().find(item) == null) {
+               System.out.println("No items named " + item);
+               List<String> suggestions = esql.getMenuSearch().search(item, MENU_SUGGESTIONS);
+               if (!suggestions.isEmpty())
+                  System.out.println("Did you mean: " + String.join(", ", suggestions) + "?");
+               continue; // prompts for item again
+            }
 
-               // Prompt for quantity
-               int quantity = 0;
-               do {
-                  System.out.print("Enter quantity for " + item + ": ");
-                  String quantityInput = myObj.nextLine();
-                  try {
-                     quantity = Integer.parseInt(quantityInput);
+            // Prompt for quantity
+            int quantity = 0;
+            do {
+               System.out.print("Enter quantity for " + item + ": ");
+               String quantityInput = myObj.nextLine();
+               try {
+                  quantity = Integer.parseInt(quantityInput);
 
-                     if (quantity <= 0) {
-                        System.out.println("Quantity must be a positive integer");
-                        continue; // Prompt for quantity again
-                     }
-                     break; // Valid quantity entered
-                  } catch (NumberFormatException e) {
-                     System.out.println("Invalid input. Please enter a valid integer.");
+                  if (quantity <= 0) {
+                     System.out.println("Quantity must be a positive integer");
+                     continue; // Prompt for quantity again
                   }
-               } while (true);
-               
-               items.add(item);
-               quantities.add(quantity);
+                  break; // Valid quantity entered
+               } catch (NumberFormatException e) {
+                  System.out.println("Invalid input. Please enter a valid integer.");
+               }
+            } while (true);
+            
+            items.add(item);
+            quantities.add(quantity);
 
-            } catch (SQLException e) {
-               System.err.println("Error checking city: " + e.getMessage());
-               continue; // Continue the loop if there is an exception
-            }
          }
          
 
@@ -1036,109 +1808,110 @@ public class PizzaStore {
          //input each ith place in both lists into item in order (orderID, item, quantity)
       
       //storeID 
-      String query = "SELECT storeID FROM Store WHERE city = '" + storeCity + "'";
       int storeID = -1;
       try {
-         // Execute query and retrieve results
-         List<List<String>> results = esql.executeQueryAndReturnResult(query);
-
-         // Parse the first storeID from the results
-         storeID = Integer.parseInt(results.get(0).get(0));
+         // the first store in the city, off the shared snapshot
+         storeID = esql.getStoreIDsInCity(storeCity)[0];
 
 
       } catch (SQLException e) {
          System.err.println("Error retrieving store: " + e.getMessage());
       }
 
-      //calculating the total price of the order
-      double totalPrice = 0; // Initialize total price
+      //calculating the total price of the order in cents, from the local menu prices
+      if (!revalidateMenu(esql))
+         return;
 
+      int[] itemIndexes = new int[items.size()];
+      int[] itemQuantities = new int[items.size()];
       for (int i = 0; i < items.size(); i++) {
-         String itemIn = items.get(i);       // Current item name
-         int quantityIn = quantities.get(i); // Quantity for the current item
-
-         // Query to get the price of the current item
-         String queryPrice = "SELECT price FROM Items WHERE itemName = '" + itemIn + "'";
-
-         try {
-               // Execute the query and retrieve the price
-               List<List<String>> resultsPrice = esql.executeQueryAndReturnResult(queryPrice);
-
-               if (resultsPrice.isEmpty()) {
-                  System.out.println("Error: Item '" + itemIn + "' not found in the database.");
-                  continue;
-               }
-
-               // Parse the price from the query result
-               double price = Double.parseDouble(resultsPrice.get(0).get(0));
-
-               // Calculate the cost for the current item and add to total price
-               totalPrice += price * quantityIn;
-
-         } catch (SQLException e) {
-               System.err.println("Error retrieving price for item '" + itemIn + "': " + e.getMessage());
+         itemIndexes[i] = esql.getPricing().indexOf(items.get(i));
+         itemQuantities[i] = quantities.get(i);
+         if (itemIndexes[i] < 0) {
+            System.out.println("Error: Item '" + items.get(i) + "' is no longer on the menu.");
+            return;
          }
       }
+      long totalCents = esql.getPricing().total(storeID, itemIndexes, itemQuantities, items.size());
+      if (totalCents < 0) {
+         System.out.println("Error: an item of this order is no longer on the menu.");
+         return;
+      }
 
-      // Get the last inserted orderID (for use in ItemsInOrder table)
-      String getOrderIDinQuery = "SELECT MAX(orderID) FROM FoodOrder";
-      int orderIDin = 0;
-      try {
-         List<List<String>> results = esql.executeQueryAndReturnResult(getOrderIDinQuery);
+      if (storeID < 0) {
+         System.out.println("Error inserting order: store could not be determined");
+         return;
+      }
 
-         if (!results.isEmpty() && !results.get(0).isEmpty()) {
-               orderIDin = Integer.parseInt(results.get(0).get(0)) + 1; // Increment the orderID
-         }
+      // allocate the order ID from the journal's reserved block
+      int orderID;
+      try {
+         orderID = esql.getJournal().nextOrderID();
       } catch (SQLException e) {
          System.err.println("Error retrieving orderID: " + e.getMessage());
+         return;
       }
 
+      // a concurrent submission with the same key may have won meanwhile
+      if (idempotencyKey != null) {
+         int placedOrderID = esql.getIdempotency().record(idempotencyKey, orderID);
+         if (placedOrderID != orderID) {
+            System.out.println("This order was already placed.");
+            System.out.println("Order ID: " + placedOrderID);
+            return;
+         }
+      }
 
-
-      // Insert the order into the FoodOrder table
-      String insertOrderQuery = "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) "
-            + "VALUES (" + orderIDin + ", '" + authorisedUser + "', " + storeID + ", " + totalPrice + ", CURRENT_TIMESTAMP, 'Pending')";
-
+      // make the order durable locally first; FoodOrder and ItemsInOrder are
+      // written by the journal's replayer, also after a database outage
+      long orderTimestamp = System.currentTimeMillis();
+      OrderJournal.Entry entry = new OrderJournal.Entry(orderID, authorisedUser, storeID,
+         totalCents, orderTimestamp, items, quantities, idempotencyKey);
+      long journalSeq;
       try {
-         esql.executeUpdate(insertOrderQuery);
-      } catch (SQLException e) {
+         journalSeq = esql.getJournal().append(entry);
+      } catch (IOException e) {
+         if (idempotencyKey != null)
+            esql.getIdempotency().forget(idempotencyKey, orderID);
          System.err.println("Error inserting order: " + e.getMessage());
-         return;  // Exit if the insertion fails
+         return;  // Exit if the order could not be saved
       }
 
-
-      // Get the last inserted orderID (for use in ItemsInOrder table)
-      String getOrderIDQuery = "SELECT MAX(orderID) FROM FoodOrder";
-      int orderID = 0;
-      try {
-         // Use executeQueryAndReturnResult to get the result as a List of Lists
-         List<List<String>> results = esql.executeQueryAndReturnResult(getOrderIDQuery);
-         
-         // Check if the results are not empty and extract the first value (which is the MAX(orderID))
-         if (!results.isEmpty() && !results.get(0).isEmpty()) {
-            orderID = Integer.parseInt(results.get(0).get(0));  // Get the orderID of the most recent order
-         }
-      } catch (SQLException e) {
-         System.err.println("Error retrieving orderID: " + e.getMessage());
+      boolean applied = esql.getJournal().awaitApplied(journalSeq, 2000);
+      String rejection = applied ? esql.getJournal().rejection(journalSeq) : null;
+      if (rejection != null) {
+         System.out.println("Your order could not be placed: " + rejection);
+         return;
       }
-
-      // Step 7: Insert Items into the ItemsInOrder Table
-      for (int i = 0; i < items.size(); i++) {
-         String itemName = items.get(i);       // Current item name
-         int quantity = quantities.get(i);     // Quantity for the current item
-
-         String insertItemQuery = "INSERT INTO ItemsInOrder (orderID, itemName, quantity) "
-                  + "VALUES (" + orderID + ", '" + itemName + "', " + quantity + ")";
-         try {
-               esql.executeUpdate(insertItemQuery);
-         } catch (SQLException e) {
-               System.err.println("Error inserting item: " + e.getMessage());
-         }
+      // the key was placed meanwhile, e.g. by another client
+      int retriedOrderID = applied ? esql.getJournal().retryOf(journalSeq) : -1;
+      if (retriedOrderID >= 0) {
+         esql.getIdempotency().remember(idempotencyKey, retriedOrderID);
+         System.out.println("This order was already placed.");
+         System.out.println("Order ID: " + retriedOrderID);
+         return;
       }
 
-      // Step 8: Confirmation
+      // the journal hands the order to the drivers once it is applied; keep
+      // this user's history reads on the primary until the replica has it
+      esql.getReplicas().noteWrite(authorisedUser);
+      UserSession session = esql.getSession(authorisedUser);
+      if (session != null)
+         session.invalidateOrders();
+
+      // Confirmation
       System.out.println("Your order has been placed successfully!");
-      System.out.println("Total price: $" + totalPrice);
+      System.out.println("Order ID: " + orderID);
+      // the database prices the order from Items; until it has, the local
+      // menu copy's total is all there is
+      long appliedCents = applied ? esql.getJournal().appliedTotal(journalSeq) : -1;
+      if (appliedCents >= 0)
+         System.out.println("Total price: $" + PricingEngine.format(appliedCents));
+      else
+         System.out.println("Estimated total: $" + PricingEngine.format(totalCents));
+      if (!applied) {
+         System.out.println("The store can't be reached right now; your order is saved and will be sent shortly.");
+      }
    }
 
 
@@ -1147,11 +1920,16 @@ public class PizzaStore {
       // how to check current user condition, changed login to return the username for queries 
       //authorisedUser is the variable we are using 
 
-      String defaultQuery = "SELECT * FROM FoodOrder WHERE login = '" + authorisedUser + "'";
+      String defaultQuery = "SELECT " + ORDER_COLUMNS + " FROM FoodOrder WHERE login = '" + authorisedUser + "'";
             
          try {
-            List<List<String>> results = esql.executeQueryAndReturnResult(defaultQuery);
+            // with order shards the user's orders are spread over all of them
+            List<List<String>> results = esql.getShards().isSharded()
+               ? esql.getShards().queryAll(defaultQuery, ORDER_TIMESTAMP_COLUMN, -1)
+               : esql.executeReadQueryAndReturnResult(defaultQuery, authorisedUser);
 
+            // closed orders past the retention window live in the archive
+            results = withArchivedOrders(esql, authorisedUser, results, -1);
             for (int i = 0; i < results.size(); i++) {
                List<String> record = results.get(i);
                System.out.println(record);
@@ -1164,13 +1942,72 @@ public class PizzaStore {
    }
 
 
+   /*
+    * Merges a user's archived orders into their live ones, newest first.
+    * An order still in FoodOrder wins over an archived copy.  If the
+    * archive can't be read the live orders are returned alone.
+    */
+   private static List<List<String>> withArchivedOrders(PizzaStore esql, String authorisedUser,
+                                                        List<List<String>> live, int limit) {
+      List<List<String>> merged = new ArrayList<List<String>>(live);
+      Set<String> liveIDs = new HashSet<String>();
+      for (List<String> record : live)
+         liveIDs.add(record.get(0).trim());
+      try {
+         for (List<String> record : esql.getArchive().ordersFor(authorisedUser)) {
+            if (!liveIDs.contains(record.get(0)))
+               merged.add(record);
+         }
+      } catch (IOException e) {
+         System.err.println("Error reading order archive: " + e.getMessage());
+      }
+
+      Collections.sort(merged, new Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            return Timestamp.valueOf(b.get(ORDER_TIMESTAMP_COLUMN).trim())
+               .compareTo(Timestamp.valueOf(a.get(ORDER_TIMESTAMP_COLUMN).trim()));
+         }
+      });
+      if (limit >= 0 && merged.size() > limit)
+         merged = new ArrayList<List<String>>(merged.subList(0, limit));
+      return merged;
+   }//end withArchivedOrders
+
    public static void viewRecentOrders(PizzaStore esql, String authorisedUser) {
       //same as teh view all orders just add sorting on timestamp and add a limit with no offset 
-      String defaultQuery = "SELECT * FROM FoodOrder WHERE login = '" + authorisedUser + 
+      //the recent window lets postgres prune FoodOrder to the last few monthly partitions,
+      //only users with no orders in that window fall back to the full history
+      String recentQuery = "SELECT " + ORDER_COLUMNS + " FROM FoodOrder WHERE login = '" + authorisedUser + 
+         "' AND orderTimestamp >= date_trunc('month', now()) - interval '" + RECENT_ORDER_MONTHS + " months'" +
+         " ORDER BY orderTimestamp DESC LIMIT " + 5 + ";";
+      String defaultQuery = "SELECT " + ORDER_COLUMNS + " FROM FoodOrder WHERE login = '" + authorisedUser + 
          "' ORDER BY orderTimestamp DESC LIMIT " + 5 + ";";
 
+         // prefetched at login, until an order is placed or changed
+         UserSession session = esql.getSession(authorisedUser);
+         List<List<String>> prefetched = session == null ? null : session.recentOrders(RECENT_ORDERS);
+         if (prefetched != null) {
+            if (prefetched.size() < RECENT_ORDERS)
+               prefetched = withArchivedOrders(esql, authorisedUser, prefetched, RECENT_ORDERS);
+            for (List<String> record : prefetched)
+               System.out.println(record);
+            return;
+         }
+
          try {
-            List<List<String>> results = esql.executeQueryAndReturnResult(defaultQuery);
+            // with order shards each one returns its newest 5, merged by timestamp
+            boolean sharded = esql.getShards().isSharded();
+            List<List<String>> results = sharded
+               ? esql.getShards().queryAll(recentQuery, ORDER_TIMESTAMP_COLUMN, 5)
+               : esql.executeReadQueryAndReturnResult(recentQuery, authorisedUser);
+            if (results.size() < 5) {
+               results = sharded
+                  ? esql.getShards().queryAll(defaultQuery, ORDER_TIMESTAMP_COLUMN, 5)
+                  : esql.executeReadQueryAndReturnResult(defaultQuery, authorisedUser);
+            }
+            // older orders may have been moved to the archive
+            if (results.size() < 5)
+               results = withArchivedOrders(esql, authorisedUser, results, 5);
 
             for (int i = 0; i < results.size(); i++) {
                List<String> record = results.get(i);
@@ -1188,7 +2025,7 @@ public class PizzaStore {
       String orderID; 
       do {
          //password input
-         Scanner myObj = new Scanner(System.in);
+         ConsoleInput myObj = ConsoleInput.get();
          System.out.print("Enter orderID to search: ");
          orderID = myObj.nextLine();
 
@@ -1202,13 +2039,14 @@ public class PizzaStore {
       }while (true);
 
 
-      String defaultQuery = "SELECT * FROM FoodOrder WHERE login = '" + authorisedUser + "' and orderID = " + orderID;
+      String defaultQuery = "SELECT " + ORDER_COLUMNS + " FROM FoodOrder WHERE login = '" + authorisedUser + "' and orderID = " + orderID;
 
       try {
-         List<List<String>> results = esql.executeQueryAndReturnResult(defaultQuery);
+         // the order could be on any shard
+         List<List<String>> results = esql.getShards().queryAll(defaultQuery, -1, -1);
 
          if (results.size() < 1){
-            System.out.println("No orders match order ID");
+            viewArchivedOrderInfo(esql, authorisedUser, orderID);
             return;
          }
 
@@ -1218,9 +2056,14 @@ public class PizzaStore {
             System.out.println(record);
          }
 
-         defaultQuery = "SELECT itemName, quantity FROM ItemsInOrder WHERE orderID = '" + orderID + "'";
+         // the order's timestamp prunes ItemsInOrder to a single monthly partition
+         // and its line items are on its store's shard
+         String orderTimestamp = results.get(0).get(ORDER_TIMESTAMP_COLUMN);
+         int storeID = Integer.parseInt(results.get(0).get(2).trim());
+         defaultQuery = "SELECT itemName, quantity FROM ItemsInOrder WHERE orderID = '" + orderID + "'"
+            + " AND orderTimestamp = '" + orderTimestamp + "'";
          try {
-            results = esql.executeQueryAndReturnResult(defaultQuery);
+            results = esql.getShards().query(storeID, defaultQuery);
 
             if (results.size() < 1){
                System.out.println("No orders match order ID");
@@ -1248,14 +2091,90 @@ public class PizzaStore {
 
    }
 
+
+   private static void viewArchivedOrderInfo(PizzaStore esql, String authorisedUser, String orderID) {
+      //orders moved to the archive are printed the same way as live ones
+      List<List<String>> results;
+      try {
+         results = esql.getArchive().findOrder(authorisedUser, Integer.parseInt(orderID.trim()));
+      } catch (IOException e) {
+         System.err.println("Error reading order archive: " + e.getMessage());
+         return;
+      } catch (NumberFormatException e) {
+         results = new ArrayList<>();
+      }
+
+      if (results.size() < 1){
+         System.out.println("No orders match order ID");
+         return;
+      }
+
+      System.out.println("");
+      System.out.println(results.get(0));
+      System.out.println("");
+      System.out.println("Items, Quantity");
+      System.out.println("---------------");
+      for (int i = 1; i < results.size(); i++) {
+         System.out.println(results.get(i));
+      }
+      System.out.println("---------------");
+      System.out.println("");
+   }
+
+
+   public static void trackOrderStatus(PizzaStore esql, String authorisedUser) {
+      //subscribe to an order and print status changes as they are pushed, instead of polling FoodOrder
+      String orderID;
+      ConsoleInput myObj = ConsoleInput.get();
+      do {
+         System.out.print("Enter orderID to track: ");
+         orderID = myObj.nextLine().trim();
+
+         if (!orderID.matches("\\d+")) {
+            System.out.println("invalid orderID: must be a number");
+            continue; //prompts for orderID again 
+         }
+         break;
+      } while (true);
+
+      // one read for the current status, after that updates are pushed
+      String query = "SELECT orderStatus FROM FoodOrder WHERE login = '" + authorisedUser + "' AND orderID = " + orderID;
+      try {
+         List<List<String>> results = esql.getShards().queryAll(query, -1, -1);
+         if (results.size() < 1) {
+            System.out.println("No orders match order ID");
+            return;
+         }
+         System.out.println("Current status: " + results.get(0).get(0).trim());
+      } catch (SQLException e) {
+         System.err.println("SQL error: " + e.getMessage());
+         return;
+      }
+
+      final int id = Integer.parseInt(orderID);
+      OrderStatusNotifier.Listener listener = new OrderStatusNotifier.Listener() {
+         public void statusChanged(int changedOrderID, String newStatus) {
+            System.out.println("\nOrder " + changedOrderID + " is now: " + newStatus);
+         }
+      };
+
+      try {
+         esql.getNotifier().subscribe(id, listener);
+      } catch (SQLException e) {
+         System.err.println("Error subscribing to order: " + e.getMessage());
+         return;
+      }
+      System.out.println("Watching order " + id + " (press enter to stop)");
+      myObj.nextLine();
+      esql.getNotifier().unsubscribe(id, listener);
+   }
+
    
    public static void viewStores(PizzaStore esql) {
       //same logic as the default view menu logic 
 
-      String defaultQuery = "SELECT * FROM Store";
-            
          try {
-            List<List<String>> results = esql.executeQueryAndReturnResult(defaultQuery);
+            List<List<String>> results = esql.getStores();
 
             for (int i = 0; i < results.size(); i++) {
                List<String> record = results.get(i);
@@ -1272,7 +2191,7 @@ public class PizzaStore {
    public static void updateOrderStatus(PizzaStore esql, String authorisedUser) {
 
       String query;
-      Scanner myObj = new Scanner(System.in);
+      ConsoleInput myObj = ConsoleInput.get();
       int rowCount;
 
       // check if manager or driver
@@ -1288,18 +2207,33 @@ public class PizzaStore {
          return;
       }
 
-      String orderID;
+      int orderID;
+      String orderTimestamp;
+      int storeID;
+      String status;
+      int version;
       do {
          System.out.print("Enter the ID of the order you would like to update: ");
-         orderID = myObj.nextLine();
-         // check if order exists
-         query = "SELECT * FROM FoodOrder WHERE orderID = " + orderID;
          try {
-            rowCount = esql.executeQuery(query);
-            if (rowCount == 0) {
+            orderID = Integer.parseInt(myObj.nextLine().trim());
+         } catch (NumberFormatException e) {
+            System.out.println("Invalid input. Please enter a valid integer.");
+            continue;
+         }
+         // check if order exists, keeping its timestamp for partition pruning,
+         // its store for the shard to update and the status and version the
+         // update is conditional on
+         query = "SELECT orderTimestamp, storeID, orderStatus, version FROM FoodOrder WHERE orderID = " + orderID;
+         try {
+            List<List<String>> results = esql.getShards().queryAll(query, -1, -1);
+            if (results.size() == 0) {
                System.out.println("Order not found.");
                continue;
             }
+            orderTimestamp = results.get(0).get(0);
+            storeID = Integer.parseInt(results.get(0).get(1).trim());
+            status = results.get(0).get(2) == null ? "" : results.get(0).get(2).trim();
+            version = Integer.parseInt(results.get(0).get(3).trim());
          } catch (SQLException e) {
             System.err.println(e.getMessage());
             continue;
@@ -1307,30 +2241,264 @@ public class PizzaStore {
          break;
       } while (true);
 
+      List<String> next = OrderStatus.next(status);
+      System.out.println("Current order status: " + status + " (version " + version + ")");
+      if (next.isEmpty()) {
+         System.out.println("This order can't change status any more.");
+         return;
+      }
       System.out.println("Enter the new order status: ");
       System.out.println("-------------------");
-      System.out.println("1. Complete");
-      System.out.println("2. Incomplete");
+      for (String target : next)
+         System.out.println((OrderStatus.ALL.indexOf(target) + 1) + ". " + target);
+      System.out.println("-------------------");
+      System.out.println("9. Go back");
+      int choice = readChoice();
+      if (choice == 9)
+         return;
+      if (choice < 1 || choice > OrderStatus.ALL.size() || !next.contains(OrderStatus.ALL.get(choice - 1))) {
+         System.out.println("Unrecognized choice!");
+         return;
+      }
+      String newOrderStatus = OrderStatus.ALL.get(choice - 1);
+
+      // update order, only if nobody changed it since it was shown
+      try {
+         if (!OrderStatus.transition(esql, storeID, orderID, orderTimestamp, status, newOrderStatus, version)) {
+            System.out.println("Order " + orderID + " was changed by someone else meanwhile, nothing was updated.");
+            List<List<String>> current = esql.getShards().query(storeID,
+               "SELECT orderStatus, version FROM FoodOrder WHERE orderID = " + orderID
+               + " AND orderTimestamp = '" + orderTimestamp + "'");
+            if (!current.isEmpty())
+               System.out.println("It is now " + current.get(0).get(0).trim() + " (version " + current.get(0).get(1).trim() + ").");
+            return;
+         }
+         esql.invalidateSessionOrders();
+         System.out.println("Order status updated!");
+      } catch (SQLException e) {
+         System.err.println(e.getMessage());
+         return;
+      }
+
+      // push the change to anyone tracking this order; an order handed back
+      // or retried is queued for the drivers again
+      try {
+         if (newOrderStatus.equals(OrderStatus.PENDING))
+            esql.getDispatchQueue().offer(orderID, storeID, Timestamp.valueOf(orderTimestamp.trim()).getTime());
+         else
+            esql.getDispatchQueue().remove(orderID);
+         esql.getNotifier().publish(orderID, newOrderStatus);
+      } catch (SQLException e) {
+         System.err.println("Error publishing status change: " + e.getMessage());
+      }
+   
+   }
+
+
+   public static void claimPendingOrders(PizzaStore esql, String authorisedUser) {
+
+      String query;
+      ConsoleInput myObj = ConsoleInput.get();
+      int rowCount;
+
+      // check if manager or driver
+      query = "SELECT * FROM Users U WHERE U.login='" + authorisedUser + "' AND (role='manager' OR role='driver')";
+      try {
+         rowCount = esql.executeQuery(query);
+         if (rowCount == 0) {
+            System.out.println("Access Denied.");
+            return;
+         }
+      } catch (SQLException e) {
+         System.err.println(e.getMessage());
+         return;
+      }
+
+      int storeID;
+      do {
+         System.out.print("Enter the ID of your store: ");
+         try {
+            storeID = Integer.parseInt(myObj.nextLine().trim());
+            break;
+         } catch (NumberFormatException e) {
+            System.out.println("Invalid input. Please enter a valid integer.");
+         }
+      } while (true);
+
+      int count;
+      do {
+         System.out.print("How many orders would you like to claim? ");
+         try {
+            count = Integer.parseInt(myObj.nextLine().trim());
+            if (count <= 0) {
+               System.out.println("Number of orders must be a positive integer");
+               continue;
+            }
+            break;
+         } catch (NumberFormatException e) {
+            System.out.println("Invalid input. Please enter a valid integer.");
+         }
+      } while (true);
+
+      List<DispatchQueue.PendingOrder> claimed;
+      try {
+         claimed = esql.getDispatchQueue().claim(storeID, count);
+      } catch (SQLException e) {
+         System.err.println("Error claiming orders: " + e.getMessage());
+         return;
+      }
+
+      if (claimed.isEmpty()) {
+         System.out.println("No pending orders for store " + storeID);
+         return;
+      }
+      esql.invalidateSessionOrders();
+
+      System.out.println("Claimed orders (oldest first):");
+      System.out.println("---------------");
+      for (DispatchQueue.PendingOrder order : claimed) {
+         System.out.println(order);
+         try {
+            esql.getNotifier().publish(order.orderID, DispatchQueue.CLAIMED);
+         } catch (SQLException e) {
+            System.err.println("Error publishing status change: " + e.getMessage());
+         }
+      }
+      System.out.println("---------------");
+   }
+
+
+   public static void claimDeliveryBatch(PizzaStore esql, String authorisedUser) {
+
+      String query;
+      ConsoleInput myObj = ConsoleInput.get();
+      int rowCount;
+
+      // check if manager or driver
+      query = "SELECT * FROM Users U WHERE U.login='" + authorisedUser + "' AND (role='manager' OR role='driver')";
+      try {
+         rowCount = esql.executeQuery(query);
+         if (rowCount == 0) {
+            System.out.println("Access Denied.");
+            return;
+         }
+      } catch (SQLException e) {
+         System.err.println(e.getMessage());
+         return;
+      }
+
+      int storeID;
+      do {
+         System.out.print("Enter the ID of your store: ");
+         try {
+            storeID = Integer.parseInt(myObj.nextLine().trim());
+            break;
+         } catch (NumberFormatException e) {
+            System.out.println("Invalid input. Please enter a valid integer.");
+         }
+      } while (true);
+
+      DeliveryBatcher.Claimed batch;
+      try {
+         batch = esql.getDispatchQueue().claimBatch(storeID, authorisedUser);
+      } catch (SQLException e) {
+         System.err.println("Error claiming batch: " + e.getMessage());
+         return;
+      }
+
+      if (batch == null || batch.orders.isEmpty()) {
+         System.out.println("No pending orders for store " + storeID);
+         return;
+      }
+      esql.invalidateSessionOrders();
+
+      System.out.println("Claimed batch " + batch.batchID + " (oldest first):");
+      System.out.println("---------------");
+      for (DispatchQueue.PendingOrder order : batch.orders) {
+         System.out.println(order);
+         try {
+            esql.getNotifier().publish(order.orderID, DispatchQueue.CLAIMED);
+         } catch (SQLException e) {
+            System.err.println("Error publishing status change: " + e.getMessage());
+         }
+      }
+      System.out.println("---------------");
+      System.out.println("Use Finish Delivery Batch with batch " + batch.batchID + " when you are back.");
+   }
+
+
+   public static void finishDeliveryBatch(PizzaStore esql, String authorisedUser) {
+
+      String query;
+      ConsoleInput myObj = ConsoleInput.get();
+      int rowCount;
+
+      // check if manager or driver
+      query = "SELECT * FROM Users U WHERE U.login='" + authorisedUser + "' AND (role='manager' OR role='driver')";
+      try {
+         rowCount = esql.executeQuery(query);
+         if (rowCount == 0) {
+            System.out.println("Access Denied.");
+            return;
+         }
+      } catch (SQLException e) {
+         System.err.println(e.getMessage());
+         return;
+      }
+
+      int storeID;
+      int batchID;
+      do {
+         try {
+            System.out.print("Enter the ID of your store: ");
+            storeID = Integer.parseInt(myObj.nextLine().trim());
+            System.out.print("Enter the batch ID: ");
+            batchID = Integer.parseInt(myObj.nextLine().trim());
+            break;
+         } catch (NumberFormatException e) {
+            System.out.println("Invalid input. Please enter a valid integer.");
+         }
+      } while (true);
+
+      System.out.println("How did the delivery go?");
+      System.out.println("-------------------");
+      System.out.println("1. Delivered (complete)");
+      System.out.println("2. Not delivered (incomplete)");
+      System.out.println("3. Hand back to the store (Pending)");
       System.out.println("-------------------");
       System.out.println("9. Go back");
-      String newOrderStatus;
+      String status;
       switch (readChoice()) {
-         case 1: newOrderStatus = "complete"; break;
-         case 2: newOrderStatus = "incomplete"; break;
+         case 1: status = OrderStatus.COMPLETE; break;
+         case 2: status = OrderStatus.INCOMPLETE; break;
+         case 3: status = OrderStatus.PENDING; break;
 
          case 9: return;
          default: System.out.println("Unrecognized choice!"); return;
       }
 
-      // update order
-      query = "UPDATE FoodOrder SET orderStatus = '" + newOrderStatus + "' WHERE orderID = '" + orderID + "'";
+      List<Integer> changed;
       try {
-         esql.executeUpdate(query);
-         System.out.println("Order status updated!");
+         changed = esql.getDispatchQueue().finishBatch(storeID, batchID, authorisedUser, status);
       } catch (SQLException e) {
-         System.err.println(e.getMessage());
+         System.err.println("Error finishing batch: " + e.getMessage());
+         return;
+      }
+      if (changed.isEmpty()) {
+         System.out.println("Batch " + batchID + " of store " + storeID + " has no orders claimed by you.");
+         return;
+      }
+      esql.invalidateSessionOrders();
+      System.out.println(changed.size() + " order(s) of batch " + batchID + " are now " + status);
+
+      // push the change to anyone tracking these orders
+      for (int orderID : changed) {
+         try {
+            esql.getNotifier().publish(orderID, status);
+         } catch (SQLException e) {
+            System.err.println("Error publishing status change: " + e.getMessage());
+         }
       }
-   
    }
 
 
@@ -1355,16 +2523,14 @@ public class PizzaStore {
       float price;
       String description;
 
-      Scanner myObj = new Scanner(System.in);
+      ConsoleInput myObj = ConsoleInput.get();
 
       // display menu
-      query = "SELECT * FROM Items";
       try {
-         // print out users
-         List<List<String>> results = esql.executeQueryAndReturnResult(query);
+         List<MenuCatalog.MenuItem> results = esql.getMenu().items();
 
          for (int i = 0; i < results.size(); i++) {
-            List<String> record = results.get(i);
+            List<String> record = results.get(i).toRecord();
             System.out.println(record);
          }
       } catch (SQLException e) {
@@ -1449,12 +2615,11 @@ public class PizzaStore {
             do {
                System.out.println("Please enter the price of this item: ");
                // check if the input is a valid float
-               if (myObj.hasNextFloat()) {
-                  price = myObj.nextFloat();
+               try {
+                  price = Float.parseFloat(myObj.nextLine().trim());
                   break;
-               } else {
+               } catch (NumberFormatException e) {
                   System.out.println("Invalid price value.");
-                  myObj.nextLine(); // consume invalid input
                }
             } while (true);
 
@@ -1467,7 +2632,6 @@ public class PizzaStore {
             switch(readChoice()) {
                case 1: 
                   System.out.println("Please enter a description for this item: ");
-                  myObj.nextLine(); // consume left over newline from readChoice()
                   description = myObj.nextLine();
                   break;
                case 2:
@@ -1568,12 +2732,11 @@ public class PizzaStore {
                   do {
                      System.out.println("Please enter the new price of this item: ");
                      // check if the input is a valid float
-                     if (myObj.hasNextFloat()) {
-                        price = myObj.nextFloat();
+                     try {
+                        price = Float.parseFloat(myObj.nextLine().trim());
                         break;
-                     } else {
+                     } catch (NumberFormatException e) {
                         System.out.println("Invalid price value.");
-                        myObj.nextLine(); // consume invalid input
                      }
                   } while (true);
 
@@ -1633,8 +2796,148 @@ public class PizzaStore {
             break;
 
 
-         case 9: break;
-         default: System.out.println("Unrecognized choice!"); break;
+         case 9: return;
+         default: System.out.println("Unrecognized choice!"); return;
+      }
+
+      // the distinct types may have changed, and the version noted at login;
+      // menu reads go to the primary until the replica has the change
+      esql.getReplicas().noteWrite(ReplicaRouter.REFERENCE);
+      esql.getCache().invalidate("Items");
+      esql.getMenu().forgetNotedVersion();
+
+      // picks up just the changed items, which re-indexes them for search
+      try {
+         esql.getMenu().revalidate();
+      } catch (SQLException e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
+
+   public static void archiveOrders(PizzaStore esql, String authorisedUser) {
+
+      // check if manager role
+      String query = "SELECT * FROM Users U WHERE U.login='" + authorisedUser + "' AND role='manager'";
+      try {
+         if (esql.executeQuery(query) == 0) {
+            System.out.println("Access Denied");
+            return;
+         }
+      } catch (SQLException e) {
+         System.err.println(e.getMessage());
+         return;
+      }
+
+      ConsoleInput myObj = ConsoleInput.get();
+      int retentionDays = DEFAULT_RETENTION_DAYS;
+      do {
+         System.out.print("Keep completed orders of the last how many days? (leave empty for " + DEFAULT_RETENTION_DAYS + "): ");
+         String input = myObj.nextLine().trim();
+         if (input.isEmpty()) break;
+         try {
+            retentionDays = Integer.parseInt(input);
+            if (retentionDays < 0) {
+               System.out.println("Number of days can't be negative");
+               continue;
+            }
+            break;
+         } catch (NumberFormatException e) {
+            System.out.println("Invalid input. Please enter a valid integer.");
+         }
+      } while (true);
+
+      try {
+         int archived = esql.getArchive().archive(retentionDays);
+         System.out.println(archived + " order(s) moved to the archive.");
+      } catch (SQLException e) {
+         System.err.println("Error archiving orders: " + e.getMessage());
+      } catch (IOException e) {
+         System.err.println("Error writing order archive: " + e.getMessage());
+      }
+   }
+
+
+   public static void exportOrders(PizzaStore esql, String authorisedUser) {
+
+      // check if manager role
+      String query = "SELECT * FROM Users U WHERE U.login='" + authorisedUser + "' AND role='manager'";
+      try {
+         if (esql.executeQuery(query) == 0) {
+            System.out.println("Access Denied");
+            return;
+         }
+      } catch (SQLException e) {
+         System.err.println(e.getMessage());
+         return;
+      }
+
+      ConsoleInput myObj = ConsoleInput.get();
+      Pattern datePattern = Pattern.compile("\\d{4}-\\d{2}-\\d{2}");
+
+      String fromDate;
+      do {
+         System.out.print("Export orders from (YYYY-MM-DD): ");
+         fromDate = myObj.nextLine().trim();
+         if (!datePattern.matcher(fromDate).matches()) {
+            System.out.println("invalid date: must be in YYYY-MM-DD format");
+            continue;
+         }
+         break;
+      } while (true);
+
+      String toDate;
+      do {
+         System.out.print("Export orders before (YYYY-MM-DD): ");
+         toDate = myObj.nextLine().trim();
+         if (!datePattern.matcher(toDate).matches()) {
+            System.out.println("invalid date: must be in YYYY-MM-DD format");
+            continue;
+         }
+         break;
+      } while (true);
+
+      int storeID = -1;
+      do {
+         System.out.print("Store ID (leave empty for all stores): ");
+         String input = myObj.nextLine().trim();
+         if (input.isEmpty()) break;
+         try {
+            storeID = Integer.parseInt(input);
+            break;
+         } catch (NumberFormatException e) {
+            System.out.println("Invalid input. Please enter a valid integer.");
+         }
+      } while (true);
+
+      System.out.println("Export format:");
+      System.out.println("--------------");
+      System.out.println("1. CSV");
+      System.out.println("2. Binary");
+      int format;
+      switch (readChoice()) {
+         case 1: format = OrderExport.CSV; break;
+         case 2: format = OrderExport.BINARY; break;
+
+         default: System.out.println("Unrecognized choice!"); return;
+      }
+
+      String path;
+      do {
+         System.out.print("File to write: ");
+         path = myObj.nextLine().trim();
+      } while (path.isEmpty());
+
+      try {
+         long start = System.currentTimeMillis();
+         long rows = new OrderExport(esql).export(fromDate, toDate, storeID, format, path);
+         long elapsed = Math.max(1, System.currentTimeMillis() - start);
+         System.out.println(rows + " row(s) written to " + path + " in " + elapsed + " ms ("
+            + (rows * 1000 / elapsed) + " rows/s)");
+      } catch (SQLException e) {
+         System.err.println("Error exporting orders: " + e.getMessage());
+      } catch (IOException e) {
+         System.err.println("Error writing export file: " + e.getMessage());
       }
    }
 
@@ -1642,7 +2945,7 @@ public class PizzaStore {
    public static String updateUser(PizzaStore esql, String authorisedUser) {
 
       String query;
-      Scanner myObj = new Scanner(System.in);
+      ConsoleInput myObj = ConsoleInput.get();
       int rowCount;
 
       // check if manager role
@@ -1779,6 +3082,7 @@ public class PizzaStore {
             // execute query to update user
             try {
                esql.executeUpdate(query);
+               esql.endSession(userToUpdate);
                System.out.println("User updated.");
                return authorisedUser;
             } catch (SQLException e) {
@@ -1808,6 +3112,7 @@ public class PizzaStore {
             query = "DELETE FROM Users WHERE login = '" + userToDelete + "'";
             try {
                esql.executeUpdate(query);
+               esql.endSession(userToDelete);
                System.out.println("User deleted.");
                return null;
             } catch (SQLException e) {
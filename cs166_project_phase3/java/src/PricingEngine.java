@@ -0,0 +1,206 @@
+/*
+ * Pricing engine
+ * ==============
+ *
+ * Order totals in exact integer cents over primitive price arrays.
+ *
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every menu item gets a dense index into a long[] of prices in cents,
+ * filled from MenuCatalog deltas (the only place a price string is
+ * parsed).  An order is priced from parallel int[] arrays of item indexes
+ * and quantities with long arithmetic only, so pricing allocates nothing
+ * and never rounds until a percentage rule says so.
+ *
+ * Pricing is extensible in two ways:
+ *    per-store prices  setStorePrice overrides the menu price of an item
+ *                      at one store
+ *    rules             applied in order to the subtotal, e.g. PercentOff
+ *                      for a discount and then Tax
+ */
+public class PricingEngine implements MenuCatalog.Listener {
+
+   /**
+    * One step applied to the running total of an order.
+    */
+   public interface Rule {
+      /**
+       * @param storeID store the order is placed at
+       * @param items item indexes of the order
+       * @param quantities quantity of each item
+       * @param count number of line items in the arrays
+       * @param totalCents total so far
+       * @return the new total in cents
+       */
+      long apply(int storeID, int[] items, int[] quantities, int count, long totalCents);
+   }//end Rule
+
+   /**
+    * Takes a percentage off, in basis points (1000 = 10%), rounded to the
+    * nearest cent.
+    */
+   public static class PercentOff implements Rule {
+      private final long _basisPoints;
+
+      public PercentOff(long basisPoints) {
+         this._basisPoints = basisPoints;
+      }
+
+      public long apply(int storeID, int[] items, int[] quantities, int count, long totalCents) {
+         return totalCents - roundedBasisPoints(totalCents, this._basisPoints);
+      }
+   }//end PercentOff
+
+   /**
+    * Adds a tax, in basis points (725 = 7.25%), rounded to the nearest
+    * cent.
+    */
+   public static class Tax implements Rule {
+      private final long _basisPoints;
+
+      public Tax(long basisPoints) {
+         this._basisPoints = basisPoints;
+      }
+
+      public long apply(int storeID, int[] items, int[] quantities, int count, long totalCents) {
+         return totalCents + roundedBasisPoints(totalCents, this._basisPoints);
+      }
+   }//end Tax
+
+   // marks "no price" in the price arrays
+   private static final long NO_PRICE = -1L;
+
+   // itemName -> index; indexes of deleted items are not reused
+   private final Map<String, Integer> _index = new HashMap<String, Integer>();
+   private long[] _prices = new long[64];
+   private int _size = 0;
+
+   // storeID -> per-item price overrides, NO_PRICE where there is none
+   private long[][] _storePrices = new long[0][];
+
+   // copied on change so pricing can walk them without an iterator
+   private Rule[] _rules = new Rule[0];
+
+   /**
+    * Updates the prices with a catalog delta.
+    */
+   public synchronized void itemsChanged(boolean full, List<MenuCatalog.MenuItem> changed, List<String> deleted) {
+      if (full)
+         Arrays.fill(this._prices, 0, this._size, NO_PRICE);
+      for (String itemName : deleted) {
+         Integer index = this._index.get(itemName);
+         if (index != null)
+            this._prices[index] = NO_PRICE;
+      }
+      for (MenuCatalog.MenuItem item : changed) {
+         int index = intern(item.itemName);
+         this._prices[index] = item.priceCents;
+      }
+   }//end itemsChanged
+
+   /**
+    * @param itemName the exact item name
+    * @return the item's index, or -1 if it isn't on the menu
+    */
+   public synchronized int indexOf(String itemName) {
+      Integer index = this._index.get(itemName);
+      return index == null || this._prices[index] == NO_PRICE ? -1 : index;
+   }//end indexOf
+
+   /**
+    * Overrides the price of an item at one store.
+    *
+    * @param storeID the store
+    * @param itemName the exact item name
+    * @param cents the store's price, or -1 to go back to the menu price
+    */
+   public synchronized void setStorePrice(int storeID, String itemName, long cents) {
+      if (storeID >= this._storePrices.length) {
+         long[][] grown = new long[storeID + 1][];
+         System.arraycopy(this._storePrices, 0, grown, 0, this._storePrices.length);
+         this._storePrices = grown;
+      }
+      int index = intern(itemName);
+      long[] overrides = this._storePrices[storeID];
+      if (overrides == null || index >= overrides.length) {
+         long[] grown = new long[this._prices.length];
+         Arrays.fill(grown, NO_PRICE);
+         if (overrides != null)
+            System.arraycopy(overrides, 0, grown, 0, overrides.length);
+         overrides = grown;
+         this._storePrices[storeID] = overrides;
+      }
+      overrides[index] = cents < 0 ? NO_PRICE : cents;
+   }//end setStorePrice
+
+   /**
+    * Appends a rule; rules run in the order they were added.
+    */
+   public synchronized void addRule(Rule rule) {
+      Rule[] rules = new Rule[this._rules.length + 1];
+      System.arraycopy(this._rules, 0, rules, 0, this._rules.length);
+      rules[this._rules.length] = rule;
+      this._rules = rules;
+   }//end addRule
+
+   /**
+    * Prices an order.
+    *
+    * @param storeID store the order is placed at
+    * @param items item indexes (from indexOf)
+    * @param quantities quantity of each item
+    * @param count number of line items in the arrays
+    * @return the total in cents, or -1 if an item is no longer on the menu
+    */
+   public synchronized long total(int storeID, int[] items, int[] quantities, int count) {
+      long[] overrides = storeID >= 0 && storeID < this._storePrices.length ? this._storePrices[storeID] : null;
+      long total = 0;
+      for (int i = 0; i < count; i++) {
+         int item = items[i];
+         long price = overrides != null && item < overrides.length ? overrides[item] : NO_PRICE;
+         if (price == NO_PRICE)
+            price = this._prices[item];
+         if (price == NO_PRICE)
+            return -1;
+         total += price * quantities[i];
+      }
+      for (int i = 0; i < this._rules.length; i++)
+         total = this._rules[i].apply(storeID, items, quantities, count, total);
+      return total;
+   }//end total
+
+   /**
+    * @return cents as dollars and cents, e.g. 1205 as "12.05"
+    */
+   public static String format(long cents) {
+      String sign = cents < 0 ? "-" : "";
+      cents = Math.abs(cents);
+      return sign + (cents / 100) + "." + (cents % 100 < 10 ? "0" : "") + (cents % 100);
+   }//end format
+
+   // cents * basisPoints / 10000, rounded half up
+   private static long roundedBasisPoints(long cents, long basisPoints) {
+      return (cents * basisPoints + 5000) / 10000;
+   }//end roundedBasisPoints
+
+   private int intern(String itemName) {
+      Integer index = this._index.get(itemName);
+      if (index != null)
+         return index;
+      if (this._size == this._prices.length) {
+         long[] grown = new long[this._prices.length * 2];
+         System.arraycopy(this._prices, 0, grown, 0, this._size);
+         this._prices = grown;
+      }
+      this._prices[this._size] = NO_PRICE;
+      this._index.put(itemName, this._size);
+      return this._size++;
+   }//end intern
+
+}//end PricingEngine
@@ -0,0 +1,485 @@
+/*
+ * Shared reference data
+ * =====================
+ *
+ * Items and Store in a memory-mapped file shared by every client process
+ * on the host.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Two kinds of files:
+ *
+ *    reference.snapshot      header, 16 bytes: magic, reserved and the
+ *                            generation (long) of the current body
+ *    reference.snapshot.<n>  body of generation n, written once and never
+ *                            changed again:
+ *
+ *       0   magic, item count, store count, reserved       4 ints
+ *       16  menu version, written at (epoch millis)        2 longs
+ *       32  items by name (UTF-8 byte order), 32 bytes each:
+ *              name, ingredients, typeOfItem, description  string offsets
+ *              price                                       long cents
+ *              menuVersion                                 long
+ *           stores by storeID, 32 bytes each:
+ *              storeID, address, city, state, isOpen, -    int, offsets
+ *              reviewScore                                 double, NaN NULL
+ *           store numbers by city                          int each
+ *           strings: length (-1 for NULL), UTF-8 bytes
+ *
+ * One process publishes: it writes the next body, syncs it, then stores
+ * the new generation in the header, under an exclusive lock on the header
+ * so publishers don't race.  Every process maps the header and the current
+ * body read-only, polls the generation (one long read) before each lookup
+ * and maps the new body when it changed.  Since a body never changes once
+ * its generation is visible, readers need no locks, and lookups read only
+ * the records they need straight off the mapping.
+ *
+ * A process republishes when the body is older than the given age or has
+ * an older menu than its own MenuCatalog.
+ */
+public class ReferenceSnapshot {
+
+   private static final int HEADER_MAGIC = 0x505a5248; // "PZRH"
+   private static final int BODY_MAGIC = 0x505a5242;   // "PZRB"
+   private static final int HEADER_SIZE = 16;
+   private static final int GENERATION = 8;
+
+   private static final int ITEM_COUNT = 4;
+   private static final int STORE_COUNT = 8;
+   private static final int MENU_VERSION = 16;
+   private static final int WRITTEN_AT = 24;
+   private static final int RECORDS = 32;
+   private static final int RECORD_SIZE = 32;
+
+   public static final String STORE_COLUMNS = "storeID, address, city, state, isOpen, reviewScore";
+
+   private final PizzaStore _esql;
+   private final File _header;
+
+   // read-only mappings, replaced when the generation changes
+   private volatile MappedByteBuffer _headerMap = null;
+   private volatile ByteBuffer _body = null;
+   private volatile long _generation = 0;
+
+   public ReferenceSnapshot(PizzaStore esql, String path) {
+      this._esql = esql;
+      this._header = new File(path);
+   }//end ReferenceSnapshot
+
+   /**
+    * Makes sure the mapped snapshot is current enough, publishing a new one
+    * if it isn't.
+    *
+    * @param maxAgeMillis how old the store list may be
+    * @return true if lookups can be answered from the snapshot
+    */
+   public boolean ensureFresh(long maxAgeMillis) {
+      try {
+         ByteBuffer body = poll();
+         if (body != null && !stale(body, maxAgeMillis))
+            return true;
+         publish(maxAgeMillis);
+         return poll() != null;
+      } catch (IOException e) {
+         System.err.println("Reference snapshot " + this._header + " unavailable: " + e.getMessage());
+         return false;
+      } catch (SQLException e) {
+         System.err.println("Error publishing reference snapshot: " + e.getMessage());
+         return poll() != null;
+      }
+   }//end ensureFresh
+
+   /**
+    * @return the generation mapped, 0 if none
+    */
+   public long generation() {
+      poll();
+      return this._generation;
+   }//end generation
+
+   /**
+    * @return the menu version of the mapped snapshot, or -1
+    */
+   public long menuVersion() {
+      ByteBuffer body = poll();
+      return body == null ? -1 : body.getLong(MENU_VERSION);
+   }//end menuVersion
+
+   /**
+    * @param itemName the exact item name
+    * @return the item, or null if the snapshot doesn't have it
+    */
+   public MenuCatalog.MenuItem findItem(String itemName) {
+      ByteBuffer body = poll();
+      if (body == null)
+         return null;
+      byte[] key = itemName.getBytes(StandardCharsets.UTF_8);
+      int low = 0;
+      int high = body.getInt(ITEM_COUNT) - 1;
+      while (low <= high) {
+         int mid = (low + high) >>> 1;
+         int cmp = compare(body, body.getInt(itemRecord(mid)), key);
+         if (cmp < 0)
+            low = mid + 1;
+         else if (cmp > 0)
+            high = mid - 1;
+         else
+            return item(body, mid);
+      }
+      return null;
+   }//end findItem
+
+   /**
+    * @return every item as a full menu at the snapshot's menu version, e.g.
+    *         to seed a MenuCatalog, or null if there is no snapshot
+    */
+   public MenuCatalog.Response menu() {
+      ByteBuffer body = poll();
+      if (body == null)
+         return null;
+      int count = body.getInt(ITEM_COUNT);
+      List<MenuCatalog.MenuItem> items = new ArrayList<MenuCatalog.MenuItem>(count);
+      for (int i = 0; i < count; i++)
+         items.add(item(body, i));
+      return new MenuCatalog.Response(MenuCatalog.Response.FULL, body.getLong(MENU_VERSION), items,
+                                      Collections.<String>emptyList());
+   }//end menu
+
+   /**
+    * @param city the exact city name
+    * @return the IDs of the stores in the city, by storeID
+    */
+   public int[] storeIDsInCity(String city) {
+      ByteBuffer body = poll();
+      if (body == null)
+         return new int[0];
+      byte[] key = city.getBytes(StandardCharsets.UTF_8);
+      int count = body.getInt(STORE_COUNT);
+      int index = cityIndex(body);
+
+      // first entry not below the city
+      int low = 0;
+      int high = count;
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (compare(body, body.getInt(storeRecord(body, body.getInt(index + mid * 4)) + 8), key) < 0)
+            low = mid + 1;
+         else
+            high = mid;
+      }
+      int end = low;
+      while (end < count && compare(body, body.getInt(storeRecord(body, body.getInt(index + end * 4)) + 8), key) == 0)
+         end++;
+
+      int[] storeIDs = new int[end - low];
+      for (int i = low; i < end; i++)
+         storeIDs[i - low] = body.getInt(storeRecord(body, body.getInt(index + i * 4)));
+      return storeIDs;
+   }//end storeIDsInCity
+
+   /**
+    * @return every store the way SELECT * FROM Store prints it, by storeID
+    */
+   public List<List<String>> stores() {
+      ByteBuffer body = poll();
+      if (body == null)
+         return Collections.<List<String>>emptyList();
+      int count = body.getInt(STORE_COUNT);
+      List<List<String>> stores = new ArrayList<List<String>>(count);
+      for (int i = 0; i < count; i++) {
+         int record = storeRecord(body, i);
+         double reviewScore = body.getDouble(record + 24);
+         stores.add(Arrays.asList(String.valueOf(body.getInt(record)),
+                                  string(body, body.getInt(record + 4)),
+                                  string(body, body.getInt(record + 8)),
+                                  string(body, body.getInt(record + 12)),
+                                  string(body, body.getInt(record + 16)),
+                                  Double.isNaN(reviewScore) ? null : String.valueOf(reviewScore)));
+      }
+      return stores;
+   }//end stores
+
+   /*
+    * Maps the current generation if it changed; returns the body to use,
+    * or null if there is none.
+    */
+   private ByteBuffer poll() {
+      try {
+         MappedByteBuffer header = this._headerMap;
+         if (header == null) {
+            if (!this._header.isFile())
+               return null;
+            header = map(this._header, HEADER_SIZE);
+            if (header == null || header.getInt(0) != HEADER_MAGIC)
+               return null;
+            this._headerMap = header;
+         }
+         long generation = header.getLong(GENERATION);
+         if (generation != this._generation || this._body == null)
+            remap(generation);
+         return this._body;
+      } catch (IOException e) {
+         // the publisher replaced the body under us; the next poll retries
+         return this._body;
+      }
+   }//end poll
+
+   private synchronized void remap(long generation) throws IOException {
+      if (generation == this._generation && this._body != null)
+         return;
+      if (generation == 0)
+         return;
+      MappedByteBuffer body = map(bodyFile(generation), -1);
+      if (body == null || body.getInt(0) != BODY_MAGIC)
+         throw new IOException("not a reference snapshot");
+      this._body = body;
+      this._generation = generation;
+   }//end remap
+
+   private boolean stale(ByteBuffer body, long maxAgeMillis) {
+      return System.currentTimeMillis() - body.getLong(WRITTEN_AT) > maxAgeMillis
+         || body.getLong(MENU_VERSION) < this._esql.getMenu().version();
+   }//end stale
+
+   /*
+    * Writes and publishes the next generation, unless another process did
+    * while we waited for the lock.
+    */
+   private synchronized void publish(long maxAgeMillis) throws IOException, SQLException {
+      RandomAccessFile file = new RandomAccessFile(this._header, "rw");
+      try {
+         FileChannel channel = file.getChannel();
+         FileLock lock = channel.lock();
+         try {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            long current = header.getInt(0) == HEADER_MAGIC ? header.getLong(GENERATION) : 0;
+            if (current != 0) {
+               try {
+                  remap(current);
+               } catch (IOException e) {
+                  // the body is gone (a publisher died?), write a new one
+               }
+               if (this._generation == current && !stale(this._body, maxAgeMillis))
+                  return;
+            }
+
+            this._esql.getMenu().revalidate();
+            MenuCatalog.Response menu = this._esql.getMenu().snapshot();
+            ColumnarResult stores = this._esql.executeQueryAndReturnColumns(
+               "SELECT " + STORE_COLUMNS + " FROM Store ORDER BY storeID");
+            long next = current + 1;
+            File bodyFile = bodyFile(next);
+            FileOutputStream out = new FileOutputStream(bodyFile);
+            try {
+               out.write(encode(menu.version, menu.changed, stores));
+               out.getFD().sync();
+            } finally {
+               out.close();
+            }
+
+            header.putInt(0, HEADER_MAGIC);
+            header.putLong(GENERATION, next);
+            header.force();
+            if (current != 0)
+               bodyFile(current).delete();
+         } finally {
+            lock.release();
+         }
+      } finally {
+         file.close();
+      }
+   }//end publish
+
+   private static byte[] encode(long menuVersion, List<MenuCatalog.MenuItem> menuItems, ColumnarResult stores) {
+      // items by name in UTF-8 byte order, the order findItem searches
+      final List<MenuCatalog.MenuItem> items = new ArrayList<MenuCatalog.MenuItem>(menuItems);
+      Collections.sort(items, new Comparator<MenuCatalog.MenuItem>() {
+         public int compare(MenuCatalog.MenuItem a, MenuCatalog.MenuItem b) {
+            return compareBytes(utf8(a.itemName), utf8(b.itemName));
+         }
+      });
+      int storeCount = stores.rowCount();
+      Integer[] byCity = new Integer[storeCount];
+      for (int i = 0; i < storeCount; i++)
+         byCity[i] = i;
+      final ColumnarResult s = stores;
+      Arrays.sort(byCity, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            return compareBytes(utf8(s.getString(a, 2)), utf8(s.getString(b, 2)));
+         }
+      });
+
+      StringHeap strings = new StringHeap(RECORDS + (items.size() + storeCount) * RECORD_SIZE + storeCount * 4);
+      int[][] itemStrings = new int[items.size()][];
+      for (int i = 0; i < items.size(); i++) {
+         MenuCatalog.MenuItem item = items.get(i);
+         itemStrings[i] = new int[] { strings.add(item.itemName), strings.add(item.ingredients),
+                                      strings.add(item.typeOfItem), strings.add(item.description) };
+      }
+      int[][] storeStrings = new int[storeCount][];
+      for (int i = 0; i < storeCount; i++) {
+         storeStrings[i] = new int[] { strings.add(stores.getString(i, 1)), strings.add(stores.getString(i, 2)),
+                                       strings.add(stores.getString(i, 3)), strings.add(stores.getString(i, 4)) };
+      }
+
+      ByteBuffer body = ByteBuffer.allocate(strings.end());
+      body.putInt(0, BODY_MAGIC);
+      body.putInt(ITEM_COUNT, items.size());
+      body.putInt(STORE_COUNT, storeCount);
+      body.putLong(MENU_VERSION, menuVersion);
+      body.putLong(WRITTEN_AT, System.currentTimeMillis());
+      for (int i = 0; i < items.size(); i++) {
+         int record = itemRecord(i);
+         for (int f = 0; f < 4; f++)
+            body.putInt(record + f * 4, itemStrings[i][f]);
+         body.putLong(record + 16, items.get(i).priceCents);
+         body.putLong(record + 24, items.get(i).menuVersion);
+      }
+      int firstStore = itemRecord(items.size());
+      for (int i = 0; i < storeCount; i++) {
+         int record = firstStore + i * RECORD_SIZE;
+         body.putInt(record, stores.getInt(i, 0));
+         for (int f = 0; f < 4; f++)
+            body.putInt(record + 4 + f * 4, storeStrings[i][f]);
+         body.putDouble(record + 24, stores.isNull(i, 5) ? Double.NaN : stores.getDouble(i, 5));
+      }
+      int index = firstStore + storeCount * RECORD_SIZE;
+      for (int i = 0; i < storeCount; i++)
+         body.putInt(index + i * 4, byCity[i]);
+      strings.copyTo(body);
+      return body.array();
+   }//end encode
+
+   /**
+    * Strings appended after the records, addressed by file offset.
+    */
+   private static class StringHeap {
+      private final int _start;
+      private final List<byte[]> _values = new ArrayList<byte[]>();
+      private int _end;
+
+      StringHeap(int start) {
+         this._start = start;
+         this._end = start;
+      }
+
+      int add(String value) {
+         int offset = this._end;
+         byte[] bytes = value == null ? null : utf8(value);
+         this._values.add(bytes);
+         this._end += 4 + (bytes == null ? 0 : bytes.length);
+         return offset;
+      }
+
+      int end() {
+         return this._end;
+      }
+
+      void copyTo(ByteBuffer body) {
+         body.position(this._start);
+         for (byte[] bytes : this._values) {
+            body.putInt(bytes == null ? -1 : bytes.length);
+            if (bytes != null)
+               body.put(bytes);
+         }
+      }
+   }//end StringHeap
+
+   private MenuCatalog.MenuItem item(ByteBuffer body, int i) {
+      int record = itemRecord(i);
+      return new MenuCatalog.MenuItem(string(body, body.getInt(record)), string(body, body.getInt(record + 4)),
+                                      string(body, body.getInt(record + 8)), body.getLong(record + 16),
+                                      string(body, body.getInt(record + 12)), body.getLong(record + 24));
+   }//end item
+
+   private static int itemRecord(int i) {
+      return RECORDS + i * RECORD_SIZE;
+   }//end itemRecord
+
+   private static int storeRecord(ByteBuffer body, int i) {
+      return itemRecord(body.getInt(ITEM_COUNT)) + i * RECORD_SIZE;
+   }//end storeRecord
+
+   private static int cityIndex(ByteBuffer body) {
+      return storeRecord(body, body.getInt(STORE_COUNT));
+   }//end cityIndex
+
+   private static String string(ByteBuffer body, int offset) {
+      int length = body.getInt(offset);
+      if (length < 0)
+         return null;
+      byte[] bytes = new byte[length];
+      ByteBuffer view = body.duplicate();
+      view.position(offset + 4);
+      view.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }//end string
+
+   // the mapped string at offset against key, unsigned bytewise; NULL first
+   private static int compare(ByteBuffer body, int offset, byte[] key) {
+      int length = body.getInt(offset);
+      if (length < 0)
+         return -1;
+      int n = Math.min(length, key.length);
+      for (int i = 0; i < n; i++) {
+         int cmp = (body.get(offset + 4 + i) & 0xff) - (key[i] & 0xff);
+         if (cmp != 0)
+            return cmp;
+      }
+      return length - key.length;
+   }//end compare
+
+   private static int compareBytes(byte[] a, byte[] b) {
+      if (a == null || b == null)
+         return a == null ? (b == null ? 0 : -1) : 1;
+      int n = Math.min(a.length, b.length);
+      for (int i = 0; i < n; i++) {
+         int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+         if (cmp != 0)
+            return cmp;
+      }
+      return a.length - b.length;
+   }//end compareBytes
+
+   private static byte[] utf8(String value) {
+      return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+   }//end utf8
+
+   private File bodyFile(long generation) {
+      return new File(this._header.getPath() + "." + generation);
+   }//end bodyFile
+
+   // read-only mapping of a whole file (size -1) or its first size bytes;
+   // null if the file is shorter
+   private static MappedByteBuffer map(File file, long size) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         long length = size < 0 ? raf.length() : size;
+         if (raf.length() < length || length < 8)
+            return null;
+         return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+      } finally {
+         raf.close();
+      }
+   }//end map
+
+}//end ReferenceSnapshot
@@ -0,0 +1,191 @@
+/*
+ * Read replica routing
+ * ====================
+ *
+ * Sends read-only screens (menu, stores, order history) to a streaming
+ * replica so the primary connection is left to order writes.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pool of replica connections plus the policy deciding when a read may use
+ * one.
+ *
+ * A read goes to the replica only when
+ *    - a replica URL was given and a connection can be made,
+ *    - the replica is at most maxLagSeconds behind the primary, and
+ *    - the reading user has no write the replica may not have replayed yet
+ *      (read-your-writes: their last write is older than the current lag).
+ * Otherwise, or when the replica query fails, the caller uses the primary.
+ */
+public class ReplicaRouter {
+
+   // stands for the reference tables (Items, Store) in noteWrite and
+   // acquire, so reads of them follow the same read-your-writes rule as a
+   // user's reads; no login is empty
+   public static final String REFERENCE = "";
+
+   private static final int POOL_SIZE = 4;
+
+   // how long a lag measurement is trusted before the replica is asked again
+   private static final long LAG_CHECK_INTERVAL_MS = 1000;
+
+   // extra margin on top of the measured lag for read-your-writes
+   private static final long WRITE_MARGIN_MS = 500;
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final double _maxLagSeconds;
+
+   private final BlockingQueue<Connection> _idle = new ArrayBlockingQueue<Connection>(POOL_SIZE);
+
+   // login -> time of that user's last write on the primary
+   private final ConcurrentMap<String, Long> _lastWrite = new ConcurrentHashMap<String, Long>();
+
+   private volatile double _lagSeconds = Double.MAX_VALUE;
+   private volatile long _lagCheckedAt = 0;
+
+   /**
+    * @param url JDBC URL of the replica, or null to read from the primary only
+    * @param user the user name used to login to the replica
+    * @param passwd the user login password
+    * @param maxLagSeconds how far behind the replica may be and still serve reads
+    */
+   public ReplicaRouter(String url, String user, String passwd, double maxLagSeconds) {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._maxLagSeconds = maxLagSeconds;
+   }//end ReplicaRouter
+
+   /**
+    * @return true if a replica URL was configured
+    */
+   public boolean isEnabled() {
+      return this._url != null;
+   }//end isEnabled
+
+   /**
+    * Records a write by a user, so their next reads stay on the primary
+    * until the replica has caught up with it.
+    */
+   public void noteWrite(String login) {
+      if (login != null)
+         this._lastWrite.put(login, System.currentTimeMillis());
+   }//end noteWrite
+
+   /**
+    * Returns a replica connection for a read by login (null for reads that
+    * are not tied to a user), or null if the read must go to the primary.
+    * A connection returned here must be handed back with release or discard.
+    */
+   public Connection acquire(String login) {
+      if (!isEnabled())
+         return null;
+
+      Connection conn = this._idle.poll();
+      try {
+         if (conn == null)
+            conn = DriverManager.getConnection(this._url, this._user, this._passwd);
+
+         double lag = currentLag(conn);
+         if (lag > this._maxLagSeconds) {
+            release(conn);
+            return null;
+         }
+
+         Long lastWrite = login == null ? null : this._lastWrite.get(login);
+         if (lastWrite != null) {
+            long needed = lastWrite.longValue() + (long) (lag * 1000) + WRITE_MARGIN_MS;
+            if (System.currentTimeMillis() < needed) {
+               release(conn);
+               return null;
+            }
+            this._lastWrite.remove(login, lastWrite);
+         }
+         return conn;
+      } catch (SQLException e) {
+         discard(conn);
+         return null;
+      }
+   }//end acquire
+
+   /**
+    * Hands a healthy connection back to the pool.
+    */
+   public void release(Connection conn) {
+      if (conn != null && !this._idle.offer(conn))
+         discard(conn);
+   }//end release
+
+   /**
+    * Closes a connection that failed, instead of pooling it.
+    */
+   public void discard(Connection conn) {
+      this._lagCheckedAt = 0;
+      try {
+         if (conn != null)
+            conn.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }//end discard
+
+   /**
+    * Closes all pooled connections.
+    */
+   public void close() {
+      Connection conn;
+      while ((conn = this._idle.poll()) != null)
+         discard(conn);
+   }//end close
+
+   /*
+    * Replication lag in seconds.  A replica that has replayed everything it
+    * received counts as 0 even if the primary has been idle for a while,
+    * but only while its WAL receiver is running: one cut off from the
+    * primary has received nothing new either, so it counts as behind by
+    * the age of its last replayed transaction (unknown if there is none),
+    * and reads go to the primary once that passes maxLagSeconds.
+    */
+   private double currentLag(Connection conn) throws SQLException {
+      long now = System.currentTimeMillis();
+      if (now - this._lagCheckedAt < LAG_CHECK_INTERVAL_MS)
+         return this._lagSeconds;
+
+      Statement stmt = conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(
+            "SELECT CASE WHEN NOT pg_is_in_recovery() THEN 0 "
+            + "WHEN NOT EXISTS (SELECT 1 FROM pg_stat_wal_receiver) "
+            + "THEN EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) "
+            + "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+            + "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()), 0) END");
+         double lag = Double.MAX_VALUE;
+         if (rs.next()) {
+            lag = rs.getDouble(1);
+            if (rs.wasNull())
+               lag = Double.MAX_VALUE;
+         }
+         this._lagSeconds = lag;
+         this._lagCheckedAt = now;
+         return this._lagSeconds;
+      } finally {
+         stmt.close();
+      }
+   }//end currentLag
+
+}//end ReplicaRouter
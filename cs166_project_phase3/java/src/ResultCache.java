@@ -0,0 +1,204 @@
+/*
+ * Query result cache
+ * ==================
+ *
+ * Size-bounded, time-limited cache of query results for read-mostly tables.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Caches the result of a query string for a per-query time to live.
+ *
+ * Entries are kept in access order and the least recently used one is
+ * evicted past MAX_ENTRIES.  Concurrent misses on the same query share a
+ * single load (single flight).  Every entry records the tables it was read
+ * from, and the write paths call invalidate(table) so a change is seen
+ * right away rather than after the TTL; a load that raced with an
+ * invalidation is returned to its callers but not kept.
+ *
+ * Results are shared between callers and therefore read-only.
+ */
+public class ResultCache {
+
+   /**
+    * Runs the query on a miss.
+    */
+   public interface Loader {
+      List<List<String>> load(String query) throws SQLException;
+   }//end Loader
+
+   private static class Entry {
+      final List<List<String>> result;
+      final long expiresAt;
+      final String[] tables;
+
+      Entry(List<List<String>> result, long expiresAt, String[] tables) {
+         this.result = result;
+         this.expiresAt = expiresAt;
+         this.tables = tables;
+      }
+   }//end Entry
+
+   private static final int MAX_ENTRIES = 256;
+
+   // query -> entry, least recently used first
+   private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+         return size() > MAX_ENTRIES;
+      }
+   };
+
+   // loads in progress, by query
+   private final ConcurrentHashMap<String, FutureTask<List<List<String>>>> _loading =
+      new ConcurrentHashMap<String, FutureTask<List<List<String>>>>();
+
+   // bumped by every invalidation
+   private long _generation = 0;
+
+   private final Loader _loader;
+
+   public ResultCache(Loader loader) {
+      this._loader = loader;
+   }//end ResultCache
+
+   /**
+    * Returns the cached result of a query, loading it on a miss.
+    *
+    * @param query the query
+    * @param ttlMillis how long the result may be served from the cache
+    * @param tables the tables the query reads, for invalidation
+    * @return the (read-only) result
+    * @throws java.sql.SQLException when the load failed
+    */
+   public List<List<String>> get(String query, long ttlMillis, String... tables) throws SQLException {
+      synchronized (this) {
+         Entry entry = this._entries.get(query);
+         if (entry != null && entry.expiresAt > System.currentTimeMillis())
+            return entry.result;
+      }
+      return load(query, ttlMillis, tables);
+   }//end get
+
+   /**
+    * Loads a query even if it is cached, replacing the cached result, e.g.
+    * to replace results primed from a snapshot.
+    *
+    * @param query the query
+    * @param ttlMillis how long the result may be served from the cache
+    * @param tables the tables the query reads, for invalidation
+    * @return the (read-only) result
+    * @throws java.sql.SQLException when the load failed
+    */
+   public List<List<String>> refresh(String query, long ttlMillis, String... tables) throws SQLException {
+      return load(query, ttlMillis, tables);
+   }//end refresh
+
+   /**
+    * @param query the query
+    * @return the cached result, expired or not, or null
+    */
+   public synchronized List<List<String>> peek(String query) {
+      Entry entry = this._entries.get(query);
+      return entry == null ? null : entry.result;
+   }//end peek
+
+   /**
+    * Puts a result obtained elsewhere (e.g. a snapshot) into the cache.
+    *
+    * @param query the query
+    * @param result its result
+    * @param ttlMillis how long the result may be served from the cache
+    * @param tables the tables the query reads, for invalidation
+    */
+   public synchronized void prime(String query, List<List<String>> result, long ttlMillis, String... tables) {
+      put(query, Collections.unmodifiableList(new ArrayList<List<String>>(result)), ttlMillis, tables,
+          this._generation);
+   }//end prime
+
+   private List<List<String>> load(final String query, final long ttlMillis, final String[] tables)
+         throws SQLException {
+      final long generation;
+      synchronized (this) {
+         generation = this._generation;
+      }
+
+      FutureTask<List<List<String>>> load = new FutureTask<List<List<String>>>(
+         new Callable<List<List<String>>>() {
+            public List<List<String>> call() throws SQLException {
+               List<List<String>> result = Collections.unmodifiableList(
+                  new ArrayList<List<String>>(ResultCache.this._loader.load(query)));
+               put(query, result, ttlMillis, tables, generation);
+               return result;
+            }
+         });
+      FutureTask<List<List<String>>> running = this._loading.putIfAbsent(query, load);
+      if (running == null) {
+         running = load;
+         try {
+            load.run();
+         } finally {
+            this._loading.remove(query, load);
+         }
+      }
+
+      try {
+         return running.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for " + query);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(String.valueOf(e.getCause()));
+      }
+   }//end load
+
+   /**
+    * Drops every entry read from a table.  Called by the methods that write
+    * to it.
+    *
+    * @param table the table that was written
+    */
+   public synchronized void invalidate(String table) {
+      this._generation++;
+      Iterator<Entry> it = this._entries.values().iterator();
+      while (it.hasNext()) {
+         for (String t : it.next().tables) {
+            if (t.equalsIgnoreCase(table)) {
+               it.remove();
+               break;
+            }
+         }
+      }
+   }//end invalidate
+
+   /**
+    * Drops every entry.
+    */
+   public synchronized void clear() {
+      this._generation++;
+      this._entries.clear();
+   }//end clear
+
+   private synchronized void put(String query, List<List<String>> result, long ttlMillis, String[] tables,
+                                 long generation) {
+      if (generation != this._generation)
+         return;
+      this._entries.put(query, new Entry(result, System.currentTimeMillis() + ttlMillis, tables));
+   }//end put
+
+}//end ResultCache
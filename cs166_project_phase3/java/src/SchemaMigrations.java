@@ -0,0 +1,347 @@
+/*
+ * Schema migrations
+ * =================
+ *
+ * Brings an existing database forward in place, instead of dropping and
+ * recreating it with create_tables.sql.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Migrations are files V<version>__<name>.sql in one directory, applied in
+ * version order, each at most once per database; schema_migrations records
+ * the version, name and SHA-256 of every applied file.  An applied file
+ * whose checksum changed stops the run: migrations are append-only, a fix
+ * is a new version.
+ *
+ * A migration runs in one transaction together with its schema_migrations
+ * row, unless it builds or drops indexes CONCURRENTLY, which can't run in
+ * a transaction.  Those migrations run statement by statement and
+ * must be safe to repeat (IF NOT EXISTS); an index left invalid by an
+ * interrupted build is dropped and rebuilt on the next run.  Postgres can't
+ * build an index on a partitioned table concurrently, so for FoodOrder and
+ * ItemsInOrder the runner creates the index on the parent only, builds it
+ * concurrently on every partition and attaches those; partitions created
+ * later get it automatically.
+ *
+ * Statements that drop or empty tables, schemas or columns are refused;
+ * the bodies of functions a migration creates are not checked.
+ * The run holds an advisory lock, so two runners never interleave, and is
+ * repeated on every database holding orders (see ShardRouter).
+ */
+public class SchemaMigrations {
+
+   private static final Pattern FILE_NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+
+   private static final Pattern CONCURRENT_INDEX = Pattern.compile(
+      "CREATE\\s+(UNIQUE\\s+)?INDEX\\s+CONCURRENTLY\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?(\\w+)\\s+ON\\s+(\\w+)\\s*(.*)",
+      Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+   // also ALTER TABLE t DROP c, where COLUMN is optional; dropping a
+   // constraint, index, default or NOT NULL keeps the data
+   private static final Pattern DESTRUCTIVE = Pattern.compile(
+      "\\b(DROP\\s+(TABLE|SCHEMA|DATABASE|COLUMN)|TRUNCATE|DELETE\\s+FROM)\\b"
+      + "|\\bALTER\\s+TABLE\\b.*?[\\s,]DROP\\s+(?!(CONSTRAINT|INDEX|DEFAULT|NOT\\s+NULL|IDENTITY|EXPRESSION)\\b)",
+      Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+   // arbitrary key of the advisory lock held while migrating
+   private static final long LOCK_KEY = 0x505a4d31L; // "PZM1"
+
+   private static final int MAX_NAME_LENGTH = 63;
+
+   private static final String CREATE_HISTORY =
+      "CREATE TABLE IF NOT EXISTS schema_migrations ( version integer NOT NULL, "
+      + "name varchar(100) NOT NULL, checksum char(64) NOT NULL, "
+      + "appliedAt timestamp NOT NULL DEFAULT now(), PRIMARY KEY(version) )";
+
+   /**
+    * One migration file.
+    */
+   private static class Migration {
+      final int version;
+      final String name;
+      final String checksum;
+      final List<String> statements;
+      final boolean concurrent;
+
+      Migration(int version, String name, String checksum, List<String> statements) {
+         this.version = version;
+         this.name = name;
+         this.checksum = checksum;
+         this.statements = statements;
+         boolean concurrent = false;
+         for (String sql : statements)
+            concurrent |= sql.toUpperCase().contains("CONCURRENTLY");
+         this.concurrent = concurrent;
+      }
+   }//end Migration
+
+   private final PizzaStore _esql;
+   private final File _dir;
+
+   /**
+    * @param esql the global database
+    * @param dir the directory holding the migration files
+    */
+   public SchemaMigrations(PizzaStore esql, String dir) {
+      this._esql = esql;
+      this._dir = new File(dir);
+   }//end SchemaMigrations
+
+   /**
+    * Applies the pending migrations on every database holding orders.
+    *
+    * @return the number of migrations applied, summed over the databases
+    * @throws java.io.IOException when a migration file is unreadable or refused
+    * @throws java.sql.SQLException when a migration failed or an applied one changed
+    */
+   public int run() throws IOException, SQLException {
+      List<Migration> migrations = load();
+      int applied = 0;
+      List<Connection> connections = this._esql.getShards().openAllConnections();
+      try {
+         for (int i = 0; i < connections.size(); i++) {
+            String database = i == ShardRouter.GLOBAL ? "global database" : "shard " + i;
+            applied += migrate(connections.get(i), database, migrations);
+         }
+      } finally {
+         for (Connection conn : connections)
+            conn.close();
+      }
+      return applied;
+   }//end run
+
+   private int migrate(Connection conn, String database, List<Migration> migrations) throws SQLException {
+      // index builds on big tables take longer than any screen's timeout
+      execute(conn, "SET statement_timeout = 0");
+      execute(conn, "SELECT pg_advisory_lock(" + LOCK_KEY + ")");
+      try {
+         execute(conn, CREATE_HISTORY);
+         Map<Integer, String> done = new TreeMap<Integer, String>();
+         for (List<String> record : query(conn, "SELECT version, checksum FROM schema_migrations"))
+            done.put(Integer.parseInt(record.get(0).trim()), record.get(1).trim());
+
+         int applied = 0;
+         for (Migration migration : migrations) {
+            String checksum = done.get(migration.version);
+            if (checksum != null) {
+               if (!checksum.equals(migration.checksum))
+                  throw new SQLException(database + ": applied migration V" + migration.version + " "
+                                         + migration.name + " was changed afterwards");
+               continue;
+            }
+
+            long started = System.currentTimeMillis();
+            if (migration.concurrent)
+               applyConcurrently(conn, migration);
+            else
+               applyInTransaction(conn, migration);
+            System.out.println(database + ": applied V" + migration.version + " " + migration.name + " ("
+                               + (System.currentTimeMillis() - started) + " ms)");
+            applied++;
+         }
+         return applied;
+      } finally {
+         execute(conn, "SELECT pg_advisory_unlock(" + LOCK_KEY + ")");
+      }
+   }//end migrate
+
+   private static void applyInTransaction(Connection conn, Migration migration) throws SQLException {
+      conn.setAutoCommit(false);
+      try {
+         for (String sql : migration.statements)
+            execute(conn, sql);
+         execute(conn, recordStatement(migration));
+         conn.commit();
+      } catch (SQLException e) {
+         conn.rollback();
+         throw new SQLException("V" + migration.version + " " + migration.name + ": " + e.getMessage());
+      } finally {
+         conn.setAutoCommit(true);
+      }
+   }//end applyInTransaction
+
+   private static void applyConcurrently(Connection conn, Migration migration) throws SQLException {
+      try {
+         for (String sql : migration.statements) {
+            Matcher m = CONCURRENT_INDEX.matcher(sql);
+            if (m.lookingAt())
+               createIndexConcurrently(conn, m.group(1) != null, m.group(2), m.group(3), m.group(4));
+            else
+               execute(conn, sql);
+         }
+         execute(conn, recordStatement(migration));
+      } catch (SQLException e) {
+         throw new SQLException("V" + migration.version + " " + migration.name + ": " + e.getMessage());
+      }
+   }//end applyConcurrently
+
+   /*
+    * CREATE INDEX CONCURRENTLY IF NOT EXISTS, with partitioned tables and
+    * invalid leftovers of an interrupted build handled.
+    */
+   private static void createIndexConcurrently(Connection conn, boolean unique, String index, String table,
+                                               String definition) throws SQLException {
+      String create = "CREATE " + (unique ? "UNIQUE " : "") + "INDEX ";
+      if (!"p".equals(scalar(conn, "SELECT relkind FROM pg_class WHERE oid = to_regclass('" + table + "')"))) {
+         dropIfInvalid(conn, index);
+         execute(conn, create + "CONCURRENTLY IF NOT EXISTS " + index + " ON " + table + " " + definition);
+         return;
+      }
+
+      // a valid parent index means it is attached on every partition
+      if ("t".equals(scalar(conn, "SELECT indisvalid FROM pg_index WHERE indexrelid = to_regclass('" + index + "')")))
+         return;
+      execute(conn, create + "IF NOT EXISTS " + index + " ON ONLY " + table + " " + definition);
+      for (List<String> record : query(conn,
+            "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid"
+            + " WHERE i.inhparent = to_regclass('" + table + "') ORDER BY c.relname")) {
+         String partition = record.get(0).trim();
+         String partitionIndex = index + "_" + partition;
+         if (partitionIndex.length() > MAX_NAME_LENGTH)
+            partitionIndex = partitionIndex.substring(0, MAX_NAME_LENGTH);
+         if (scalar(conn, "SELECT 1 FROM pg_inherits WHERE inhrelid = to_regclass('" + partitionIndex + "')"
+                    + " AND inhparent = to_regclass('" + index + "')") != null)
+            continue;
+         dropIfInvalid(conn, partitionIndex);
+         execute(conn, create + "CONCURRENTLY IF NOT EXISTS " + partitionIndex + " ON " + partition + " " + definition);
+         execute(conn, "ALTER INDEX " + index + " ATTACH PARTITION " + partitionIndex);
+      }
+   }//end createIndexConcurrently
+
+   private static void dropIfInvalid(Connection conn, String index) throws SQLException {
+      if ("f".equals(scalar(conn, "SELECT indisvalid FROM pg_index WHERE indexrelid = to_regclass('" + index + "')")))
+         execute(conn, "DROP INDEX CONCURRENTLY IF EXISTS " + index);
+   }//end dropIfInvalid
+
+   private static String recordStatement(Migration migration) {
+      return "INSERT INTO schema_migrations (version, name, checksum) VALUES (" + migration.version + ", '"
+         + migration.name + "', '" + migration.checksum + "')";
+   }//end recordStatement
+
+   /*
+    * Reads the migration files in version order.
+    */
+   private List<Migration> load() throws IOException {
+      File[] files = this._dir.listFiles();
+      if (files == null)
+         throw new IOException(this._dir + ": no such directory");
+
+      TreeMap<Integer, Migration> migrations = new TreeMap<Integer, Migration>();
+      for (File file : files) {
+         Matcher m = FILE_NAME.matcher(file.getName());
+         if (!m.matches())
+            continue;
+         int version = Integer.parseInt(m.group(1));
+         String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).replace("\r\n", "\n");
+         List<String> statements = split(text);
+         for (String sql : statements) {
+            if (DESTRUCTIVE.matcher(withoutBodies(withoutComments(sql))).find())
+               throw new IOException(file.getName() + ": refusing a statement that drops or deletes data: " + sql);
+         }
+         if (migrations.put(version, new Migration(version, m.group(2), sha256(text), statements)) != null)
+            throw new IOException(file.getName() + ": version " + version + " is used twice");
+      }
+      return new ArrayList<Migration>(migrations.values());
+   }//end load
+
+   /*
+    * Splits a file into statements at semicolons ending a line, outside
+    * $$-quoted function bodies.  Comment-only lines are dropped.
+    */
+   private static List<String> split(String text) {
+      List<String> statements = new ArrayList<String>();
+      StringBuilder current = new StringBuilder();
+      boolean inBody = false;
+      for (String line : text.split("\n")) {
+         String trimmed = line.trim();
+         if (!inBody && (trimmed.isEmpty() || trimmed.startsWith("--")))
+            continue;
+         current.append(line).append('\n');
+         if ((line.length() - line.replace("$$", "").length()) / 2 % 2 == 1)
+            inBody = !inBody;
+         if (!inBody && trimmed.endsWith(";")) {
+            String sql = current.toString().trim();
+            statements.add(sql.substring(0, sql.length() - 1).trim());
+            current.setLength(0);
+         }
+      }
+      if (current.toString().trim().length() > 0)
+         statements.add(current.toString().trim());
+      return statements;
+   }//end split
+
+   private static String withoutComments(String sql) {
+      return sql.replaceAll("--[^\n]*", "");
+   }//end withoutComments
+
+   // function bodies run when the function is called, not when it is created
+   private static String withoutBodies(String sql) {
+      return sql.replaceAll("(?s)\\$\\$.*?\\$\\$", "''");
+   }//end withoutBodies
+
+   private static String sha256(String text) {
+      try {
+         byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+         StringBuilder hex = new StringBuilder();
+         for (byte b : digest)
+            hex.append(String.format("%02x", b & 0xff));
+         return hex.toString();
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }//end sha256
+
+   private static void execute(Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         stmt.execute(sql);
+      } finally {
+         stmt.close();
+      }
+   }//end execute
+
+   private static List<List<String>> query(Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(sql);
+         int numCol = rs.getMetaData().getColumnCount();
+         List<List<String>> result = new ArrayList<List<String>>();
+         while (rs.next()) {
+            List<String> record = new ArrayList<String>();
+            for (int i = 1; i <= numCol; ++i)
+               record.add(rs.getString(i));
+            result.add(record);
+         }
+         return result;
+      } finally {
+         stmt.close();
+      }
+   }//end query
+
+   // first column of the first row, or null
+   private static String scalar(Connection conn, String sql) throws SQLException {
+      List<List<String>> result = query(conn, sql);
+      return result.isEmpty() || result.get(0).get(0) == null ? null : result.get(0).get(0).trim();
+   }//end scalar
+
+}//end SchemaMigrations
@@ -0,0 +1,430 @@
+/*
+ * Shard router
+ * ============
+ *
+ * Routes orders to the database that owns their store, and fans per-user
+ * order reads out to all of them.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * FoodOrder and ItemsInOrder are split by storeID ranges across order
+ * shards, listed in an optional config file, one range per line:
+ *
+ *    # firstStoreID lastStoreID jdbc-url
+ *    1    500  jdbc:postgresql://localhost:5433/pizza_shard1
+ *    501 1000  jdbc:postgresql://localhost:5434/pizza_shard2
+ *
+ * Stores outside every range, and everything else (Users, Items, Store,
+ * the menu version and the order ID sequence), stay on the global database
+ * the program connects to.  Every shard runs create_tables.sql; the
+ * reference tables the order tables have foreign keys on (Users, Items,
+ * Store) must be replicated to the shards from the global database.
+ *
+ * Without a config file there is a single database and every call goes to
+ * the PizzaStore execute methods as before.
+ *
+ * Order IDs come from the global sequence, so they are unique across
+ * shards; a lookup by orderID alone asks every shard in parallel.
+ */
+public class ShardRouter {
+
+   private static class Shard {
+      final int index;
+      final String url;
+      Connection connection = null;
+
+      Shard(int index, String url) {
+         this.index = index;
+         this.url = url;
+      }
+   }//end Shard
+
+   private static class Range {
+      final int last;
+      final Shard shard;
+
+      Range(int last, Shard shard) {
+         this.last = last;
+         this.shard = shard;
+      }
+   }//end Range
+
+   // index of the global database in shardIndex
+   public static final int GLOBAL = 0;
+
+   private final PizzaStore _esql;
+   private final String _user;
+   private final String _passwd;
+
+   // firstStoreID -> range
+   private final TreeMap<Integer, Range> _ranges = new TreeMap<Integer, Range>();
+   private final List<Shard> _shards = new ArrayList<Shard>();
+
+   private ExecutorService _fanOut = null;
+
+   /**
+    * @param esql the global database
+    * @param configPath the shard config file; missing means no shards
+    * @param user the user name used to login to the shards
+    * @param passwd the user login password
+    * @throws java.io.IOException when the config file is unreadable or malformed
+    */
+   public ShardRouter(PizzaStore esql, String configPath, String user, String passwd) throws IOException {
+      this._esql = esql;
+      this._user = user;
+      this._passwd = passwd;
+
+      File config = new File(configPath);
+      if (!config.isFile())
+         return;
+
+      Map<String, Shard> byUrl = new TreeMap<String, Shard>();
+      BufferedReader in = new BufferedReader(new FileReader(config));
+      try {
+         String line;
+         int lineNo = 0;
+         while ((line = in.readLine()) != null) {
+            lineNo++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+               continue;
+            String[] fields = line.split("\\s+");
+            if (fields.length != 3)
+               throw new IOException(configPath + ":" + lineNo + ": expected <first> <last> <jdbc url>");
+            int first, last;
+            try {
+               first = Integer.parseInt(fields[0]);
+               last = Integer.parseInt(fields[1]);
+            } catch (NumberFormatException e) {
+               throw new IOException(configPath + ":" + lineNo + ": bad store ID");
+            }
+            Map.Entry<Integer, Range> before = this._ranges.floorEntry(last);
+            if (last < first || (before != null && before.getValue().last >= first))
+               throw new IOException(configPath + ":" + lineNo + ": bad or overlapping store range");
+
+            Shard shard = byUrl.get(fields[2]);
+            if (shard == null) {
+               shard = new Shard(this._shards.size() + 1, fields[2]);
+               this._shards.add(shard);
+               byUrl.put(fields[2], shard);
+            }
+            this._ranges.put(first, new Range(last, shard));
+         }//end while
+      } finally {
+         in.close();
+      }
+
+      if (!this._shards.isEmpty()) {
+         this._fanOut = Executors.newFixedThreadPool(this._shards.size() + 1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "shard-fan-out");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+   }//end ShardRouter
+
+   /**
+    * @return true if order shards are configured
+    */
+   public boolean isSharded() {
+      return !this._shards.isEmpty();
+   }//end isSharded
+
+   /**
+    * @return the number of databases holding orders, the global one included
+    */
+   public int databaseCount() {
+      return this._shards.size() + 1;
+   }//end databaseCount
+
+   /**
+    * @param storeID the store
+    * @return the shard owning the store's orders, or GLOBAL
+    */
+   public int shardIndex(int storeID) {
+      Shard shard = shardFor(storeID);
+      return shard == null ? GLOBAL : shard.index;
+   }//end shardIndex
+
+   /**
+    * Opens a new connection to the database owning a store's orders.
+    *
+    * @param storeID the store
+    * @return a new connection
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public Connection openConnection(int storeID) throws SQLException {
+      Shard shard = shardFor(storeID);
+      if (shard == null)
+         return this._esql.openConnection();
+      this._esql.awaitConnection(); // loads the driver
+      return DriverManager.getConnection(shard.url, this._user, this._passwd);
+   }//end openConnection
+
+   /**
+    * Opens a new connection to every database holding orders, the global
+    * one first, e.g. for schema maintenance.
+    *
+    * @return the connections
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public List<Connection> openAllConnections() throws SQLException {
+      List<Connection> connections = new ArrayList<Connection>();
+      try {
+         connections.add(this._esql.openConnection());
+         for (Shard shard : this._shards)
+            connections.add(DriverManager.getConnection(shard.url, this._user, this._passwd));
+      } catch (SQLException e) {
+         for (Connection conn : connections)
+            conn.close();
+         throw e;
+      }
+      return connections;
+   }//end openAllConnections
+
+   /**
+    * Runs a query on the database owning a store's orders.
+    *
+    * @param storeID the store
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> query(int storeID, String query) throws SQLException {
+      Shard shard = shardFor(storeID);
+      return shard == null ? this._esql.executeQueryAndReturnResult(query) : run(shard, query, ROWS).result;
+   }//end query
+
+   /**
+    * Runs a query on the database owning a store's orders and returns the
+    * result as typed columns.
+    *
+    * @param storeID the store
+    * @param query the input query string
+    * @return the query result as typed columns
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ColumnarResult queryColumns(int storeID, String query) throws SQLException {
+      Shard shard = shardFor(storeID);
+      return shard == null ? this._esql.executeQueryAndReturnColumns(query) : run(shard, query, COLUMNS).columns;
+   }//end queryColumns
+
+   /**
+    * Runs an update on the database owning a store's orders.
+    *
+    * @param storeID the store
+    * @param sql the input SQL string
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int update(int storeID, String sql) throws SQLException {
+      Shard shard = shardFor(storeID);
+      return shard == null ? this._esql.executeUpdateCount(sql) : run(shard, sql, UPDATE).rowCount;
+   }//end update
+
+   /**
+    * Runs a query on every database holding orders in parallel and merges
+    * the results.
+    *
+    * @param query the input query string
+    * @param timestampColumn column to merge by, newest first, or -1 to
+    *                        just concatenate
+    * @param limit most records to return, or -1 for all
+    * @return the merged result as a list of records
+    * @throws java.sql.SQLException when the query failed on any database
+    */
+   public List<List<String>> queryAll(final String query, final int timestampColumn, int limit)
+         throws SQLException {
+      List<Future<List<List<String>>>> parts = new ArrayList<Future<List<List<String>>>>();
+      for (final Shard shard : this._shards) {
+         parts.add(this._fanOut.submit(new Callable<List<List<String>>>() {
+            public List<List<String>> call() throws SQLException {
+               return run(shard, query, ROWS).result;
+            }
+         }));
+      }
+
+      // the global database's share runs on this thread meanwhile
+      List<List<String>> merged = new ArrayList<List<String>>(this._esql.executeQueryAndReturnResult(query));
+      for (Future<List<List<String>>> part : parts) {
+         try {
+            merged.addAll(part.get());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while querying shards");
+         } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException)
+               throw (SQLException) e.getCause();
+            throw new SQLException(String.valueOf(e.getCause()));
+         }
+      }
+
+      if (timestampColumn >= 0) {
+         Collections.sort(merged, new Comparator<List<String>>() {
+            public int compare(List<String> a, List<String> b) {
+               return Timestamp.valueOf(b.get(timestampColumn).trim())
+                  .compareTo(Timestamp.valueOf(a.get(timestampColumn).trim()));
+            }
+         });
+      }
+      if (limit >= 0 && merged.size() > limit)
+         merged = new ArrayList<List<String>>(merged.subList(0, limit));
+      return merged;
+   }//end queryAll
+
+   /**
+    * Runs a query on every database holding orders in parallel and appends
+    * the results as typed columns, global database first.
+    *
+    * @param query the input query string
+    * @return the appended results as typed columns
+    * @throws java.sql.SQLException when the query failed on any database
+    */
+   public ColumnarResult queryAllColumns(final String query) throws SQLException {
+      List<Future<ColumnarResult>> parts = new ArrayList<Future<ColumnarResult>>();
+      for (final Shard shard : this._shards) {
+         parts.add(this._fanOut.submit(new Callable<ColumnarResult>() {
+            public ColumnarResult call() throws SQLException {
+               return run(shard, query, COLUMNS).columns;
+            }
+         }));
+      }
+
+      List<ColumnarResult> results = new ArrayList<ColumnarResult>();
+      results.add(this._esql.executeQueryAndReturnColumns(query));
+      for (Future<ColumnarResult> part : parts) {
+         try {
+            results.add(part.get());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while querying shards");
+         } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException)
+               throw (SQLException) e.getCause();
+            throw new SQLException(String.valueOf(e.getCause()));
+         }
+      }
+      return results.size() == 1 ? results.get(0) : ColumnarResult.concat(results);
+   }//end queryAllColumns
+
+   /**
+    * Closes the shard connections.
+    */
+   public void close() {
+      if (this._fanOut != null)
+         this._fanOut.shutdownNow();
+      for (Shard shard : this._shards) {
+         synchronized (shard) {
+            closeConnection(shard);
+         }
+      }
+   }//end close
+
+   private Shard shardFor(int storeID) {
+      Map.Entry<Integer, Range> range = this._ranges.floorEntry(storeID);
+      if (range == null || range.getValue().last < storeID)
+         return null;
+      return range.getValue().shard;
+   }//end shardFor
+
+   // what run returns
+   private static final int UPDATE = 0;
+   private static final int ROWS = 1;
+   private static final int COLUMNS = 2;
+
+   private static class Outcome {
+      List<List<String>> result;
+      ColumnarResult columns;
+      int rowCount;
+   }//end Outcome
+
+   /*
+    * Runs one statement on a shard's shared connection, under the same
+    * admission control as the global database.
+    */
+   private Outcome run(Shard shard, String sql, int mode) throws SQLException {
+      AdmissionControl admission = this._esql.getAdmission();
+      int opClass = admission.classify(sql);
+      admission.acquire(opClass);
+      try {
+         synchronized (shard) {
+            if (shard.connection == null) {
+               this._esql.awaitConnection(); // loads the driver
+               shard.connection = DriverManager.getConnection(shard.url, this._user, this._passwd);
+            }
+            Outcome outcome = new Outcome();
+            try {
+               Statement stmt = shard.connection.createStatement();
+               admission.configure(stmt, opClass);
+               try {
+                  if (mode == UPDATE) {
+                     outcome.rowCount = stmt.executeUpdate(sql);
+                  } else if (mode == COLUMNS) {
+                     outcome.columns = ColumnarResult.read(stmt.executeQuery(sql));
+                  } else {
+                     ResultSet rs = stmt.executeQuery(sql);
+                     ResultSetMetaData rsmd = rs.getMetaData();
+                     int numCol = rsmd.getColumnCount();
+                     outcome.result = new ArrayList<List<String>>();
+                     while (rs.next()) {
+                        List<String> record = new ArrayList<String>();
+                        for (int i = 1; i <= numCol; ++i)
+                           record.add(rs.getString(i));
+                        outcome.result.add(record);
+                     }
+                  }
+               } finally {
+                  stmt.close();
+               }
+            } catch (SQLException e) {
+               // reconnect on the next statement
+               closeConnection(shard);
+               throw e;
+            }
+            return outcome;
+         }
+      } finally {
+         admission.release(opClass);
+      }
+   }//end run
+
+   private static void closeConnection(Shard shard) {
+      try {
+         if (shard.connection != null)
+            shard.connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+      shard.connection = null;
+   }//end closeConnection
+
+}//end ShardRouter
@@ -0,0 +1,327 @@
+/*
+ * Startup
+ * =======
+ *
+ * Startup sequence: timing phases, cache snapshot and parallel warm-up.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The database connection is opened in the background (see PizzaStore),
+ * so the greeting and the first menu are shown right away.  Meanwhile:
+ *
+ *    loadSnapshot  puts the menu and the cached type list from the last
+ *                  run back in place, so they can be served before the
+ *                  database has answered; the menu is then revalidated by
+ *                  version and the cached list is refreshed
+ *    warmUp        loads the menu, the cached lists, the pending orders and
+ *                  the recent idempotency keys in parallel once connected, and prints how long each
+ *                  phase took (counted from the connection being ready;
+ *                  "connected" and "warm" count from program start)
+ *    saveSnapshot  writes them out again on exit
+ *
+ * Stores aren't kept per process: they are looked up in the reference
+ * snapshot shared by the processes on the host (see ReferenceSnapshot),
+ * which also seeds the menu when it is newer than this process's copy, so
+ * only the first process on a host downloads Items and Store.
+ *
+ * The snapshot is optional: a missing or unreadable file just means a cold
+ * start.
+ */
+public class Startup {
+
+   /**
+    * A cached query to snapshot and warm up.
+    */
+   public static class CachedQuery {
+      final String name;
+      final String query;
+      final long ttlMillis;
+      final String[] tables;
+
+      public CachedQuery(String name, String query, long ttlMillis, String... tables) {
+         this.name = name;
+         this.query = query;
+         this.ttlMillis = ttlMillis;
+         this.tables = tables;
+      }
+   }//end CachedQuery
+
+   private static final int SNAPSHOT_MAGIC = 0x505a5331; // "PZS1"
+
+   // snapshot results are only trusted until the warm-up replaces them
+   private static final long SNAPSHOT_TTL = 30 * 1000;
+
+   private final PizzaStore _esql;
+   private final File _snapshot;
+   private final List<CachedQuery> _queries;
+   private final long _started;
+
+   // phase -> milliseconds, in the order they finished
+   private final Map<String, Long> _phases = new LinkedHashMap<String, Long>();
+
+   /**
+    * @param esql the store, possibly still connecting
+    * @param snapshotPath snapshot file, or null for none
+    * @param queries the cached queries to snapshot and warm up
+    * @param started System.nanoTime() when the program started
+    */
+   public Startup(PizzaStore esql, String snapshotPath, List<CachedQuery> queries, long started) {
+      this._esql = esql;
+      this._snapshot = snapshotPath == null ? null : new File(snapshotPath);
+      this._queries = queries;
+      this._started = started;
+   }//end Startup
+
+   /**
+    * Records that a phase started at startNanos has just finished.
+    */
+   public synchronized void phase(String name, long startNanos) {
+      this._phases.put(name, (System.nanoTime() - startNanos) / 1000000);
+   }//end phase
+
+   /**
+    * Restores the menu and the cached queries from the snapshot, if any.
+    *
+    * @return true if a snapshot was loaded
+    */
+   public boolean loadSnapshot() {
+      if (this._snapshot == null || !this._snapshot.isFile())
+         return false;
+      long start = System.nanoTime();
+      DataInputStream in = null;
+      try {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(this._snapshot)));
+         if (in.readInt() != SNAPSHOT_MAGIC)
+            throw new IOException("not a snapshot");
+
+         long version = in.readLong();
+         int count = in.readInt();
+         List<MenuCatalog.MenuItem> items = new ArrayList<MenuCatalog.MenuItem>(count);
+         for (int i = 0; i < count; i++) {
+            items.add(new MenuCatalog.MenuItem(readString(in), readString(in), readString(in), readString(in),
+                                               readString(in), in.readLong()));
+         }
+
+         Map<String, List<List<String>>> results = new LinkedHashMap<String, List<List<String>>>();
+         int queries = in.readInt();
+         for (int q = 0; q < queries; q++) {
+            String query = in.readUTF();
+            int rows = in.readInt();
+            List<List<String>> result = new ArrayList<List<String>>(rows);
+            for (int r = 0; r < rows; r++) {
+               int columns = in.readInt();
+               List<String> record = new ArrayList<String>(columns);
+               for (int c = 0; c < columns; c++)
+                  record.add(readString(in));
+               result.add(record);
+            }
+            results.put(query, result);
+         }
+
+         // only applied once the whole file was read
+         this._esql.getMenu().apply(new MenuCatalog.Response(MenuCatalog.Response.FULL, version, items,
+                                                             new ArrayList<String>()));
+         for (CachedQuery cached : this._queries) {
+            List<List<String>> result = results.get(cached.query);
+            if (result != null)
+               this._esql.getCache().prime(cached.query, result, SNAPSHOT_TTL, cached.tables);
+         }
+         phase("snapshot", start);
+         return true;
+      } catch (IOException e) {
+         System.err.println("Ignoring startup snapshot " + this._snapshot + ": " + e.getMessage());
+         return false;
+      } finally {
+         try {
+            if (in != null)
+               in.close();
+         } catch (IOException e) {
+            // ignored.
+         }
+      }
+   }//end loadSnapshot
+
+   /**
+    * Warms the menu, the cached queries and the dispatch queue in parallel
+    * in the background, then prints the startup phases to standard error.
+    */
+   public void warmUp() {
+      final ExecutorService pool = Executors.newFixedThreadPool(this._queries.size() + 4, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "startup-warm-up");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+
+      final List<Future<?>> tasks = new ArrayList<Future<?>>();
+      tasks.add(pool.submit(new Callable<Void>() {
+         public Void call() throws Exception {
+            Startup.this._esql.awaitConnection();
+            phase("connected", Startup.this._started);
+            return null;
+         }
+      }));
+      tasks.add(pool.submit(new Callable<Void>() {
+         public Void call() throws Exception {
+            Startup.this._esql.awaitConnection();
+            long start = System.nanoTime();
+            MenuCatalog menu = Startup.this._esql.getMenu();
+            ReferenceSnapshot reference = Startup.this._esql.getReference();
+            MenuCatalog.Response shared = reference.menu();
+            if (shared != null && shared.version > menu.version())
+               menu.apply(shared);
+            menu.revalidate();
+            phase("menu", start);
+
+            start = System.nanoTime();
+            reference.ensureFresh(PizzaStore.STORE_CACHE_TTL);
+            phase("reference data", start);
+            return null;
+         }
+      }));
+      for (final CachedQuery cached : this._queries) {
+         tasks.add(pool.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+               Startup.this._esql.awaitConnection();
+               long start = System.nanoTime();
+               Startup.this._esql.getCache().refresh(cached.query, cached.ttlMillis, cached.tables);
+               phase(cached.name, start);
+               return null;
+            }
+         }));
+      }
+      tasks.add(pool.submit(new Callable<Void>() {
+         public Void call() throws Exception {
+            Startup.this._esql.awaitConnection();
+            long start = System.nanoTime();
+            Startup.this._esql.getDispatchQueue().rebuild();
+            phase("pending orders", start);
+            return null;
+         }
+      }));
+      tasks.add(pool.submit(new Callable<Void>() {
+         public Void call() throws Exception {
+            Startup.this._esql.awaitConnection();
+            long start = System.nanoTime();
+            Startup.this._esql.getIdempotency().load();
+            phase("idempotency keys", start);
+            return null;
+         }
+      }));
+
+      Thread report = new Thread(new Runnable() {
+         public void run() {
+            for (Future<?> task : tasks) {
+               try {
+                  task.get();
+               } catch (Exception e) {
+                  System.err.println("Error warming up: " + e.getMessage());
+               }
+            }
+            pool.shutdown();
+            phase("warm", Startup.this._started);
+            // the menu is up by now, stay out of its prompt
+            System.err.println("Startup: " + summary());
+         }
+      }, "startup-report");
+      report.setDaemon(true);
+      report.start();
+   }//end warmUp
+
+   /**
+    * Writes the menu and the cached queries to the snapshot file.
+    */
+   public void saveSnapshot() {
+      if (this._snapshot == null)
+         return;
+      File tmp = new File(this._snapshot.getPath() + ".tmp");
+      try {
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+         try {
+            MenuCatalog.Response menu = this._esql.getMenu().snapshot();
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(menu.version);
+            out.writeInt(menu.changed.size());
+            for (MenuCatalog.MenuItem item : menu.changed) {
+               writeString(out, item.itemName);
+               writeString(out, item.ingredients);
+               writeString(out, item.typeOfItem);
+               writeString(out, item.price);
+               writeString(out, item.description);
+               out.writeLong(item.menuVersion);
+            }
+
+            List<CachedQuery> cachedQueries = new ArrayList<CachedQuery>();
+            for (CachedQuery cached : this._queries) {
+               if (this._esql.getCache().peek(cached.query) != null)
+                  cachedQueries.add(cached);
+            }
+            out.writeInt(cachedQueries.size());
+            for (CachedQuery cached : cachedQueries) {
+               List<List<String>> result = this._esql.getCache().peek(cached.query);
+               out.writeUTF(cached.query);
+               out.writeInt(result.size());
+               for (List<String> record : result) {
+                  out.writeInt(record.size());
+                  for (String value : record)
+                     writeString(out, value);
+               }
+            }
+         } finally {
+            out.close();
+         }
+         if (!tmp.renameTo(this._snapshot))
+            throw new IOException("cannot replace " + this._snapshot);
+      } catch (IOException e) {
+         System.err.println("Error saving startup snapshot: " + e.getMessage());
+         tmp.delete();
+      }
+   }//end saveSnapshot
+
+   /**
+    * @return the phases so far, e.g. "connect 120 ms, menu 35 ms, ..."
+    */
+   public synchronized String summary() {
+      StringBuilder summary = new StringBuilder();
+      for (Map.Entry<String, Long> e : this._phases.entrySet()) {
+         if (summary.length() > 0)
+            summary.append(", ");
+         summary.append(e.getKey()).append(' ').append(e.getValue()).append(" ms");
+      }
+      return summary.toString();
+   }//end summary
+
+   // null-safe, unlike writeUTF
+   private static void writeString(DataOutputStream out, String value) throws IOException {
+      out.writeBoolean(value != null);
+      if (value != null)
+         out.writeUTF(value);
+   }//end writeString
+
+   private static String readString(DataInputStream in) throws IOException {
+      return in.readBoolean() ? in.readUTF() : null;
+   }//end readString
+
+}//end Startup
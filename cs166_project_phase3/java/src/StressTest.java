@@ -0,0 +1,364 @@
+/*
+ * Order stress test
+ * =================
+ *
+ * Places orders, updates order statuses and edits the menu from many
+ * sessions at once against a local database, then checks that every order
+ * came out right.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Usage:
+ *
+ *    java StressTest <dbname> <port> <user> [<workers> [<orders>]]
+ *
+ * Run it in a scratch directory: like the client it keeps its order journal
+ * in the working directory.  It adds its own users (stress_customer_<n>,
+ * stress_manager) and menu items (Stress Item <n>, Stress Lover's Item) and only ever changes
+ * those, so it is harmless to a development database, but it is meant for
+ * a local one.
+ *
+ * The operations go through the menu screens, driven by BatchRunner, in two
+ * rounds: first half the orders, with menu edits in between; then the rest
+ * of the orders, status updates of the orders of the first round and more
+ * menu edits.  Every order carries an idempotency key, which is how the
+ * checks find it again.  After each round the test waits for the order
+ * journal to be applied.
+ *
+ * The checks, on every database holding orders:
+ *    - order IDs are unique
+ *    - every order placed is there, once, for the right user and a store
+ *      in the city that was asked for
+ *    - its line items are exactly the items and quantities ordered
+ *    - its total is the sum of Items.price times quantity (the stress
+ *      items' prices don't change during the run)
+ *    - its status is one the application can set
+ */
+public class StressTest {
+
+   private static final int DEFAULT_WORKERS = 8;
+   private static final int DEFAULT_ORDERS = 2000;
+
+   private static final int ITEM_COUNT = 6;
+   private static final int MAX_ITEMS_PER_ORDER = 3;
+   private static final int MAX_QUANTITY = 4;
+
+   // one menu edit per MENU_EDIT_EVERY orders, one status update per
+   // STATUS_UPDATE_EVERY orders of the second round
+   private static final int MENU_EDIT_EVERY = 20;
+   private static final int STATUS_UPDATE_EVERY = 2;
+
+   private static final long DRAIN_TIMEOUT_MS = 120 * 1000;
+   private static final int MAX_REPORTED = 20;
+
+   private static final String CUSTOMER_PREFIX = "stress_customer_";
+   private static final String MANAGER = "stress_manager";
+   private static final String ITEM_PREFIX = "Stress Item ";
+   // ordered but never edited, its quote has to survive the journal replay
+   private static final String QUOTED_ITEM = "Stress Lover's Item";
+
+   private static final Set<String> STATUSES = new HashSet<String>(OrderStatus.ALL);
+
+   /**
+    * One order as it was placed.
+    */
+   private static class Placed {
+      final String login;
+      final String city;
+      final Map<String, Integer> items = new TreeMap<String, Integer>();
+
+      Placed(String login, String city) {
+         this.login = login;
+         this.city = city;
+      }
+   }//end Placed
+
+   private final PizzaStore _esql;
+   private final int _workers;
+   private final Random _random = new Random();
+   private final String _run = "stress-" + Long.toString(System.currentTimeMillis(), 36);
+
+   private final List<String> _cities = new ArrayList<String>();
+   private final Map<String, Set<Integer>> _storesByCity = new HashMap<String, Set<Integer>>();
+   private final Map<String, BigDecimal> _prices = new TreeMap<String, BigDecimal>();
+
+   // idempotency key -> order
+   private final Map<String, Placed> _placed = new TreeMap<String, Placed>();
+   private int _menuEdits = 0;
+   private int _statusUpdates = 0;
+   private final List<String> _violations = new ArrayList<String>();
+
+   public StressTest(PizzaStore esql, int workers) {
+      this._esql = esql;
+      this._workers = workers;
+   }//end StressTest
+
+   public static void main(String[] args) {
+      if (args.length < 3 || args.length > 5) {
+         System.err.println("Usage: java [-classpath <classpath>] " + StressTest.class.getName()
+                            + " <dbname> <port> <user> [<workers> [<orders>]]");
+         return;
+      }
+      PizzaStore esql = null;
+      int violations = -1;
+      try {
+         int workers = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_WORKERS;
+         int orders = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_ORDERS;
+         esql = new PizzaStore(args[0], args[1], args[2], "");
+         esql.start();
+         violations = new StressTest(esql, workers).run(orders);
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      } finally {
+         if (esql != null)
+            esql.cleanup();
+      }
+      System.exit(violations == 0 ? 0 : 1);
+   }//end main
+
+   /**
+    * Runs both rounds and the checks.
+    *
+    * @param orders how many orders to place
+    * @return the number of violations found
+    */
+   public int run(int orders) throws IOException, SQLException, InterruptedException {
+      setUp();
+      long started = System.nanoTime();
+
+      int firstRound = orders / 2;
+      List<String> script = new ArrayList<String>();
+      for (int i = 0; i < firstRound; i++) {
+         script.add(placeOrder());
+         if (i % MENU_EDIT_EVERY == 0)
+            script.add(editMenu());
+      }
+      int failed = runScript("round 1", script);
+
+      // the first round's orders, for status updates
+      List<Integer> orderIDs = new ArrayList<Integer>(placedOrderIDs().values());
+
+      script.clear();
+      for (int i = firstRound; i < orders; i++) {
+         script.add(placeOrder());
+         if (i % MENU_EDIT_EVERY == 0)
+            script.add(editMenu());
+         if (i % STATUS_UPDATE_EVERY == 0 && !orderIDs.isEmpty()) {
+            this._statusUpdates++;
+            // 3. complete or 4. incomplete, as Update Order Status numbers them
+            script.add(MANAGER + " 9 | " + orderIDs.get(this._random.nextInt(orderIDs.size())) + " | "
+                       + (this._random.nextBoolean() ? 3 : 4));
+         }
+      }
+      failed += runScript("round 2", script);
+
+      double seconds = (System.nanoTime() - started) / 1e9;
+      check();
+
+      System.out.println();
+      System.out.println("STRESS TEST " + this._run);
+      System.out.println("-----------");
+      int operations = this._placed.size() + this._statusUpdates + this._menuEdits;
+      System.out.println(this._placed.size() + " orders, " + this._statusUpdates + " status updates, "
+                         + this._menuEdits + " menu edits on " + this._workers + " workers in "
+                         + String.format("%.1f", seconds) + " s: " + String.format("%.0f", operations / seconds)
+                         + " operations/s, " + String.format("%.0f", this._placed.size() / seconds)
+                         + " orders/s (journal apply included)");
+      System.out.println(failed + " failed operations, " + this._violations.size() + " violations");
+      for (int i = 0; i < Math.min(MAX_REPORTED, this._violations.size()); i++)
+         System.out.println("   " + this._violations.get(i));
+      if (this._violations.size() > MAX_REPORTED)
+         System.out.println("   ... and " + (this._violations.size() - MAX_REPORTED) + " more");
+      return this._violations.size();
+   }//end run
+
+   /*
+    * Users and items the test owns, at known prices; cities with stores.
+    */
+   private void setUp() throws SQLException {
+      for (int i = 0; i < this._workers; i++) {
+         this._esql.executeUpdate("INSERT INTO Users (login, password, role, favoriteItems, phoneNum) VALUES ('"
+            + CUSTOMER_PREFIX + i + "', 'stress', 'customer', '', '0000000000') ON CONFLICT (login) DO NOTHING");
+      }
+      this._esql.executeUpdate("INSERT INTO Users (login, password, role, favoriteItems, phoneNum) VALUES ('"
+         + MANAGER + "', 'stress', 'manager', '', '0000000000') ON CONFLICT (login) DO NOTHING");
+
+      for (int i = 1; i <= ITEM_COUNT + 1; i++) {
+         String item = i <= ITEM_COUNT ? ITEM_PREFIX + i : QUOTED_ITEM;
+         BigDecimal price = new BigDecimal(i + ".25");
+         this._esql.executeUpdate("INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES ('"
+            + item.replace("'", "''") + "', 'stress', 'entree', " + price + ", '') "
+            + "ON CONFLICT (itemName) DO UPDATE SET price = EXCLUDED.price");
+         this._prices.put(item, price);
+      }
+
+      for (List<String> record : this._esql.executeQueryAndReturnResult(
+            "SELECT storeID, city FROM Store WHERE length(city) >= 5")) {
+         String city = record.get(1).trim();
+         Set<Integer> stores = this._storesByCity.get(city);
+         if (stores == null) {
+            stores = new HashSet<Integer>();
+            this._storesByCity.put(city, stores);
+            this._cities.add(city);
+         }
+         stores.add(Integer.parseInt(record.get(0).trim()));
+      }
+      if (this._cities.isEmpty())
+         throw new SQLException("no stores to order from, load the data first");
+   }//end setUp
+
+   private String placeOrder() {
+      String key = this._run + "-" + this._placed.size();
+      String login = CUSTOMER_PREFIX + this._random.nextInt(this._workers);
+      Placed order = new Placed(login, this._cities.get(this._random.nextInt(this._cities.size())));
+
+      StringBuilder command = new StringBuilder(login + " 4 | " + key + " | " + order.city);
+      int count = 1 + this._random.nextInt(MAX_ITEMS_PER_ORDER);
+      while (order.items.size() < count) {
+         int n = 1 + this._random.nextInt(ITEM_COUNT + 1);
+         String item = n <= ITEM_COUNT ? ITEM_PREFIX + n : QUOTED_ITEM;
+         if (order.items.containsKey(item))
+            continue;
+         int quantity = 1 + this._random.nextInt(MAX_QUANTITY);
+         order.items.put(item, quantity);
+         command.append(" | ").append(item).append(" | ").append(quantity);
+      }
+      this._placed.put(key, order);
+      return command.append(" | done").toString();
+   }//end placeOrder
+
+   // a description change: bumps the menu version and invalidates caches,
+   // prices stay put
+   private String editMenu() {
+      this._menuEdits++;
+      return MANAGER + " 10 | 2 | " + ITEM_PREFIX + (1 + this._random.nextInt(ITEM_COUNT)) + " | 4 | edit "
+         + this._menuEdits + " of " + this._run;
+   }//end editMenu
+
+   private int runScript(String round, List<String> script) throws IOException, InterruptedException {
+      File file = File.createTempFile(this._run, ".batch");
+      try {
+         PrintWriter out = new PrintWriter(file, "UTF-8");
+         try {
+            for (String line : script)
+               out.println(line);
+         } finally {
+            out.close();
+         }
+
+         System.out.println("== " + round + ": " + script.size() + " operations");
+         BatchRunner runner = new BatchRunner(this._esql, this._workers);
+         runner.setQuiet(true);
+         int failed = runner.run(file.getPath());
+
+         long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+         while (this._esql.getJournal().pendingCount() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+               this._violations.add(round + ": " + this._esql.getJournal().pendingCount()
+                                    + " orders still not applied after " + DRAIN_TIMEOUT_MS / 1000 + " s");
+               break;
+            }
+            Thread.sleep(100);
+         }
+         return failed;
+      } finally {
+         file.delete();
+      }
+   }//end runScript
+
+   // idempotency key -> orderID of this run's orders in the database
+   private Map<String, Integer> placedOrderIDs() throws SQLException {
+      Map<String, Integer> orderIDs = new TreeMap<String, Integer>();
+      for (List<String> record : this._esql.getShards().queryAll(
+            "SELECT idempotencyKey, orderID FROM OrderIdempotency WHERE idempotencyKey LIKE '" + this._run + "-%'",
+            -1, -1)) {
+         if (orderIDs.put(record.get(0).trim(), Integer.parseInt(record.get(1).trim())) != null)
+            this._violations.add("key " + record.get(0).trim() + " was used for two orders");
+      }
+      return orderIDs;
+   }//end placedOrderIDs
+
+   private void check() throws SQLException {
+      Map<String, Integer> orderIDs = placedOrderIDs();
+
+      // orderID -> login, storeID, totalPrice, orderStatus
+      Map<Integer, List<String>> orders = new HashMap<Integer, List<String>>();
+      for (List<String> record : this._esql.getShards().queryAll(
+            "SELECT orderID, login, storeID, totalPrice, orderStatus FROM FoodOrder"
+            + " WHERE login LIKE '" + CUSTOMER_PREFIX + "%'", -1, -1)) {
+         int orderID = Integer.parseInt(record.get(0).trim());
+         if (orders.put(orderID, record) != null)
+            this._violations.add("order ID " + orderID + " is used by more than one order");
+      }
+
+      // orderID -> item -> quantity
+      Map<Integer, Map<String, Integer>> lineItems = new HashMap<Integer, Map<String, Integer>>();
+      for (List<String> record : this._esql.getShards().queryAll(
+            "SELECT I.orderID, I.itemName, I.quantity FROM ItemsInOrder I JOIN FoodOrder F"
+            + " ON F.orderID = I.orderID AND F.orderTimestamp = I.orderTimestamp"
+            + " WHERE F.login LIKE '" + CUSTOMER_PREFIX + "%'", -1, -1)) {
+         int orderID = Integer.parseInt(record.get(0).trim());
+         Map<String, Integer> items = lineItems.get(orderID);
+         if (items == null) {
+            items = new TreeMap<String, Integer>();
+            lineItems.put(orderID, items);
+         }
+         items.put(record.get(1).trim(), Integer.parseInt(record.get(2).trim()));
+      }
+
+      for (Map.Entry<String, Placed> e : this._placed.entrySet()) {
+         String key = e.getKey();
+         Placed placed = e.getValue();
+         Integer orderID = orderIDs.get(key);
+         if (orderID == null) {
+            this._violations.add(key + ": order was never placed");
+            continue;
+         }
+         List<String> order = orders.get(orderID);
+         if (order == null) {
+            this._violations.add(key + ": order " + orderID + " is missing from FoodOrder");
+            continue;
+         }
+         if (!order.get(1).trim().equals(placed.login))
+            this._violations.add(key + ": order " + orderID + " belongs to " + order.get(1).trim()
+                                 + ", placed by " + placed.login);
+         if (!this._storesByCity.get(placed.city).contains(Integer.parseInt(order.get(2).trim())))
+            this._violations.add(key + ": order " + orderID + " went to store " + order.get(2).trim()
+                                 + ", not in " + placed.city);
+
+         Map<String, Integer> items = lineItems.get(orderID);
+         if (!placed.items.equals(items))
+            this._violations.add(key + ": order " + orderID + " has line items " + items + ", ordered "
+                                 + placed.items);
+
+         BigDecimal expected = BigDecimal.ZERO;
+         for (Map.Entry<String, Integer> item : placed.items.entrySet())
+            expected = expected.add(this._prices.get(item.getKey()).multiply(new BigDecimal(item.getValue())));
+         if (new BigDecimal(order.get(3).trim()).compareTo(expected) != 0)
+            this._violations.add(key + ": order " + orderID + " totals " + order.get(3).trim() + ", items cost "
+                                 + expected);
+
+         String status = order.get(4) == null ? null : order.get(4).trim();
+         if (!STATUSES.contains(status))
+            this._violations.add(key + ": order " + orderID + " has status " + status);
+      }
+   }//end check
+
+}//end StressTest
@@ -0,0 +1,180 @@
+/*
+ * Session prefetch
+ * ================
+ *
+ * Loads what the first screens after login show in the same round trip
+ * that checks the credentials.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * LogIn runs one query, a UNION ALL of tagged rows that are only returned
+ * for the right password:
+ *
+ *    P  phoneNum, favoriteItems          View Profile
+ *    O  the columns of FoodOrder         View Past 5 Order IDs
+ *    M  MenuVersion.version              View Menu / Place Order
+ *
+ * The screens use the prefetched values while they are fresh and no write
+ * in this process has invalidated them, and query the database as before
+ * otherwise.  With order shards the global database doesn't have every
+ * order, so the orders are not prefetched.
+ */
+public class UserSession {
+
+   // how long prefetched values are used; changes made by other processes
+   // show up at most this late on the first screens
+   public static final long PREFETCH_TTL_MILLIS = 30 * 1000;
+
+   private static final String PROFILE = "P";
+   private static final String ORDER = "O";
+   private static final String MENU = "M";
+
+   // FoodOrder's orderTimestamp column in the order rows
+   private static final int ORDER_TIMESTAMP_COLUMN = 4;
+
+   private final String _login;
+   private final long _expiresAt;
+
+   // guarded by this; null when not prefetched or invalidated
+   private String _phoneNum;
+   private String _favoriteItems;
+   private List<List<String>> _recentOrders;
+   private long _menuVersion = -1;
+
+   private UserSession(String login, long expiresAt) {
+      this._login = login;
+      this._expiresAt = expiresAt;
+   }//end UserSession
+
+   /**
+    * Checks the credentials and prefetches the session in one query.
+    *
+    * @param esql the database
+    * @param login the user name
+    * @param password the password
+    * @param recentOrders how many of the newest orders to prefetch
+    * @return the session, or null if the credentials are wrong
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static UserSession open(PizzaStore esql, String login, String password, int recentOrders)
+         throws SQLException {
+      String user = "login = '" + login + "' AND password = '" + password + "'";
+      String authorised = "EXISTS (SELECT 1 FROM Users WHERE " + user + ")";
+      boolean prefetchOrders = !esql.getShards().isSharded();
+
+      // every branch has seven text columns: the tag and FoodOrder's six
+      String query =
+         "SELECT '" + PROFILE + "', CAST(phoneNum AS text), CAST(favoriteItems AS text),"
+         + " CAST(NULL AS text), CAST(NULL AS text), CAST(NULL AS text), CAST(NULL AS text)"
+         + " FROM Users WHERE " + user
+         + " UNION ALL SELECT '" + MENU + "', CAST(version AS text), NULL, NULL, NULL, NULL, NULL"
+         + " FROM MenuVersion WHERE " + authorised;
+      if (prefetchOrders) {
+         query += " UNION ALL (SELECT '" + ORDER + "', CAST(orderID AS text), CAST(login AS text),"
+            + " CAST(storeID AS text), CAST(totalPrice AS text), CAST(orderTimestamp AS text),"
+            + " CAST(orderStatus AS text)"
+            + " FROM FoodOrder WHERE login = '" + login + "' AND " + authorised
+            + " ORDER BY orderTimestamp DESC LIMIT " + recentOrders + ")";
+      }
+
+      List<List<String>> results = esql.executeQueryAndReturnResult(query);
+      UserSession session = new UserSession(login, System.currentTimeMillis() + PREFETCH_TTL_MILLIS);
+      boolean found = false;
+      List<List<String>> orders = new ArrayList<List<String>>();
+      for (List<String> record : results) {
+         String tag = record.get(0).trim();
+         if (tag.equals(PROFILE)) {
+            found = true;
+            session._phoneNum = record.get(1);
+            session._favoriteItems = record.get(2);
+         } else if (tag.equals(MENU)) {
+            session._menuVersion = Long.parseLong(record.get(1).trim());
+         } else if (tag.equals(ORDER)) {
+            orders.add(new ArrayList<String>(record.subList(1, record.size())));
+         }
+      }
+      if (!found)
+         return null;
+
+      // UNION ALL doesn't promise to keep the branch's order
+      Collections.sort(orders, new Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            return Timestamp.valueOf(b.get(ORDER_TIMESTAMP_COLUMN).trim())
+               .compareTo(Timestamp.valueOf(a.get(ORDER_TIMESTAMP_COLUMN).trim()));
+         }
+      });
+      if (prefetchOrders)
+         session._recentOrders = orders;
+      return session;
+   }//end open
+
+   /**
+    * @return the user this session belongs to
+    */
+   public String login() {
+      return this._login;
+   }//end login
+
+   /**
+    * @return the prefetched phoneNum and favoriteItems, or null
+    */
+   public synchronized String[] profile() {
+      if (!fresh() || this._phoneNum == null)
+         return null;
+      return new String[] { this._phoneNum, this._favoriteItems };
+   }//end profile
+
+   /**
+    * @param limit how many orders the screen shows
+    * @return the newest orders as FoodOrder records, or null
+    */
+   public synchronized List<List<String>> recentOrders(int limit) {
+      if (!fresh() || this._recentOrders == null)
+         return null;
+      return new ArrayList<List<String>>(this._recentOrders.subList(0, Math.min(limit, this._recentOrders.size())));
+   }//end recentOrders
+
+   /**
+    * @return the prefetched menu version, or -1
+    */
+   public synchronized long menuVersion() {
+      return fresh() ? this._menuVersion : -1;
+   }//end menuVersion
+
+   /**
+    * @return how much longer the prefetched values are used
+    */
+   public long remainingMillis() {
+      return Math.max(0, this._expiresAt - System.currentTimeMillis());
+   }//end remainingMillis
+
+   /**
+    * Drops the prefetched profile, e.g. after the user's row changed.
+    */
+   public synchronized void invalidateProfile() {
+      this._phoneNum = null;
+      this._favoriteItems = null;
+   }//end invalidateProfile
+
+   /**
+    * Drops the prefetched orders, e.g. after one was placed or changed.
+    */
+   public synchronized void invalidateOrders() {
+      this._recentOrders = null;
+   }//end invalidateOrders
+
+   private boolean fresh() {
+      return System.currentTimeMillis() < this._expiresAt;
+   }//end fresh
+
+}//end UserSession
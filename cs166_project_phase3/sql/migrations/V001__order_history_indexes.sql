@@ -0,0 +1,15 @@
+-- indexes for the application's hot paths and for the foreign keys the
+-- ON DELETE CASCADEs of Users, Store and Items scan
+
+-- a user's orders newest first: View Full Order ID History, View Past 5
+-- Order IDs, the login prefetch; also Users' cascade
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_foodorder_login_timestamp
+ON FoodOrder(login, orderTimestamp);
+
+-- orders of a store; also Store's cascade
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_foodorder_store
+ON FoodOrder(storeID);
+
+-- line items of a menu item; also Items' cascade
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_itemsinorder_item
+ON ItemsInOrder(itemName);
@@ -0,0 +1,5 @@
+-- both duplicate a primary key (Items.itemName, Users.login) and only
+-- slow down writes
+DROP INDEX CONCURRENTLY IF EXISTS idx_item_name;
+
+DROP INDEX CONCURRENTLY IF EXISTS idx_users_login;
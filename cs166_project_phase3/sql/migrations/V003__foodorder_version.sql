@@ -0,0 +1,4 @@
+-- optimistic concurrency for order status changes: every transition
+-- compares and bumps the version (see OrderStatus); with a constant
+-- default this doesn't rewrite FoodOrder
+ALTER TABLE FoodOrder ADD COLUMN IF NOT EXISTS version integer NOT NULL DEFAULT 0;
@@ -0,0 +1,10 @@
+-- delivery batches: the batch an order was last claimed in (see
+-- DeliveryBatcher), numbered by a sequence
+ALTER TABLE FoodOrder ADD COLUMN IF NOT EXISTS batchID integer;
+
+CREATE SEQUENCE IF NOT EXISTS delivery_batch_seq;
+
+-- orders of a delivery batch, to finish it and to notify its customers
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_foodorder_batch
+ON FoodOrder(storeID, batchID)
+WHERE batchID IS NOT NULL;
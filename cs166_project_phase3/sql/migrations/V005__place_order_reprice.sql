@@ -0,0 +1,49 @@
+-- place_order prices every order from Items.price instead of taking the
+-- client's total, and the variant without an order ID is gone
+DROP FUNCTION IF EXISTS place_order(integer, varchar, integer, varchar[], integer[], timestamp, decimal, varchar);
+DROP FUNCTION IF EXISTS place_order(varchar, integer, varchar[], integer[]);
+
+CREATE OR REPLACE FUNCTION place_order(p_order_id integer, p_login varchar, p_store_id integer,
+                            p_items varchar[], p_quantities integer[],
+                            p_timestamp timestamp, p_key varchar,
+                            OUT order_id integer, OUT total decimal)
+AS $$
+DECLARE
+   missing varchar;
+BEGIN
+   order_id := p_order_id;
+   SELECT totalPrice INTO total FROM FoodOrder
+   WHERE orderID = p_order_id AND orderTimestamp = p_timestamp;
+   IF FOUND THEN
+      RETURN;
+   END IF;
+
+   IF coalesce(array_length(p_items, 1), 0) = 0
+         OR array_length(p_items, 1) <> coalesce(array_length(p_quantities, 1), 0) THEN
+      RAISE EXCEPTION 'order % has % items and % quantities', p_order_id,
+         coalesce(array_length(p_items, 1), 0), coalesce(array_length(p_quantities, 1), 0);
+   END IF;
+   IF EXISTS (SELECT 1 FROM unnest(p_quantities) AS q(quantity) WHERE quantity IS NULL OR quantity <= 0) THEN
+      RAISE EXCEPTION 'order % has a quantity that is not positive', p_order_id;
+   END IF;
+   SELECT o.itemName INTO missing FROM unnest(p_items) AS o(itemName)
+   WHERE NOT EXISTS (SELECT 1 FROM Items I WHERE I.itemName = o.itemName) LIMIT 1;
+   IF missing IS NOT NULL THEN
+      RAISE EXCEPTION 'order % has an item not on the menu: %', p_order_id, missing;
+   END IF;
+
+   SELECT sum(I.price * o.quantity) INTO total
+   FROM unnest(p_items, p_quantities) AS o(itemName, quantity)
+   JOIN Items I ON I.itemName = o.itemName;
+
+   INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus)
+   VALUES (p_order_id, p_login, p_store_id, total, p_timestamp, 'Pending');
+   INSERT INTO ItemsInOrder (orderID, itemName, quantity, orderTimestamp)
+   SELECT p_order_id, o.itemName, o.quantity, p_timestamp
+   FROM unnest(p_items, p_quantities) AS o(itemName, quantity);
+   -- the key's primary key rejects the whole order if it was used before
+   IF p_key IS NOT NULL THEN
+      INSERT INTO OrderIdempotency (idempotencyKey, login, orderID) VALUES (p_key, p_login, p_order_id);
+   END IF;
+END;
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,68 @@
+-- place_order returns the order already placed with a key inside the
+-- deduplication window, also when another client placed it, instead of
+-- failing on OrderIdempotency's primary key; a key past the window is
+-- replaced
+CREATE OR REPLACE FUNCTION place_order(p_order_id integer, p_login varchar, p_store_id integer,
+                            p_items varchar[], p_quantities integer[],
+                            p_timestamp timestamp, p_key varchar,
+                            OUT order_id integer, OUT total decimal)
+AS $$
+DECLARE
+   missing varchar;
+BEGIN
+   order_id := p_order_id;
+   SELECT totalPrice INTO total FROM FoodOrder
+   WHERE orderID = p_order_id AND orderTimestamp = p_timestamp;
+   IF FOUND THEN
+      RETURN;
+   END IF;
+
+   IF p_key IS NOT NULL THEN
+      -- a key past the window is free again
+      DELETE FROM OrderIdempotency
+      WHERE idempotencyKey = p_key AND createdAt <= now() - interval '24 hours';
+      SELECT K.orderID INTO order_id FROM OrderIdempotency K WHERE K.idempotencyKey = p_key;
+      IF FOUND THEN
+         SELECT totalPrice INTO total FROM FoodOrder WHERE orderID = order_id;
+         RETURN;
+      END IF;
+      order_id := p_order_id;
+   END IF;
+
+   IF coalesce(array_length(p_items, 1), 0) = 0
+         OR array_length(p_items, 1) <> coalesce(array_length(p_quantities, 1), 0) THEN
+      RAISE EXCEPTION 'order % has % items and % quantities', p_order_id,
+         coalesce(array_length(p_items, 1), 0), coalesce(array_length(p_quantities, 1), 0);
+   END IF;
+   IF EXISTS (SELECT 1 FROM unnest(p_quantities) AS q(quantity) WHERE quantity IS NULL OR quantity <= 0) THEN
+      RAISE EXCEPTION 'order % has a quantity that is not positive', p_order_id;
+   END IF;
+   SELECT o.itemName INTO missing FROM unnest(p_items) AS o(itemName)
+   WHERE NOT EXISTS (SELECT 1 FROM Items I WHERE I.itemName = o.itemName) LIMIT 1;
+   IF missing IS NOT NULL THEN
+      RAISE EXCEPTION 'order % has an item not on the menu: %', p_order_id, missing;
+   END IF;
+
+   SELECT sum(I.price * o.quantity) INTO total
+   FROM unnest(p_items, p_quantities) AS o(itemName, quantity)
+   JOIN Items I ON I.itemName = o.itemName;
+
+   BEGIN
+      INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus)
+      VALUES (p_order_id, p_login, p_store_id, total, p_timestamp, 'Pending');
+      INSERT INTO ItemsInOrder (orderID, itemName, quantity, orderTimestamp)
+      SELECT p_order_id, o.itemName, o.quantity, p_timestamp
+      FROM unnest(p_items, p_quantities) AS o(itemName, quantity);
+      IF p_key IS NOT NULL THEN
+         INSERT INTO OrderIdempotency (idempotencyKey, login, orderID) VALUES (p_key, p_login, p_order_id);
+      END IF;
+   EXCEPTION WHEN unique_violation THEN
+      -- a concurrent order took the key first: undo this one, return that one
+      SELECT K.orderID INTO order_id FROM OrderIdempotency K WHERE K.idempotencyKey = p_key;
+      IF NOT FOUND THEN
+         RAISE;
+      END IF;
+      SELECT totalPrice INTO total FROM FoodOrder WHERE orderID = order_id;
+   END;
+END;
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,3 @@
+-- the driver who claimed a delivery batch, the only one who may finish it
+-- (see DispatchQueue.finishBatch)
+ALTER TABLE FoodOrder ADD COLUMN IF NOT EXISTS batchClaimedBy varchar(50);
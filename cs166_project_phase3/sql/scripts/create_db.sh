@@ -5,3 +5,6 @@ cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_tables.sql
 cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_indexes.sql
 cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/load_data.sql
 
+# bring the new schema to the latest migration (compile the client first,
+# see java/scripts/compile.sh)
+java -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar PizzaStore --migrate $DIR/../migrations $USER"_project_phase_3_DB" $PGPORT $USER
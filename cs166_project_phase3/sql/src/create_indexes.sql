@@ -1,15 +1,34 @@
 DROP INDEX IF EXISTS idx_item_name;
 DROP INDEX IF EXISTS idx_items_price;
 DROP INDEX IF EXISTS idx_users_login;
-
-
-CREATE INDEX idx_item_name
-ON Items (itemName);
+DROP INDEX IF EXISTS idx_foodorder_pending;
+DROP INDEX IF EXISTS idx_foodorder_batch;
+DROP INDEX IF EXISTS idx_items_menu_version;
+DROP INDEX IF EXISTS idx_order_idempotency_created;
 
 
 CREATE INDEX idx_items_price 
 ON Items(price);
 
 
-CREATE UNIQUE INDEX idx_users_login 
-ON Users(login);
+-- pending orders per store, oldest first (driver dispatch queue)
+CREATE INDEX idx_foodorder_pending
+ON FoodOrder(storeID, orderTimestamp)
+WHERE orderStatus = 'Pending';
+
+
+-- orders of a delivery batch, to finish it and to notify its customers
+CREATE INDEX idx_foodorder_batch
+ON FoodOrder(storeID, batchID)
+WHERE batchID IS NOT NULL;
+
+
+-- items changed since a client's menu version (menu deltas)
+CREATE INDEX idx_items_menu_version
+ON Items(menuVersion);
+
+
+-- keys inside the deduplication window, loaded into the Bloom filter; keys
+-- past it, purged (see IdempotencyGuard)
+CREATE INDEX idx_order_idempotency_created
+ON OrderIdempotency(createdAt);
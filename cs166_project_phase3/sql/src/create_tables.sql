@@ -3,6 +3,18 @@ DROP TABLE IF EXISTS Items CASCADE;
 DROP TABLE IF EXISTS FoodOrder CASCADE;
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS ItemsInOrder CASCADE;
+DROP SEQUENCE IF EXISTS foodorder_id_block_seq;
+DROP SEQUENCE IF EXISTS delivery_batch_seq;
+DROP FUNCTION IF EXISTS create_order_partitions(date, integer);
+DROP TABLE IF EXISTS ItemsDeleted CASCADE;
+DROP TABLE IF EXISTS MenuVersion CASCADE;
+DROP FUNCTION IF EXISTS bump_menu_version() CASCADE;
+DROP TABLE IF EXISTS OrderIdempotency CASCADE;
+-- a recreated schema has none of the migrations applied (see SchemaMigrations)
+DROP TABLE IF EXISTS schema_migrations;
+DROP FUNCTION IF EXISTS place_order(integer, varchar, integer, varchar[], integer[], timestamp, decimal, varchar);
+DROP FUNCTION IF EXISTS place_order(varchar, integer, varchar[], integer[]);
+DROP FUNCTION IF EXISTS place_order(integer, varchar, integer, varchar[], integer[], timestamp, varchar);
 
 CREATE TABLE Users ( login varchar(50) NOT NULL,
                      password varchar(30) NOT NULL,
@@ -17,9 +29,42 @@ CREATE TABLE Items ( itemName varchar(50) NOT NULL,
                        typeOfItem varchar(30) NOT NULL,
                        price decimal(10,2) NOT NULL,
                        description text,
+                       menuVersion bigint NOT NULL DEFAULT 0, --menu version of the last change
                        PRIMARY KEY(itemName)
 );
 
+-- the menu's current version (ETag); a single row, bumped on every change
+-- to Items.  Bumping under this row's lock keeps versions in commit order,
+-- so a delta "changed since version n" never misses a late commit.
+CREATE TABLE MenuVersion ( version bigint NOT NULL );
+INSERT INTO MenuVersion VALUES (0);
+
+-- deleted items, so a delta can tell clients to drop them
+CREATE TABLE ItemsDeleted ( itemName varchar(50) NOT NULL,
+                            menuVersion bigint NOT NULL,
+                            PRIMARY KEY(itemName)
+);
+
+CREATE FUNCTION bump_menu_version() RETURNS trigger AS $$
+DECLARE
+   v bigint;
+BEGIN
+   UPDATE MenuVersion SET version = version + 1 RETURNING version INTO v;
+   IF TG_OP = 'DELETE' THEN
+      INSERT INTO ItemsDeleted (itemName, menuVersion) VALUES (OLD.itemName, v)
+      ON CONFLICT (itemName) DO UPDATE SET menuVersion = EXCLUDED.menuVersion;
+      RETURN OLD;
+   END IF;
+   DELETE FROM ItemsDeleted WHERE itemName = NEW.itemName;
+   NEW.menuVersion := v;
+   RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER items_menu_version
+BEFORE INSERT OR UPDATE OR DELETE ON Items
+FOR EACH ROW EXECUTE FUNCTION bump_menu_version();
+
 CREATE TABLE Store ( storeID integer NOT NULL,
                            address varchar(50) NOT NULL,
                            city varchar(50) NOT NULL,
@@ -29,27 +74,158 @@ CREATE TABLE Store ( storeID integer NOT NULL,
                            PRIMARY KEY(storeID)
 );
 
+-- orders are range partitioned by month of orderTimestamp; the partition
+-- key has to be part of the primary key, orderIDs stay unique because they
+-- come from foodorder_id_block_seq
 CREATE TABLE FoodOrder ( orderID integer NOT NULL,
                            login varchar(50) NOT NULL, --places relationship
                            storeID integer NOT NULL, --placedAt relationship
                            totalPrice decimal(10,2) NOT NULL,
                            orderTimestamp timestamp NOT NULL,
                            orderStatus char(50),
-                           PRIMARY KEY(orderID),
+                           version integer NOT NULL DEFAULT 0, --bumped by every status change (see OrderStatus)
+                           batchID integer, --delivery batch the order was last claimed in
+                           batchClaimedBy varchar(50), --login of the driver who claimed the batch
+                           PRIMARY KEY(orderID, orderTimestamp),
                            FOREIGN KEY(login) REFERENCES Users(login)
                            ON DELETE CASCADE,
                            FOREIGN KEY(storeID) REFERENCES Store(storeID)
                            ON DELETE CASCADE
-);
+) PARTITION BY RANGE (orderTimestamp);
+
+-- each nextval reserves a block of 100 order IDs (see OrderJournal.ID_BLOCK_SIZE)
+CREATE SEQUENCE foodorder_id_block_seq INCREMENT BY 100;
+
+-- delivery batch IDs (see DeliveryBatcher)
+CREATE SEQUENCE delivery_batch_seq;
 
 
 
+-- line items carry their order's timestamp so they are partitioned the
+-- same way and a lookup by order prunes to one partition
 CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
                            itemName varchar(50) NOT NULL,
                            quantity integer NOT NULL,
-                           PRIMARY KEY(orderID, itemName),
-                           FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID) ON DELETE CASCADE,
+                           orderTimestamp timestamp NOT NULL,
+                           PRIMARY KEY(orderID, itemName, orderTimestamp),
+                           FOREIGN KEY(orderID, orderTimestamp) REFERENCES FoodOrder(orderID, orderTimestamp)
+                           ON DELETE CASCADE,
                            FOREIGN KEY(itemName) REFERENCES Items(itemName)
                            ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+-- client idempotency keys of placed orders; written in the same
+-- transaction as the order, the primary key rejects a second order with
+-- the same key.  A key is remembered for 24 hours, IdempotencyGuard.WINDOW_HOURS,
+-- then purged (see IdempotencyGuard)
+CREATE TABLE OrderIdempotency ( idempotencyKey varchar(64) NOT NULL,
+                           login varchar(50) NOT NULL,
+                           orderID integer NOT NULL,
+                           createdAt timestamp NOT NULL DEFAULT now(),
+                           PRIMARY KEY(idempotencyKey)
 );
 
+-- places one order in one call: checks the items and quantities, prices
+-- the order from Items.price, and inserts the order, its line items and
+-- its idempotency key together.  An order that is already present is
+-- returned as is, so the order journal can replay it safely (see
+-- OrderJournal).  So is the order placed with the same key within the
+-- last 24 hours, IdempotencyGuard.WINDOW_HOURS, by this client or another.
+CREATE FUNCTION place_order(p_order_id integer, p_login varchar, p_store_id integer,
+                            p_items varchar[], p_quantities integer[],
+                            p_timestamp timestamp, p_key varchar,
+                            OUT order_id integer, OUT total decimal)
+AS $$
+DECLARE
+   missing varchar;
+BEGIN
+   order_id := p_order_id;
+   SELECT totalPrice INTO total FROM FoodOrder
+   WHERE orderID = p_order_id AND orderTimestamp = p_timestamp;
+   IF FOUND THEN
+      RETURN;
+   END IF;
+
+   IF p_key IS NOT NULL THEN
+      -- a key past the window is free again
+      DELETE FROM OrderIdempotency
+      WHERE idempotencyKey = p_key AND createdAt <= now() - interval '24 hours';
+      SELECT K.orderID INTO order_id FROM OrderIdempotency K WHERE K.idempotencyKey = p_key;
+      IF FOUND THEN
+         SELECT totalPrice INTO total FROM FoodOrder WHERE orderID = order_id;
+         RETURN;
+      END IF;
+      order_id := p_order_id;
+   END IF;
+
+   IF coalesce(array_length(p_items, 1), 0) = 0
+         OR array_length(p_items, 1) <> coalesce(array_length(p_quantities, 1), 0) THEN
+      RAISE EXCEPTION 'order % has % items and % quantities', p_order_id,
+         coalesce(array_length(p_items, 1), 0), coalesce(array_length(p_quantities, 1), 0);
+   END IF;
+   IF EXISTS (SELECT 1 FROM unnest(p_quantities) AS q(quantity) WHERE quantity IS NULL OR quantity <= 0) THEN
+      RAISE EXCEPTION 'order % has a quantity that is not positive', p_order_id;
+   END IF;
+   SELECT o.itemName INTO missing FROM unnest(p_items) AS o(itemName)
+   WHERE NOT EXISTS (SELECT 1 FROM Items I WHERE I.itemName = o.itemName) LIMIT 1;
+   IF missing IS NOT NULL THEN
+      RAISE EXCEPTION 'order % has an item not on the menu: %', p_order_id, missing;
+   END IF;
+
+   SELECT sum(I.price * o.quantity) INTO total
+   FROM unnest(p_items, p_quantities) AS o(itemName, quantity)
+   JOIN Items I ON I.itemName = o.itemName;
+
+   BEGIN
+      INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus)
+      VALUES (p_order_id, p_login, p_store_id, total, p_timestamp, 'Pending');
+      INSERT INTO ItemsInOrder (orderID, itemName, quantity, orderTimestamp)
+      SELECT p_order_id, o.itemName, o.quantity, p_timestamp
+      FROM unnest(p_items, p_quantities) AS o(itemName, quantity);
+      IF p_key IS NOT NULL THEN
+         INSERT INTO OrderIdempotency (idempotencyKey, login, orderID) VALUES (p_key, p_login, p_order_id);
+      END IF;
+   EXCEPTION WHEN unique_violation THEN
+      -- a concurrent order took the key first: undo this one, return that one
+      SELECT K.orderID INTO order_id FROM OrderIdempotency K WHERE K.idempotencyKey = p_key;
+      IF NOT FOUND THEN
+         RAISE;
+      END IF;
+      SELECT totalPrice INTO total FROM FoodOrder WHERE orderID = order_id;
+   END;
+END;
+$$ LANGUAGE plpgsql;
+
+-- creates the monthly partitions of FoodOrder and ItemsInOrder from
+-- from_month up to months_ahead months past the current one; existing
+-- partitions are left alone, so this is safe to run repeatedly
+CREATE FUNCTION create_order_partitions(from_month date, months_ahead integer)
+RETURNS integer AS $$
+DECLARE
+   month_start date := date_trunc('month', from_month)::date;
+   last_month date := (date_trunc('month', now()) + make_interval(months => months_ahead))::date;
+   suffix text;
+   created integer := 0;
+BEGIN
+   WHILE month_start <= last_month LOOP
+      suffix := to_char(month_start, '"y"YYYY"m"MM');
+      IF to_regclass('foodorder_' || suffix) IS NULL THEN
+         EXECUTE format('CREATE TABLE foodorder_%s PARTITION OF FoodOrder FOR VALUES FROM (%L) TO (%L)',
+                        suffix, month_start, (month_start + interval '1 month')::date);
+         EXECUTE format('CREATE TABLE itemsinorder_%s PARTITION OF ItemsInOrder FOR VALUES FROM (%L) TO (%L)',
+                        suffix, month_start, (month_start + interval '1 month')::date);
+         created := created + 1;
+      END IF;
+      month_start := (month_start + interval '1 month')::date;
+   END LOOP;
+   RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- anything outside the managed months still has a home
+CREATE TABLE foodorder_default PARTITION OF FoodOrder DEFAULT;
+CREATE TABLE itemsinorder_default PARTITION OF ItemsInOrder DEFAULT;
+
+-- the sample data goes back to 2014
+SELECT create_order_partitions(DATE '2014-01-01', 3);
+
@@ -5,7 +5,7 @@ COPY Users
 FROM '/home/csmajs/mnguy602/PizzaDeliveryApplication/cs166_project_phase3/data/users.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Items
+COPY Items (itemName, ingredients, typeOfItem, price, description)
 FROM '/home/csmajs/mnguy602/PizzaDeliveryApplication/cs166_project_phase3/data/items.csv'
 WITH DELIMITER ',' CSV HEADER;
 
@@ -13,10 +13,20 @@ COPY Store
 FROM '/home/csmajs/mnguy602/PizzaDeliveryApplication/cs166_project_phase3/data/store.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY FoodOrder
+COPY FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus)
 FROM '/home/csmajs/mnguy602/PizzaDeliveryApplication/cs166_project_phase3/data/foodorder.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY ItemsInOrder
+-- the csv has no orderTimestamp, it is taken from the order
+CREATE TEMP TABLE ItemsInOrderLoad ( orderID integer, itemName varchar(50), quantity integer );
+
+COPY ItemsInOrderLoad
 FROM '/home/csmajs/mnguy602/PizzaDeliveryApplication/cs166_project_phase3/data/itemsinorder.csv'
 WITH DELIMITER ',' CSV HEADER;
+
+INSERT INTO ItemsInOrder (orderID, itemName, quantity, orderTimestamp)
+SELECT L.orderID, L.itemName, L.quantity, F.orderTimestamp
+FROM ItemsInOrderLoad L JOIN FoodOrder F ON F.orderID = L.orderID;
+
+-- order ID blocks continue after the loaded orders
+SELECT setval('foodorder_id_block_seq', (SELECT MAX(orderID) FROM FoodOrder));